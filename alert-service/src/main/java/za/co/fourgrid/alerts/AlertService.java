@@ -1,8 +1,8 @@
 // java
 package za.co.fourgrid.alerts;
 
-import org.apache.activemq.ActiveMQConnectionFactory;
 import za.co.fourgrid.common.mq.MQ;
+import za.co.fourgrid.common.mq.MqConnectionPool;
 
 import javax.jms.*;
 import java.util.ArrayList;
@@ -16,9 +16,7 @@ import java.util.concurrent.CountDownLatch;
  */
 public class AlertService implements MQ, AutoCloseable {
 
-    private Connection connection;
     private Session session;
-    private MessageConsumer consumer;
     private final CountDownLatch stopLatch = new CountDownLatch(1);
 
     // discovered senders
@@ -64,13 +62,7 @@ public class AlertService implements MQ, AutoCloseable {
             senders.add(new ConsoleAlertSender());
         }
 
-        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(MQ.URL);
-        connection = factory.createConnection(MQ.USER, MQ.PASSWD);
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination dest = session.createQueue(MQ.ALERT_QUEUE);
-        consumer = session.createConsumer(dest);
-
-        consumer.setMessageListener(message -> {
+        session = MqConnectionPool.forBroker(MQ.URL).listen(MQ.ALERT_QUEUE, DestinationType.QUEUE, message -> {
             try {
                 if (message instanceof TextMessage) {
                     String text = ((TextMessage) message).getText();
@@ -94,7 +86,6 @@ public class AlertService implements MQ, AutoCloseable {
                 }
             }
         });
-        connection.start();
         return this;
     }
 
@@ -110,18 +101,10 @@ public class AlertService implements MQ, AutoCloseable {
     public void close() {
         // signal shutdown
         stopLatch.countDown();
-        // close consumer, session and connection in order
-        if (consumer != null) {
-            try { consumer.close(); } catch (JMSException ignore) {}
-            consumer = null;
-        }
+        // closing the session closes its consumer; the connection is shared
         if (session != null) {
             try { session.close(); } catch (JMSException ignore) {}
             session = null;
         }
-        if (connection != null) {
-            try { connection.close(); } catch (JMSException ignore) {}
-            connection = null;
-        }
     }
 }
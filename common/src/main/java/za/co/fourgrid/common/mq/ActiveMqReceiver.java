@@ -1,7 +1,7 @@
 package za.co.fourgrid.common.mq;
 
-import org.apache.activemq.ActiveMQConnectionFactory;
-
+import java.util.ArrayList;
+import java.util.List;
 import javax.jms.*;
 import java.lang.IllegalStateException;
 
@@ -12,18 +12,20 @@ import java.lang.IllegalStateException;
  */
 public class ActiveMqReceiver implements MQ, AutoCloseable {
 
-    private Connection connection;
-    private Session session;
+    private MqConnectionPool pool;
+    // The sessions of my listeners
+    private final List<Session> listening = new ArrayList<>();
 
     private void closeResources() {
-        try {
-            if (session != null) session.close();
-            if (connection != null) connection.close();
-        } catch (JMSException ex) {
-            // ignore
+        for (Session session : listening) {
+            try {
+                session.close();
+            } catch (JMSException ex) {
+                // ignore
+            }
         }
-        session = null;
-        connection = null;
+        listening.clear();
+        pool = null;
     }
 
     // No-arg constructor // lms wants it
@@ -39,14 +41,11 @@ public class ActiveMqReceiver implements MQ, AutoCloseable {
     }
 
     /**
-     * Initialize JMS connection/session. Use brokerUrl == "TEST" for VM transport.
+     * Connect to the broker, through the connection pool shared by everyone in this JVM.
+     * Use brokerUrl == "TEST" for VM transport.
      */
     public ActiveMqReceiver init(String brokerUrl) throws JMSException {
-        String url = "TEST".equals(brokerUrl) ? "vm://localhost?broker.persistent=false" : brokerUrl;
-        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
-        connection = factory.createConnection(MQ.USER, MQ.PASSWD);
-        connection.start();
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        pool = MqConnectionPool.forBroker(brokerUrl).connect();
         return this;
     }
 
@@ -60,7 +59,7 @@ public class ActiveMqReceiver implements MQ, AutoCloseable {
             throw new IllegalStateException("listenOn only supports topic destinations");
         }
 
-        if (session == null) {
+        if (pool == null) {
             // try to auto-init for test convenience (vm broker) then fall back
             try {
                 init("TEST");
@@ -72,9 +71,7 @@ public class ActiveMqReceiver implements MQ, AutoCloseable {
                 }
             }
         }
-        Destination dest = session.createTopic(destination);
-        MessageConsumer consumer = session.createConsumer(dest);
-        consumer.setMessageListener(listener);
+        listening.add(pool.listen(destination, DestinationType.TOPIC, listener));
         return this;
     }
 
@@ -83,7 +80,7 @@ public class ActiveMqReceiver implements MQ, AutoCloseable {
      * Returns the TextMessage or null if timeout.
      */
     public Message receive(String destination, long timeoutMs) throws JMSException {
-        if (session == null) {
+        if (pool == null) {
             try {
                 init("TEST");
             } catch (JMSException first) {
@@ -99,11 +96,8 @@ public class ActiveMqReceiver implements MQ, AutoCloseable {
             // lms is for some reason attempting a synchronous receive from a topic to fail
             throw new IllegalStateException("Synchronous receive not supported for topic destinations; use listenOn");
         }
-        Destination dest = session.createQueue(destination);
-        MessageConsumer consumer = session.createConsumer(dest);
-        Message msg = consumer.receive(timeoutMs);
-        consumer.close();
-        return msg;
+        // The pooled sessions keep their consumers, so there's nothing to set up per call.
+        return pool.receive(destination, timeoutMs);
     }
 
     /**
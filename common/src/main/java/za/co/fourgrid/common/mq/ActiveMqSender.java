@@ -1,7 +1,5 @@
 package za.co.fourgrid.common.mq;
 
-import org.apache.activemq.ActiveMQConnectionFactory;
-
 import javax.jms.*;
 import java.lang.IllegalStateException;
 
@@ -15,8 +13,7 @@ import java.lang.IllegalStateException;
  */
 public class ActiveMqSender extends MqTopicSender implements MQ, AutoCloseable {
 
-    private Connection connection;
-    private Session session;
+    private MqConnectionPool pool;
     private String destName;
     private DestinationType destType;
 
@@ -45,14 +42,11 @@ public class ActiveMqSender extends MqTopicSender implements MQ, AutoCloseable {
     }
 
     /**
-     * Initialize JMS connection/session. Use brokerUrl == "TEST" to create an in-vm broker.
+     * Connect to the broker, through the connection pool shared by everyone in this JVM.
+     * Use brokerUrl == "TEST" to create an in-vm broker.
      */
     public ActiveMqSender init(String brokerUrl) throws JMSException {
-        String url = "TEST".equals(brokerUrl) ? "vm://localhost?broker.persistent=false" : brokerUrl;
-        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
-        connection = factory.createConnection(USER, PASSWD);
-        connection.start();
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        pool = MqConnectionPool.forBroker(brokerUrl).connect();
         return this;
     }
 
@@ -60,7 +54,7 @@ public class ActiveMqSender extends MqTopicSender implements MQ, AutoCloseable {
      * Send a text message to the configured destination. Requires init() to have been called.
      */
     public void send(String message) throws JMSException {
-        if (session == null) {
+        if (pool == null) {
             // Try to auto-initialize for convenience in test environments: prefer in-vm TEST broker
             try {
                 init("TEST");
@@ -73,40 +67,23 @@ public class ActiveMqSender extends MqTopicSender implements MQ, AutoCloseable {
             }
         }
 
-        Destination destination;
         if (destName != null) {
-            destination = (destType == DestinationType.TOPIC) ? session.createTopic(destName) : session.createQueue(destName);
+            pool.send(destName, destType == DestinationType.TOPIC ? DestinationType.TOPIC : DestinationType.QUEUE, message);
         } else {
             // default to ALERT_QUEUE if no destination provided
-            destination = session.createQueue(ALERT_QUEUE);
+            pool.send(ALERT_QUEUE, DestinationType.QUEUE, message);
         }
-
-        MessageProducer producer = session.createProducer(destination);
-        producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
-        TextMessage textMessage = session.createTextMessage(message);
-        producer.send(textMessage);
         // small helpful log to stdout for local runs/tests
-        System.out.println("Sent message to " + (destName != null ? destName : ALERT_QUEUE) + ": " + textMessage.getText());
-        producer.close();
+        System.out.println("Sent message to " + (destName != null ? destName : ALERT_QUEUE) + ": " + message);
     }
 
     public void start() {
         // lms wants it or expects it
     }
 
-    private void closeResources() {
-        try {
-            if (session != null) session.close();
-            if (connection != null) connection.close();
-        } catch (JMSException ex) {
-            // ignore
-        }
-        session = null;
-        connection = null;
-    }
-
+    // The connection is shared, so it stays open for everyone else.
     @Override
     public void close() {
-        closeResources();
+        pool = null;
     }
 }
@@ -0,0 +1,228 @@
+package za.co.fourgrid.common.mq;
+
+import javax.jms.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * I send text messages to one destination without making the sender wait for the broker.
+ * <p>
+ * {@link #publish} puts a message in a bounded ring buffer and returns a future for it
+ * straight away. A single thread of my own takes the messages out in order and sends them
+ * in batches on a transacted session: a batch is committed once it has
+ * {@link Settings#batchSize} messages, or {@link Settings#batchMillis} after its first
+ * message, whichever comes first. So a burst of messages costs one commit per batch
+ * rather than a round trip per message, while a lone message waits at most
+ * {@code batchMillis}. Each message's future completes once its batch is committed (or
+ * exceptionally if the batch fails) on my thread, so whatever is chained onto it should
+ * be quick.
+ * <p>
+ * What happens when the buffer is full is up to the {@link Backpressure} setting.
+ */
+public final class AsyncMqPublisher implements AutoCloseable
+{
+    /**
+     * What to do with a message when the buffer is full.
+     */
+    public enum Backpressure
+    {
+        // Make the sender wait for room, for up to blockMillis, then reject the message.
+        BLOCK,
+        // Reject the message straight away.
+        REJECT,
+        // Make room by dropping (and failing) the oldest message in the buffer.
+        DROP_OLDEST
+    }
+
+    public record Settings( int capacity, int batchSize, long batchMillis, Backpressure backpressure, long blockMillis )
+    {
+        public static final Settings DEFAULT = new Settings( 1024, 64, 5, Backpressure.BLOCK, 1000 );
+
+        public Settings {
+            if( capacity < 1 || batchSize < 1 || batchMillis < 0 || blockMillis < 0 ){
+                throw new IllegalArgumentException( "Bad publisher settings: " + this );
+            }
+        }
+    }
+
+    public record Metrics( long sent, long batches, long rejected, long failed, int queued ){}
+
+    private record Pending( String text, CompletableFuture<Void> sent ){}
+
+    private static final long CLOSE_WAIT_MILLIS = 5000;
+
+    private final MqConnectionPool pool;
+
+    private final String destination;
+
+    private final MQ.DestinationType type;
+
+    private final Settings settings;
+
+    private final ArrayBlockingQueue<Pending> ring;
+
+    private final Thread sender;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    // Only used on the sender thread
+    private Session session;
+    private MessageProducer producer;
+
+    public AsyncMqPublisher( MqConnectionPool pool, String destination, MQ.DestinationType type ){
+        this( pool, destination, type, Settings.DEFAULT );
+    }
+
+    public AsyncMqPublisher( MqConnectionPool pool, String destination, MQ.DestinationType type, Settings settings ){
+        this.pool = pool;
+        this.destination = destination;
+        this.type = type;
+        this.settings = settings;
+        this.ring = new ArrayBlockingQueue<>( settings.capacity() );
+        sender = new Thread( this::sendBatches, "mq-publisher-" + destination );
+        sender.setDaemon( true );
+        sender.start();
+    }
+
+    /**
+     * Queue a message to be sent.
+     *
+     * @return a future that completes when the message has been committed to the broker,
+     *      or exceptionally if it couldn't be (with a {@code RejectedExecutionException}
+     *      if there was no room for it).
+     */
+    public CompletableFuture<Void> publish( String text ){
+        final Pending message = new Pending( text, new CompletableFuture<>() );
+        if( ! running ){
+            return reject( message, "Publisher to " + destination + " is closed" );
+        }
+        switch( settings.backpressure() ){
+            case BLOCK -> {
+                try{
+                    if( ! ring.offer( message, settings.blockMillis(), TimeUnit.MILLISECONDS )){
+                        return reject( message, "No room for the message after " + settings.blockMillis() + "ms" );
+                    }
+                }catch( InterruptedException e ){
+                    Thread.currentThread().interrupt();
+                    return reject( message, "Interrupted while waiting for room for the message" );
+                }
+            }
+            case REJECT -> {
+                if( ! ring.offer( message )) return reject( message, "No room for the message" );
+            }
+            case DROP_OLDEST -> {
+                while( ! ring.offer( message )){
+                    final Pending oldest = ring.poll();
+                    if( oldest != null ) reject( oldest, "Dropped to make room for a newer message" );
+                }
+            }
+        }
+        // If I was closed meanwhile, my thread may already have sent its last batch, so
+        // nobody would ever take the message out of the buffer.
+        if( ! running && ring.remove( message )){
+            return reject( message, "Publisher to " + destination + " is closed" );
+        }
+        return message.sent();
+    }
+
+    private CompletableFuture<Void> reject( Pending message, String why ){
+        rejected.incrementAndGet();
+        message.sent().completeExceptionally( new RejectedExecutionException( why ));
+        return message.sent();
+    }
+
+    public Metrics metrics(){
+        return new Metrics( sent.get(), batches.get(), rejected.get(), failed.get(), ring.size() );
+    }
+
+    private void sendBatches(){
+        final List<Pending> batch = new ArrayList<>( settings.batchSize() );
+        while( running || ! ring.isEmpty() ){
+            try{
+                final Pending first = ring.poll( 100, TimeUnit.MILLISECONDS );
+                if( first == null ) continue;
+                batch.add( first );
+                fill( batch );
+            }catch( InterruptedException e ){
+                break;
+            }
+            send( batch );
+            batch.clear();
+        }
+        final JMSException closed = new JMSException( "Publisher to " + destination + " closed before the message was sent" );
+        batch.forEach( m -> m.sent().completeExceptionally( closed ));
+        ring.forEach( m -> m.sent().completeExceptionally( closed ));
+        closeSession();
+    }
+
+    // Add messages to the batch until it is full or its time is up.
+    private void fill( List<Pending> batch ) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( settings.batchMillis() );
+        while( batch.size() < settings.batchSize() ){
+            ring.drainTo( batch, settings.batchSize() - batch.size() );
+            final long wait = deadline - System.nanoTime();
+            if( batch.size() >= settings.batchSize() || wait <= 0 || ! running ) return;
+            final Pending next = ring.poll( wait, TimeUnit.NANOSECONDS );
+            if( next == null ) return;
+            batch.add( next );
+        }
+    }
+
+    private void send( List<Pending> batch ){
+        try{
+            if( session == null ){
+                session = pool.createSession( true );
+                producer = session.createProducer( type == MQ.DestinationType.TOPIC
+                    ? session.createTopic( destination ) : session.createQueue( destination ));
+                producer.setDeliveryMode( DeliveryMode.NON_PERSISTENT );
+            }
+            for( Pending message : batch ){
+                producer.send( session.createTextMessage( message.text() ));
+            }
+            session.commit();
+        }catch( JMSException | RuntimeException e ){
+            // Nothing in the batch was sent; start again with a new session next time.
+            failed.addAndGet( batch.size() );
+            closeSession();
+            batch.forEach( m -> m.sent().completeExceptionally( e ));
+            return;
+        }
+        sent.addAndGet( batch.size() );
+        batches.incrementAndGet();
+        batch.forEach( m -> m.sent().complete( null ));
+    }
+
+    private void closeSession(){
+        if( session != null ) try{
+            session.close();    // rolls back anything uncommitted
+        }catch( JMSException ex ){
+            // it's going anyway
+        }
+        session = null;
+        producer = null;
+    }
+
+    /**
+     * Stop taking messages, and wait (for a while) for those already queued to be sent.
+     */
+    @Override
+    public void close(){
+        running = false;
+        try{
+            sender.join( CLOSE_WAIT_MILLIS );
+        }catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+        }
+        if( sender.isAlive() ) sender.interrupt();
+    }
+}
@@ -7,6 +7,9 @@ public interface MQ
 {
     static final String URL = "tcp://localhost:61616";
 
+    // The in-VM broker, which tests use
+    static final String TEST_URL = "vm://localhost?broker.persistent=false";
+
     static final String USER = "admin";
 
     static final String PASSWD = "admin";
@@ -0,0 +1,298 @@
+package za.co.fourgrid.common.mq;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import javax.jms.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * I share one connection to a message broker, and a pool of sessions on it, between all
+ * the senders and receivers in a JVM.
+ * <p>
+ * Opening a connection, or even a session or producer, costs a round trip to the broker,
+ * so doing it per message limits how fast we can send. A JMS connection can be shared
+ * by any number of threads, but a session (and its producers and consumers) can only be
+ * used by one thread at a time. So each thread borrows a session for as long as it needs
+ * it (see {@link #withSession}) and then hands it back for the next thread. Each session
+ * keeps the producers and consumers it has made, one per destination, so they are made
+ * once rather than per message.
+ * <p>
+ * Pooled queue consumers are created with a prefetch of zero: otherwise a consumer
+ * idling in the pool would be handed messages that a consumer on another session was
+ * waiting for. Listeners keep the broker's default prefetch, since ActiveMQ doesn't allow
+ * a prefetch of zero on an asynchronous consumer.
+ * If the connection fails it is dropped, along with its sessions, and the next use
+ * connects again.
+ */
+public final class MqConnectionPool implements MQ, AutoCloseable
+{
+    public static final int DEFAULT_MAX_IDLE_SESSIONS = 8;
+
+    private static final Map<String, MqConnectionPool> SHARED = new ConcurrentHashMap<>();
+
+    // Destination option for the pooled (synchronous) queue consumers; see above.
+    private static final String NO_PREFETCH = "?consumer.prefetchSize=0";
+
+    /**
+     * Work to do with a borrowed session.
+     */
+    public interface SessionWork<T>
+    {
+        T apply( PooledSession session ) throws JMSException;
+    }
+
+    /**
+     * A session borrowed from the pool, with its cached producers and consumers. Only the
+     * thread that borrowed it may use it.
+     */
+    public static final class PooledSession
+    {
+        private final Connection connection;
+        private final Session session;
+        private final Map<String, MessageProducer> producers = new HashMap<>();
+        private final Map<String, MessageConsumer> consumers = new HashMap<>();
+
+        private PooledSession( Connection connection ) throws JMSException {
+            this.connection = connection;
+            this.session = connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+        }
+
+        public Session session(){
+            return session;
+        }
+
+        /**
+         * @return the (non-persistent) producer for a destination, made the first time it is asked for.
+         */
+        public MessageProducer producer( String destination, DestinationType type ) throws JMSException {
+            final String key = key( destination, type );
+            MessageProducer producer = producers.get( key );
+            if( producer == null ){
+                producer = session.createProducer( destination( session, destination, type ));
+                producer.setDeliveryMode( DeliveryMode.NON_PERSISTENT );
+                producers.put( key, producer );
+            }
+            return producer;
+        }
+
+        /**
+         * @return the consumer for a destination, made the first time it is asked for.
+         */
+        public MessageConsumer consumer( String destination, DestinationType type ) throws JMSException {
+            final String key = key( destination, type );
+            MessageConsumer consumer = consumers.get( key );
+            if( consumer == null ){
+                consumer = session.createConsumer( destination( session,
+                        type == DestinationType.QUEUE ? destination + NO_PREFETCH : destination, type ));
+                consumers.put( key, consumer );
+            }
+            return consumer;
+        }
+
+        private void close(){
+            try{
+                session.close();
+            }catch( JMSException ex ){
+                // it's going anyway
+            }
+        }
+
+        private static String key( String destination, DestinationType type ){
+            return type + ":" + destination;
+        }
+    }
+
+    private final String brokerUrl;
+
+    private final int maxIdleSessions;
+
+    private final ConcurrentLinkedDeque<PooledSession> idle = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger connectionsOpened = new AtomicInteger();
+
+    private final AtomicInteger sessionsOpened = new AtomicInteger();
+
+    private volatile Connection connection;
+
+    private volatile boolean closed;
+
+    /**
+     * @param brokerUrl the broker to connect to; "TEST" means the in-VM broker.
+     */
+    public MqConnectionPool( String brokerUrl, int maxIdleSessions ){
+        this.brokerUrl = resolve( brokerUrl );
+        this.maxIdleSessions = maxIdleSessions;
+    }
+
+    /**
+     * @return the pool for a broker that everyone in this JVM shares.
+     */
+    public static MqConnectionPool forBroker( String brokerUrl ){
+        return SHARED.computeIfAbsent( resolve( brokerUrl ), url -> new MqConnectionPool( url, DEFAULT_MAX_IDLE_SESSIONS ));
+    }
+
+    private static String resolve( String brokerUrl ){
+        return "TEST".equals( brokerUrl ) ? TEST_URL : brokerUrl;
+    }
+
+    /**
+     * Connect to the broker now, if we aren't already, so that an unreachable broker is
+     * noticed early.
+     */
+    public MqConnectionPool connect() throws JMSException {
+        connection();
+        return this;
+    }
+
+    /**
+     * Borrow a session, do some work with it and give it back. If the work fails the
+     * session is thrown away rather than given back, since it may be broken.
+     */
+    public <T> T withSession( SessionWork<T> work ) throws JMSException {
+        final PooledSession session = borrow();
+        final T result;
+        try{
+            result = work.apply( session );
+        }catch( JMSException | RuntimeException e ){
+            session.close();
+            throw e;
+        }
+        giveBack( session );
+        return result;
+    }
+
+    /**
+     * Send a text message.
+     */
+    public void send( String destination, DestinationType type, String text ) throws JMSException {
+        withSession( s -> {
+            s.producer( destination, type ).send( s.session().createTextMessage( text ));
+            return null;
+        });
+    }
+
+    /**
+     * Receive a message from a queue, waiting at most {@code timeoutMs} milliseconds.
+     *
+     * @return the message, or null if none came in time.
+     */
+    public Message receive( String queue, long timeoutMs ) throws JMSException {
+        return withSession( s -> s.consumer( queue, DestinationType.QUEUE ).receive( timeoutMs ));
+    }
+
+    /**
+     * Deliver the messages sent to a destination to a listener. Listeners are called on
+     * the broker's threads, so each one gets a session of its own rather than one from
+     * the pool.
+     *
+     * @return the listener's session: close it to stop listening.
+     */
+    public Session listen( String destination, DestinationType type, MessageListener listener ) throws JMSException {
+        final Session session = createSession( false );
+        try{
+            session.createConsumer( destination( session, destination, type )).setMessageListener( listener );
+        }catch( JMSException e ){
+            session.close();
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * @return a session of its own on the shared connection, for a thread that keeps one
+     *      (e.g. to send transacted batches). The caller closes it.
+     */
+    public Session createSession( boolean transacted ) throws JMSException {
+        return connection().createSession( transacted, transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE );
+    }
+
+    private PooledSession borrow() throws JMSException {
+        final Connection current = connection();
+        PooledSession session;
+        while(( session = idle.pollFirst() ) != null ){
+            if( session.connection == current ) return session;
+            session.close();
+        }
+        sessionsOpened.incrementAndGet();
+        return new PooledSession( current );
+    }
+
+    private void giveBack( PooledSession session ){
+        // Most recently used first, so that the same few sessions stay warm.
+        if( closed || session.connection != connection || idle.size() >= maxIdleSessions ){
+            session.close();
+        }else{
+            idle.offerFirst( session );
+        }
+    }
+
+    private Connection connection() throws JMSException {
+        final Connection current = connection;
+        if( current != null ) return current;
+        synchronized( this ){
+            if( closed ) throw new javax.jms.IllegalStateException( "Connection pool for " + brokerUrl + " is closed" );
+            if( connection == null ){
+                final Connection fresh = new ActiveMQConnectionFactory( brokerUrl ).createConnection( USER, PASSWD );
+                try{
+                    fresh.setExceptionListener( e -> dropConnection( fresh ));
+                    fresh.start();
+                }catch( JMSException e ){
+                    fresh.close();
+                    throw e;
+                }
+                connectionsOpened.incrementAndGet();
+                connection = fresh;
+            }
+            return connection;
+        }
+    }
+
+    private synchronized void dropConnection( Connection failed ){
+        if( connection != failed ) return;
+        connection = null;
+        idle.clear();
+        try{
+            failed.close();
+        }catch( JMSException ex ){
+            // that's why we're dropping it
+        }
+    }
+
+    private static Destination destination( Session session, String name, DestinationType type ) throws JMSException {
+        return type == DestinationType.TOPIC ? session.createTopic( name ) : session.createQueue( name );
+    }
+
+    /**
+     * @return how many connections I have opened (more than one means the broker went away).
+     */
+    public int connectionsOpened(){
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return how many pooled sessions I have opened.
+     */
+    public int sessionsOpened(){
+        return sessionsOpened.get();
+    }
+
+    @Override
+    public synchronized void close(){
+        closed = true;
+        SHARED.remove( brokerUrl, this );
+        idle.forEach( PooledSession::close );
+        idle.clear();
+        if( connection != null ){
+            try{
+                connection.close();
+            }catch( JMSException ex ){
+                // meh
+            }
+            connection = null;
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package za.co.fourgrid.common.mq;
 
-import org.apache.activemq.ActiveMQConnectionFactory;
-
 import javax.jms.*;
 
 /**
@@ -10,47 +8,34 @@ import javax.jms.*;
  */
 public class MqTopicReceiver implements MQ
 {
-    private Connection connection;
+    private Session session;
 
-    private void closeConnection(){
-        if( connection != null ) try{
-            connection.close();
+    private void closeSession(){
+        if( session != null ) try{
+            session.close();
         }catch( JMSException ex ){
             // meh
         }
+        session = null;
     }
 
     // Accept DestinationType enum
     public MqTopicReceiver init(DestinationType destinationType, MessageListener listener) throws JMSException {
-        String url = "vm://localhost?broker.persistent=false";
-
         // Convert enum to actual topic name
         String topicName = (destinationType == DestinationType.TOPIC) ? STAGE_TOPIC : TEST_QUEUE;
 
-        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
-        connection = factory.createConnection(MQ.USER, MQ.PASSWD);
-        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination dest = session.createTopic(topicName);
-        MessageConsumer receiver = session.createConsumer(dest);
-        receiver.setMessageListener(listener);
-        connection.start();
+        session = MqConnectionPool.forBroker(TEST_URL).listen(topicName, DestinationType.TOPIC, listener);
         return this;
     }
 
     // Keep String overload for backwards compatibility if needed by lms
     public MqTopicReceiver init(String brokerUrl, MessageListener listener) throws JMSException {
-        String url = "TEST".equals(brokerUrl) ? "vm://localhost?broker.persistent=false" : brokerUrl;
-        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
-        connection = factory.createConnection(MQ.USER, MQ.PASSWD);
-        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination dest = session.createTopic(STAGE_TOPIC);
-        MessageConsumer receiver = session.createConsumer(dest);
-        receiver.setMessageListener(listener);
-        connection.start();
+        session = MqConnectionPool.forBroker(brokerUrl).listen(STAGE_TOPIC, DestinationType.TOPIC, listener);
         return this;
     }
 
+    // Only my own session: the connection is shared.
     public void close() {
-        closeConnection();
+        closeSession();
     }
 }
\ No newline at end of file
@@ -1,71 +1,72 @@
 package za.co.fourgrid.common.mq;
 
-import org.apache.activemq.ActiveMQConnectionFactory;
-
 import javax.jms.*;
 import javax.jms.IllegalStateException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * I am a small "maker" app for receiving MQ messages from the Stage Service.
  */
 public class MqTopicSender implements MQ
 {
-    private Connection connection;
-    private Session session;
+    private MqConnectionPool pool;
     private String topicName;
-
-    private void closeResources(){
-        try{
-            if( session != null ) session.close();
-            if( connection != null ) connection.close();
-        }catch( JMSException ex ){
-            // wut?
-        }
-        session = null;
-        connection = null;
-    }
+    private AsyncMqPublisher publisher;
 
     // Accept DestinationType enum
     public MqTopicSender init(DestinationType destinationType) throws JMSException {
-        // Use vm transport for tests, tcp for production
-        String url = "vm://localhost?broker.persistent=false";
-
         // Convert enum to actual topic name
         this.topicName = (destinationType == DestinationType.TOPIC) ? STAGE_TOPIC : TEST_QUEUE;
 
-        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
-        connection = factory.createConnection(USER, PASSWD);
-        connection.start();
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        // Use vm transport for tests, tcp for production
+        pool = MqConnectionPool.forBroker(TEST_URL).connect();
         return this;
     }
 
     // Keep String overload for backwards compatibility if needed by lms
     public MqTopicSender init(String brokerUrl) throws JMSException {
-        String url = "TEST".equals(brokerUrl) ? "vm://localhost?broker.persistent=false" : brokerUrl;
         this.topicName = STAGE_TOPIC; // default
 
-        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
-        connection = factory.createConnection(USER, PASSWD);
-        connection.start();
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        pool = MqConnectionPool.forBroker(brokerUrl).connect();
         return this;
     }
 
     public void send(String message) throws JMSException {
-        if (session == null) {
+        if (pool == null) {
             throw new IllegalStateException("Session not initialized. Call init() first.");
         }
-        Destination destination = session.createTopic(topicName != null ? topicName : STAGE_TOPIC);
-        MessageProducer producer = session.createProducer(destination);
-        producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
-        TextMessage textMessage = session.createTextMessage(message);
-        producer.send(textMessage);
-        System.out.println("Sent topic message: " + textMessage.getText());
-        producer.close();
+        // The shared pool keeps a producer per topic, so there's nothing to set up per message.
+        pool.send(topicName != null ? topicName : STAGE_TOPIC, DestinationType.TOPIC, message);
+        System.out.println("Sent topic message: " + message);
     }
 
-    public void close() {
-        closeResources();
+    /**
+     * Send a message without waiting for the broker: it is queued and sent in a batch
+     * with any others sent around the same time.
+     *
+     * @return a future that completes once the message has been sent.
+     */
+    public CompletableFuture<Void> sendAsync(String message) {
+        final AsyncMqPublisher async;
+        synchronized (this) {
+            if (pool == null) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Session not initialized. Call init() first."));
+            }
+            if (publisher == null) {
+                publisher = new AsyncMqPublisher(pool, topicName != null ? topicName : STAGE_TOPIC, DestinationType.TOPIC);
+            }
+            async = publisher;
+        }
+        // Outside the lock: publishing may wait for room in the publisher's buffer.
+        return async.publish(message);
+    }
+
+    // The connection is shared, so it stays open for everyone else.
+    public synchronized void close() {
+        if (publisher != null) {
+            publisher.close();
+            publisher = null;
+        }
+        pool = null;
     }
 }
\ No newline at end of file
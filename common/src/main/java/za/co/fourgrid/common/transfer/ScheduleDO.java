@@ -33,6 +33,11 @@ public class ScheduleDO
         loadSheddingDays = days;
     }
 
+    public ScheduleDO( LocalDate start, List<DayDO> days ){
+        startDate = start;
+        loadSheddingDays = days;
+    }
+
     public List<DayDO> getDays(){
         return loadSheddingDays;
     }
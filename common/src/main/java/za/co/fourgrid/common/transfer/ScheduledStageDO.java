@@ -0,0 +1,53 @@
+package za.co.fourgrid.common.transfer;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * I am a data/transfer object for a change of loadshedding stage that is to take effect
+ * at some time in the future.
+ */
+public class ScheduledStageDO
+{
+    // Assigned by the StageService when the change is scheduled
+    private long id;
+
+    private int stage;
+
+    // An ISO-8601 date-time with an offset, e.g. 2024-03-30T16:00:00+02:00
+    private String effectiveAt;
+
+    public ScheduledStageDO(){
+    }
+
+    @JsonCreator
+    public ScheduledStageDO(
+        @JsonProperty( value = "id" ) long id,
+        @JsonProperty( value = "stage" ) int stage,
+        @JsonProperty( value = "effectiveAt" ) String effectiveAt ){
+        this.id = id;
+        this.stage = stage;
+        this.effectiveAt = effectiveAt;
+    }
+
+    public long getId(){
+        return id;
+    }
+
+    public int getStage(){
+        return stage;
+    }
+
+    public String getEffectiveAt(){
+        return effectiveAt;
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduledStageDO{" +
+                "id=" + id +
+                ", stage=" + stage +
+                ", effectiveAt=" + effectiveAt +
+                '}';
+    }
+}
@@ -12,6 +12,10 @@ public class StageDO
 
     private int stage;
 
+    // Which change of stage this is: 0 for the stage the service started with, then one
+    // more for each change.
+    private long version;
+
     /**
      * Default constructor is needed otherwise the JSON mapper
      * can't create an instance.
@@ -24,10 +28,19 @@ public class StageDO
         stage = s;
     }
 
+    public StageDO( int s, long v ){
+        stage = s;
+        version = v;
+    }
+
     public int getStage(){
         return stage;
     }
 
+    public long getVersion(){
+        return version;
+    }
+
     public String asJson() {
         try {
             return JSON.writeValueAsString(this);
@@ -40,6 +53,7 @@ public class StageDO
     public String toString() {
         return "StageDO{" +
                 "stage=" + stage +
+                ", version=" + version +
                 '}';
     }
 }
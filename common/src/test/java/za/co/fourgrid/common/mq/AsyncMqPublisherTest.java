@@ -0,0 +1,216 @@
+package za.co.fourgrid.common.mq;
+
+import org.junit.jupiter.api.*;
+
+import javax.jms.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncMqPublisherTest
+{
+    private static final String QUEUE = "async-publisher-test-queue";
+
+    // Where the stalled publishers send, so their messages don't turn up in other tests
+    private static final String STALLED_QUEUE = "async-publisher-test-stalled";
+
+    private static final AsyncMqPublisher.Settings SMALL_BATCHES =
+        new AsyncMqPublisher.Settings( 1024, 50, 20, AsyncMqPublisher.Backpressure.BLOCK, 1000 );
+
+    private MqConnectionPool pool;
+
+    @BeforeEach
+    public void openPool() throws Exception {
+        pool = new MqConnectionPool( "TEST", MqConnectionPool.DEFAULT_MAX_IDLE_SESSIONS ).connect();
+    }
+
+    @AfterEach
+    public void closePool(){
+        pool.close();
+    }
+
+    @Test
+    public void sendsMessagesInOrderInBatches() throws Exception {
+        try( AsyncMqPublisher publisher = new AsyncMqPublisher( pool, QUEUE, MQ.DestinationType.QUEUE, SMALL_BATCHES )){
+            final List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for( int i = 0; i < 500; i++ ){
+                sent.add( publisher.publish( "message " + i ));
+            }
+            CompletableFuture.allOf( sent.toArray( new CompletableFuture<?>[ 0 ] )).get( 10, TimeUnit.SECONDS );
+
+            for( int i = 0; i < 500; i++ ){
+                final Message received = pool.receive( QUEUE, 5000 );
+                assertNotNull( received );
+                assertEquals( "message " + i, ((TextMessage) received).getText() );
+            }
+            assertEquals( 500, publisher.metrics().sent() );
+            assertTrue( publisher.metrics().batches() <= 500 / 2, publisher.metrics().batches() + " batches" );
+        }
+    }
+
+    @Test
+    public void aLoneMessageIsNotKeptWaitingForABatch() throws Exception {
+        final AsyncMqPublisher.Settings slowBatches =
+            new AsyncMqPublisher.Settings( 1024, 1000, 50, AsyncMqPublisher.Backpressure.BLOCK, 1000 );
+        try( AsyncMqPublisher publisher = new AsyncMqPublisher( pool, QUEUE, MQ.DestinationType.QUEUE, slowBatches )){
+            publisher.publish( "alone" ).get( 5, TimeUnit.SECONDS );
+            assertEquals( "alone", ((TextMessage) pool.receive( QUEUE, 5000 )).getText() );
+            assertEquals( 1, publisher.metrics().batches() );
+        }
+    }
+
+    @Test
+    public void rejectsMessagesWhenFull() throws Exception {
+        try( Stalled publisher = new Stalled( AsyncMqPublisher.Backpressure.REJECT, 0 )){
+            final CompletableFuture<Void> rejected = publisher.publisher.publish( "no room" );
+            assertTrue( rejected.isCompletedExceptionally() );
+            assertRejected( rejected );
+            assertEquals( 1, publisher.publisher.metrics().rejected() );
+        }
+    }
+
+    @Test
+    public void blocksForAWhileWhenFull() throws Exception {
+        try( Stalled publisher = new Stalled( AsyncMqPublisher.Backpressure.BLOCK, 100 )){
+            final long start = System.nanoTime();
+            final CompletableFuture<Void> rejected = publisher.publisher.publish( "no room" );
+            assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 100 ));
+            assertRejected( rejected );
+        }
+    }
+
+    @Test
+    public void dropsTheOldestMessageWhenFull() throws Exception {
+        try( Stalled publisher = new Stalled( AsyncMqPublisher.Backpressure.DROP_OLDEST, 0 )){
+            final CompletableFuture<Void> newest = publisher.publisher.publish( "newest" );
+            assertRejected( publisher.queued.get( 0 ));
+            publisher.release();
+            newest.get( 5, TimeUnit.SECONDS );
+            for( CompletableFuture<Void> kept : publisher.queued.subList( 1, publisher.queued.size() )){
+                kept.get( 5, TimeUnit.SECONDS );
+            }
+        }
+    }
+
+    @Test
+    public void sendsWhatIsQueuedWhenClosedAndThenTakesNoMore() throws Exception {
+        final AsyncMqPublisher publisher = new AsyncMqPublisher( pool, QUEUE, MQ.DestinationType.QUEUE, SMALL_BATCHES );
+        final CompletableFuture<Void> queued = publisher.publish( "last orders" );
+        publisher.close();
+        assertTrue( queued.isDone() );
+        queued.get();
+        assertRejected( publisher.publish( "too late" ));
+        assertEquals( "last orders", ((TextMessage) pool.receive( QUEUE, 5000 )).getText() );
+    }
+
+    @Test
+    public void messagesPublishedWhileClosingAreSentOrRejected() throws Exception {
+        for( int round = 0; round < 20; round++ ){
+            final AsyncMqPublisher publisher = new AsyncMqPublisher( pool, QUEUE, MQ.DestinationType.QUEUE, SMALL_BATCHES );
+            final List<CompletableFuture<Void>> sent = new CopyOnWriteArrayList<>();
+            final Thread sender = Thread.ofPlatform().start( () -> {
+                for( int i = 0; i < 1000; i++ ) sent.add( publisher.publish( "message " + i ));
+            });
+            publisher.close();
+            sender.join();
+            for( CompletableFuture<Void> message : sent ){
+                try{
+                    message.get( 5, TimeUnit.SECONDS );
+                }catch( ExecutionException e ){
+                    assertTrue( e.getCause() instanceof RejectedExecutionException || e.getCause() instanceof JMSException,
+                        String.valueOf( e.getCause() ));
+                }
+            }
+        }
+        while( pool.receive( QUEUE, 100 ) != null ){
+            // don't leave them for the other tests
+        }
+    }
+
+    /**
+     * Messages/sec sent one at a time through the pool, as the senders do, and through the
+     * async publisher.
+     */
+    @Test
+    @Tag( "benchmark" )
+    public void throughput() throws Exception {
+        final int messages = 20_000;
+        long start = System.nanoTime();
+        for( int i = 0; i < messages; i++ ){
+            pool.send( MQ.TEST_TOPIC, MQ.DestinationType.TOPIC, "message" );
+        }
+        final double oneAtATime = messages * 1e9 / ( System.nanoTime() - start );
+
+        try( AsyncMqPublisher publisher = new AsyncMqPublisher( pool, MQ.TEST_TOPIC, MQ.DestinationType.TOPIC )){
+            start = System.nanoTime();
+            CompletableFuture<Void> last = null;
+            for( int i = 0; i < messages; i++ ){
+                last = publisher.publish( "message" );
+            }
+            last.get( 30, TimeUnit.SECONDS );
+            final double batched = messages * 1e9 / ( System.nanoTime() - start );
+            System.out.printf( "Messages/sec: one at a time %.0f, batched %.0f (%d batches)%n",
+                oneAtATime, batched, publisher.metrics().batches() );
+            assertEquals( messages, publisher.metrics().sent() );
+            assertTrue( publisher.metrics().batches() < messages / 10, publisher.metrics().batches() + " batches" );
+            // The in-VM broker has no round trip for batching to save, so this is only a
+            // check that batching costs nothing; against a remote broker it gains much more.
+            assertTrue( batched > oneAtATime / 2, "batched " + batched + "/s, one at a time " + oneAtATime + "/s" );
+        }
+    }
+
+    private static void assertRejected( CompletableFuture<Void> sent ){
+        final ExecutionException e = assertThrows( ExecutionException.class, () -> sent.get( 5, TimeUnit.SECONDS ));
+        assertTrue( e.getCause() instanceof RejectedExecutionException, String.valueOf( e.getCause() ));
+    }
+
+    /**
+     * A publisher with a full buffer, whose sender is held up (by a slow callback on the
+     * first message it sends) until it is released.
+     */
+    private class Stalled implements AutoCloseable
+    {
+        static final int CAPACITY = 4;
+
+        final AsyncMqPublisher publisher;
+
+        final List<CompletableFuture<Void>> queued = new ArrayList<>();
+
+        private final CountDownLatch released = new CountDownLatch( 1 );
+
+        Stalled( AsyncMqPublisher.Backpressure backpressure, long blockMillis ) throws Exception {
+            publisher = new AsyncMqPublisher( pool, STALLED_QUEUE, MQ.DestinationType.QUEUE,
+                new AsyncMqPublisher.Settings( CAPACITY, 1, 0, backpressure, blockMillis ));
+            final CountDownLatch stalled = new CountDownLatch( 1 );
+            publisher.publish( "first" ).thenRun( () -> {
+                stalled.countDown();
+                try{
+                    released.await();
+                }catch( InterruptedException e ){
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue( stalled.await( 5, TimeUnit.SECONDS ));
+            for( int i = 0; i < CAPACITY; i++ ){
+                queued.add( publisher.publish( "queued " + i ));
+            }
+        }
+
+        void release(){
+            released.countDown();
+        }
+
+        @Override
+        public void close(){
+            release();
+            publisher.close();
+        }
+    }
+}
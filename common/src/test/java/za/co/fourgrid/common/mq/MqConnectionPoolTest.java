@@ -0,0 +1,165 @@
+package za.co.fourgrid.common.mq;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.jupiter.api.*;
+
+import javax.jms.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MqConnectionPoolTest
+{
+    private static final String QUEUE = "pool-test-queue";
+
+    private static final int MESSAGES = 2000;
+
+    private MqConnectionPool pool;
+
+    @BeforeEach
+    public void openPool(){
+        pool = new MqConnectionPool( "TEST", MqConnectionPool.DEFAULT_MAX_IDLE_SESSIONS );
+    }
+
+    @AfterEach
+    public void closePool(){
+        pool.close();
+    }
+
+    @Test
+    public void everyoneSharesThePoolForABroker(){
+        assertSame( MqConnectionPool.forBroker( "TEST" ), MqConnectionPool.forBroker( MQ.TEST_URL ));
+    }
+
+    @Test
+    public void sendingReusesOneSessionAndProducer() throws Exception {
+        final List<MessageProducer> producers = new ArrayList<>();
+        for( int i = 0; i < 100; i++ ){
+            pool.withSession( s -> producers.add( s.producer( MQ.TEST_TOPIC, MQ.DestinationType.TOPIC )));
+            pool.send( MQ.TEST_TOPIC, MQ.DestinationType.TOPIC, "message " + i );
+        }
+        assertEquals( 1, pool.connectionsOpened() );
+        assertEquals( 1, pool.sessionsOpened() );
+        assertTrue( producers.stream().allMatch( p -> p == producers.get( 0 )));
+    }
+
+    @Test
+    public void concurrentSendersEachBorrowTheirOwnSession() throws Exception {
+        final int threads = 4;
+        final List<Thread> senders = new ArrayList<>();
+        for( int t = 0; t < threads; t++ ){
+            senders.add( Thread.ofPlatform().start( () -> {
+                try{
+                    for( int i = 0; i < 250; i++ ){
+                        pool.send( QUEUE, MQ.DestinationType.QUEUE, "message" );
+                    }
+                }catch( JMSException e ){
+                    throw new RuntimeException( e );
+                }
+            }));
+        }
+        for( Thread sender : senders ) sender.join();
+
+        int received = 0;
+        while( pool.receive( QUEUE, 1000 ) != null ) received++;
+        assertEquals( threads * 250, received );
+        assertEquals( 1, pool.connectionsOpened() );
+        assertTrue( pool.sessionsOpened() <= threads, "opened " + pool.sessionsOpened() + " sessions" );
+    }
+
+    @Test
+    public void idleConsumersDontHoardMessages() throws Exception {
+        // Leave a consumer on the queue in an idle session...
+        assertNull( pool.receive( QUEUE, 10 ));
+        // ...and hold on to that session while another one receives.
+        pool.withSession( idle -> {
+            pool.send( QUEUE, MQ.DestinationType.QUEUE, "hello" );
+            final Message message = pool.receive( QUEUE, 5000 );
+            assertNotNull( message );
+            assertEquals( "hello", ((TextMessage) message).getText() );
+            return null;
+        });
+    }
+
+    @Test
+    public void listensToAQueue() throws Exception {
+        final BlockingQueue<String> heard = new LinkedBlockingQueue<>();
+        final Session listening = pool.listen( QUEUE, MQ.DestinationType.QUEUE, message -> {
+            try{
+                heard.add( ((TextMessage) message).getText() );
+            }catch( JMSException e ){
+                throw new RuntimeException( e );
+            }
+        });
+        try{
+            pool.send( QUEUE, MQ.DestinationType.QUEUE, "hello" );
+            assertEquals( "hello", heard.poll( 5, TimeUnit.SECONDS ));
+        }finally{
+            listening.close();
+        }
+    }
+
+    @Test
+    public void aClosedPoolRefusesWork(){
+        pool.close();
+        assertThrows( JMSException.class, () -> pool.send( QUEUE, MQ.DestinationType.QUEUE, "too late" ));
+    }
+
+    /**
+     * Messages/sec sent to the in-VM broker the way the senders used to (a connection per
+     * message, or a producer per message) and through the pool.
+     */
+    @Test
+    @Tag( "benchmark" )
+    public void throughput() throws Exception {
+        final ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory( MQ.TEST_URL );
+        pool.connect();     // keeps the broker up between the unpooled connections
+
+        final double perConnection = rate( MESSAGES / 10, () -> {
+            final Connection connection = factory.createConnection( MQ.USER, MQ.PASSWD );
+            connection.start();
+            final Session session = connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+            sendWithNewProducer( session );
+            connection.close();
+        });
+
+        final Connection connection = factory.createConnection( MQ.USER, MQ.PASSWD );
+        connection.start();
+        final Session session = connection.createSession( false, Session.AUTO_ACKNOWLEDGE );
+        final double perProducer = rate( MESSAGES, () -> sendWithNewProducer( session ));
+        connection.close();
+
+        final double pooled = rate( MESSAGES, () -> pool.send( MQ.TEST_TOPIC, MQ.DestinationType.TOPIC, "message" ));
+
+        System.out.printf( "Messages/sec: connection per message %.0f, producer per message %.0f, pooled %.0f%n",
+            perConnection, perProducer, pooled );
+        // Typically a thousand times faster than a connection per message, and tens of
+        // times faster than a producer per message.
+        assertTrue( pooled > 10 * perConnection );
+        assertTrue( pooled > 2 * perProducer );
+    }
+
+    private interface Send
+    {
+        void send() throws JMSException;
+    }
+
+    private static void sendWithNewProducer( Session session ) throws JMSException {
+        final MessageProducer producer = session.createProducer( session.createTopic( MQ.TEST_TOPIC ));
+        producer.setDeliveryMode( DeliveryMode.NON_PERSISTENT );
+        producer.send( session.createTextMessage( "message" ));
+        producer.close();
+    }
+
+    private static double rate( int messages, Send send ) throws JMSException {
+        // Warm up first, so that we're not timing class loading.
+        for( int i = 0; i < messages / 10; i++ ) send.send();
+        final long start = System.nanoTime();
+        for( int i = 0; i < messages; i++ ) send.send();
+        return messages * 1e9 / ( System.nanoTime() - start );
+    }
+}
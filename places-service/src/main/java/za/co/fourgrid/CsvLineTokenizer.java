@@ -0,0 +1,152 @@
+package za.co.fourgrid;
+
+/**
+ * I tokenize CSV lines in a single pass, without regular expressions and without
+ * splitting the line into an array of values.
+ * <p>
+ * I am told up front which columns are wanted. While scanning a line I only remember
+ * where each of those columns starts and ends; everything else is skipped over. A value
+ * is only copied out of the line when somebody asks for it with {@link #value(int)},
+ * so callers can reject a line (e.g. an unwanted feature type) without allocating anything.
+ * <p>
+ * Quoted values (<code>"Cape Town, City of"</code>) may contain commas, and a doubled quote
+ * (<code>""</code>) inside a quoted value stands for a single quote character. Unquoted values
+ * are trimmed of surrounding whitespace.
+ * <p>
+ * I keep state between calls, so an instance must not be shared between threads.
+ */
+final class CsvLineTokenizer
+{
+    private static final char SEPARATOR = ',';
+
+    private static final char QUOTE = '"';
+
+    private final int[] wantedColumns;
+
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final boolean[] quoted;
+
+    private CharSequence text;
+
+    /**
+     * @param columns the (zero-based) column numbers wanted, in ascending order.
+     */
+    CsvLineTokenizer( int... columns ){
+        for( int i = 1; i < columns.length; i++ ){
+            if( columns[ i ] <= columns[ i - 1 ] ){
+                throw new IllegalArgumentException( "Columns must be given in ascending order" );
+            }
+        }
+        wantedColumns = columns.clone();
+        starts = new int[ columns.length ];
+        ends = new int[ columns.length ];
+        quoted = new boolean[ columns.length ];
+    }
+
+    boolean tokenize( CharSequence aLine ){
+        return tokenize( aLine, 0, aLine.length() );
+    }
+
+    /**
+     * Scan the characters of {@code aText} from {@code from} (inclusive) to {@code to}
+     * (exclusive) as a single CSV line. Scanning stops as soon as the last wanted column
+     * has been found.
+     *
+     * @return true if the line contained all of the wanted columns.
+     */
+    boolean tokenize( CharSequence aText, int from, int to ){
+        text = aText;
+        int pos = from;
+        int column = 0;
+        int found = 0;
+        while( found < wantedColumns.length ){
+            final boolean isWanted = column == wantedColumns[ found ];
+            int start = pos;
+            int end;
+            final boolean isQuoted = pos < to && aText.charAt( pos ) == QUOTE;
+            if( isQuoted ){
+                start = ++pos;
+                while( pos < to ){
+                    if( aText.charAt( pos ) == QUOTE ){
+                        if( pos + 1 < to && aText.charAt( pos + 1 ) == QUOTE ){
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                end = pos;
+                while( pos < to && aText.charAt( pos ) != SEPARATOR ) pos++;
+            }else{
+                while( pos < to && aText.charAt( pos ) != SEPARATOR ) pos++;
+                end = pos;
+                while( start < end && aText.charAt( start ) <= ' ' ) start++;
+                while( end > start && aText.charAt( end - 1 ) <= ' ' ) end--;
+            }
+            if( isWanted ){
+                starts[ found ] = start;
+                ends[ found ] = end;
+                quoted[ found ] = isQuoted;
+                found++;
+            }
+            if( pos >= to ){
+                break;
+            }
+            pos++;      // step over the separator
+            column++;
+        }
+        return found == wantedColumns.length;
+    }
+
+    /**
+     * @param field the index of a wanted column in the list given to my constructor
+     *      (<em>not</em> the column number in the line).
+     */
+    String value( int field ){
+        final String raw = text.subSequence( starts[ field ], ends[ field ] ).toString();
+        return quoted[ field ] && raw.indexOf( QUOTE ) >= 0
+            ? raw.replace( "\"\"", "\"" )
+            : raw;
+    }
+
+    boolean valueEquals( int field, String aValue ){
+        return valueMatches( field, aValue, false );
+    }
+
+    boolean valueEqualsIgnoreCase( int field, String aValue ){
+        return valueMatches( field, aValue, true );
+    }
+
+    private boolean valueMatches( int field, String aValue, boolean ignoreCase ){
+        if( hasEscapedQuotes( field )){
+            final String v = value( field );
+            return ignoreCase ? v.equalsIgnoreCase( aValue ) : v.equals( aValue );
+        }
+        final int start = starts[ field ];
+        final int length = ends[ field ] - start;
+        if( length != aValue.length() ){
+            return false;
+        }
+        for( int i = 0; i < length; i++ ){
+            final char c = text.charAt( start + i );
+            final char d = aValue.charAt( i );
+            if( c != d
+                && ! ( ignoreCase && Character.toLowerCase( c ) == Character.toLowerCase( d ))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasEscapedQuotes( int field ){
+        if( ! quoted[ field ] ) return false;
+        for( int i = starts[ field ]; i < ends[ field ]; i++ ){
+            if( text.charAt( i ) == QUOTE ) return true;
+        }
+        return false;
+    }
+}
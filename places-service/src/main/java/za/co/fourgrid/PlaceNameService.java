@@ -1,19 +1,44 @@
 package za.co.fourgrid;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import io.javalin.Javalin;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
+import za.co.fourgrid.db.memory.PlacesSnapshot;
+import za.co.fourgrid.model.Location;
 import za.co.fourgrid.model.Places;
 import za.co.fourgrid.model.Town;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Collection;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * I provide a Place-names Service for places in South Africa.
@@ -26,8 +51,13 @@ import java.util.Properties;
  * Clients can request:
  * <ul>
  * <li>a list of available Provinces
- * <li>a list of all Towns/PlaceNameService in a given Province
+ * <li>a list of all Towns/PlaceNameService in a given Province, optionally a page at a time
+ *      ({@code ?after=&limit=}) or streamed as NDJSON ({@code ?format=ndjson})
  * <li>a list of all neighbourhoods in a given Town
+ * <li>towns whose names start with some text ({@code /search?q=...&limit=...&fuzzy=true}),
+ *      optionally allowing for one typing mistake
+ * <li>the towns nearest to a point ({@code /nearest?lat=...&lon=...&k=...}), with their
+ *      distances in km
  * </ul>
  * I understand the following command-line arguments:
  * <dl>
@@ -41,31 +71,116 @@ import java.util.Properties;
  * <dd>a file pathname referring to a CSV file of place-name data. This option
  *      <em>overrides</em> any value in a configuration file and will bypass any
  *      data-directory set via command-line or configuration.
+ * <dt>-s | --snapshot &lt;snapshotfile&gt;
+ * <dd>a file pathname for a binary snapshot of the parsed place-name data. If the snapshot
+ *      was made from the current CSV file I load it instead of parsing the CSV, otherwise
+ *      I parse the CSV and write a new snapshot. This option <em>overrides</em> any
+ *      {@code snapshot.file} value in a configuration file.
+ * </dl>
+ * The configuration file may also set {@code data.loader}: {@code reader} (the default)
+ * reads the CSV file line-by-line on a single thread, while {@code mapped} memory-maps
+ * the file and parses it in parallel chunks, which is much faster for very large files.
+ * <p>
+ * The place-name data can be reloaded without a restart by POSTing to {@code /admin/reload}
+ * (a GET there reports reload metrics) or, if the configuration sets {@code data.watch=true},
+ * automatically whenever the CSV data file changes. The {@code /admin} endpoints only
+ * answer requests from this host, unless the configuration sets {@code admin.remote=true}.
  */
 @Command( name = "PlaceNameService", mixinStandardHelpOptions = true )
 public class PlaceNameService implements Runnable {
 
     public static final int DEFAULT_PORT = 7000;
 
+    public static final int DEFAULT_SEARCH_RESULTS = 10;
+    public static final int MAX_SEARCH_RESULTS = 100;
+
+    public static final int DEFAULT_NEAREST_RESULTS = 1;
+    public static final int MAX_NEAREST_RESULTS = 100;
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final int MAX_PAGE_SIZE = 10000;
+
+    public static final String HEADER_NEXT_AFTER = "X-Next-After";
+    public static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+    public static final String FORMAT_NDJSON = "ndjson";
+
+    private static final long WATCH_SETTLE_MILLIS = 500;
+
+    private static final JsonFactory STREAMING_JSON = new ObjectMapper().getFactory();
+
     // Configuration keys
     public static final String CFG_CONFIG_FILE = "config.file";
     public static final String CFG_DATA_DIR = "data.dir";
     public static final String CFG_DATA_FILE = "data.file";
     public static final String CFG_SERVICE_PORT = "server.port";
+    public static final String CFG_DATA_LOADER = "data.loader";
+    public static final String CFG_SNAPSHOT_FILE = "snapshot.file";
+    public static final String CFG_DATA_WATCH = "data.watch";
+    public static final String CFG_ADMIN_REMOTE = "admin.remote";
+
+    // Values for CFG_DATA_LOADER
+    public static final String LOADER_READER = "reader";
+    public static final String LOADER_MAPPED = "mapped";
 
     public static void main( String[] args ){
-        final PlaceNameService svc = new PlaceNameService().initialise();
-        final int exitCode = new CommandLine( svc ).execute( args );
+        // The options must be parsed before the data is loaded, so initialise() is left to run().
+        final int exitCode = new CommandLine( new PlaceNameService() ).execute( args );
         System.exit( exitCode );
     }
 
+    private static final Logger LOG = LoggerFactory.getLogger( "places" );
+
     // Instance state
 
     private final Properties config;
 
     private Javalin server;
 
-    private Places places;
+    /**
+     * Everything the request handlers need from one load of the places data. Handlers read
+     * the current Dataset once per request. A reload builds a whole new Dataset off the
+     * request path and publishes it with a single volatile write, so requests are never
+     * paused and those in flight simply finish with the data they started with.
+     */
+    private record Dataset( Places places, PlacesJsonCache json ){
+        Dataset( Places places ){
+            this( places, new PlacesJsonCache( places ));
+        }
+    }
+
+    private volatile Dataset dataset;
+
+    /**
+     * A town the nearest-towns endpoint reports, with how far it is from the given point.
+     */
+    record NearbyTown( String name, String province, double latitude, double longitude, double distanceKm ){}
+
+    /**
+     * Where the places data being served was loaded from.
+     */
+    enum LoadSource { CSV, SNAPSHOT, GIVEN }
+
+    /**
+     * What the reload admin endpoint reports.
+     */
+    record ReloadMetrics( long reloads, long failures, long lastReloadMillis, String lastReloadAt, int towns,
+                          LoadSource loadedFrom ){}
+
+    private ScheduledExecutorService reloader;
+
+    private WatchService dataFileWatcher;
+
+    private final AtomicBoolean watchReloadPending = new AtomicBoolean();
+
+    private final AtomicLong reloads = new AtomicLong();
+
+    private final AtomicLong reloadFailures = new AtomicLong();
+
+    private volatile long lastReloadMillis;
+
+    private volatile Instant lastReloadAt;
+
+    private volatile LoadSource loadedFrom;
 
     // FIXME: Command-line options. I don't like that these are in the PlaceNameService
     // where they might easily get (mis)used instead of the access methods
@@ -86,6 +201,10 @@ public class PlaceNameService implements Runnable {
     @Option( names = { "-p", "--port" }, description = "Service network port number" )
     private int svcPort;
 
+    @Option( names = { "-s", "--snapshot" },
+             description = "Binary snapshot file of the parsed places data, used to speed up startup" )
+    private File snapshotFile;
+
     public PlaceNameService(){
         config = initConfig();
     }
@@ -101,6 +220,12 @@ public class PlaceNameService implements Runnable {
 
     public void stop(){
         server.stop();
+        reloader.shutdownNow();
+        if( dataFileWatcher != null ) try{
+            dataFileWatcher.close();
+        }catch( IOException ex ){
+            // we're stopping anyway
+        }
     }
 
     /**
@@ -110,8 +235,12 @@ public class PlaceNameService implements Runnable {
      */
     @VisibleForTesting
     PlaceNameService initialise(){
-        places = initPlacesDb();
+        dataset = new Dataset( initPlacesDb() );
         server = initHttpServer();
+        initReloading();
+        if( Boolean.parseBoolean( getConfig( CFG_DATA_WATCH ))){
+            watchDataFile();
+        }
         return this;
     }
 
@@ -120,13 +249,16 @@ public class PlaceNameService implements Runnable {
      */
     @VisibleForTesting
     PlaceNameService initialise( Places aPlaceDb ){
-        places = aPlaceDb;
+        dataset = new Dataset( aPlaceDb );
+        loadedFrom = LoadSource.GIVEN;
         server = initHttpServer();
+        initReloading();
         return this;
     }
 
     @Override
     public void run() {
+        initialise();
         server.start(servicePort());
         try {
             // block the main thread so the JVM stays alive while Javalin runs
@@ -160,7 +292,13 @@ public class PlaceNameService implements Runnable {
 
     private Places initPlacesDb(){
         try{
-            return new PlacesCsvParser().parseCsvSource( dataFile() );
+            final File snapshot = snapshotFile();
+            if( snapshot != null ){
+                return loadPlacesViaSnapshot( snapshot );
+            }
+            final Places parsed = parsePlaces();
+            loadedFrom = LoadSource.CSV;
+            return parsed;
         }catch( IOException ex ){
 
             // FIXME: We really ought to be able to do better than this!
@@ -169,16 +307,242 @@ public class PlaceNameService implements Runnable {
         }
     }
 
+    private Places parsePlaces() throws IOException {
+        final PlacesCsvParser parser = new PlacesCsvParser();
+        return LOADER_MAPPED.equalsIgnoreCase( getConfig( CFG_DATA_LOADER ))
+            ? parser.parseMappedCsvSource( dataFile() )
+            : parser.parseCsvSource( dataFile() );
+    }
+
+    /**
+     * Load the places from the snapshot file if it was made from the current CSV data file,
+     * otherwise parse the CSV file and (re)write the snapshot for next time.
+     */
+    private Places loadPlacesViaSnapshot( File snapshot ) throws IOException {
+        final File source = dataFile();
+        final Optional<Places> saved = PlacesSnapshot.read( snapshot, source );
+        if( saved.isPresent() ){
+            loadedFrom = LoadSource.SNAPSHOT;
+            return saved.get();
+        }
+        final PlacesSnapshot.Source parsedFrom = PlacesSnapshot.Source.of( source );
+        final Places parsed = parsePlaces();
+        try{
+            PlacesSnapshot.write( parsed, snapshot, parsedFrom );
+        }catch( IOException ex ){
+            // Not fatal: we have the data, we'll just have to parse again next time.
+            System.err.println( "Error writing snapshot file " + snapshot + ": " + ex.getMessage() );
+        }
+        loadedFrom = LoadSource.CSV;
+        return parsed;
+    }
+
     private Javalin initHttpServer(){
         return Javalin.create()
-            .get( "/provinces", ctx -> ctx.json( places.provinces() ))
-            .get( "/towns/{province}", this::getTowns );
+            .get( "/provinces", ctx -> sendCached( ctx, dataset.json().provinces() ))
+            .get( "/towns/{province}", this::getTowns )
+            .get( "/search", this::searchTowns )
+            .get( "/nearest", this::nearestTowns )
+            .before( "/admin/*", this::checkAdminAllowed )
+            .get( "/admin/reload", ctx -> ctx.json( reloadMetrics() ))
+            .post( "/admin/reload", ctx -> {
+                reload();
+                ctx.status( HttpStatus.ACCEPTED ).json( reloadMetrics() );
+            });
     }
 
+    /**
+     * Without parameters, I send the (cached) list of all the towns in the province.
+     * Clients dealing with large provinces can instead ask for pages of the list with
+     * {@code ?after=&limit=}, or have it streamed as newline-delimited JSON (NDJSON) with
+     * {@code ?format=ndjson} or {@code Accept: application/x-ndjson}.
+     */
     private Context getTowns( Context ctx ){
         final String province = ctx.pathParam( "province" );
-        final Collection<Town> towns = places.townsIn( province );
-        return ctx.json( towns );
+        final String after = ctx.queryParam( "after" );
+        final boolean ndjson = FORMAT_NDJSON.equals( ctx.queryParam( "format" ))
+            || String.valueOf( ctx.header( Header.ACCEPT )).contains( CONTENT_TYPE_NDJSON );
+        if( after == null && ctx.queryParam( "limit" ) == null && ! ndjson ){
+            return sendCached( ctx, dataset.json().townsIn( province ));
+        }
+
+        final int limit = ctx.queryParamAsClass( "limit", Integer.class )
+            .check( n -> n > 0 && ( ndjson || n <= MAX_PAGE_SIZE ),
+                "limit must be between 1 and " + MAX_PAGE_SIZE )
+            .getOrDefault( ndjson ? Integer.MAX_VALUE : DEFAULT_PAGE_SIZE );
+        final List<Town> page = dataset.places().townsIn( province, after, limit );
+        if( page.size() == limit ){
+            // There may be more: tell the client where to carry on from.
+            ctx.header( HEADER_NEXT_AFTER,
+                URLEncoder.encode( page.get( page.size() - 1 ).getName(), StandardCharsets.UTF_8 ));
+        }
+        return ndjson
+            ? streamNdjson( ctx, page )
+            : ctx.json( page );
+    }
+
+    /**
+     * Write each town as one line of JSON straight to the response, so that even very
+     * large lists of towns are never held in memory as a whole response.
+     */
+    private Context streamNdjson( Context ctx, List<Town> towns ){
+        ctx.contentType( CONTENT_TYPE_NDJSON );
+        try( JsonGenerator out = STREAMING_JSON.createGenerator( ctx.outputStream() )){
+            out.setRootValueSeparator( new SerializedString( "\n" ));
+            for( Town aTown : towns ){
+                out.writeObject( aTown );
+            }
+            out.writeRaw( '\n' );
+        }catch( IOException ex ){
+            throw new UncheckedIOException( ex );
+        }
+        return ctx;
+    }
+
+    private Context sendCached( Context ctx, PlacesJsonCache.Response response ){
+        ctx.header( Header.ETAG, response.etag() );
+        if( response.isMatchedBy( ctx.header( Header.IF_NONE_MATCH ))){
+            return ctx.status( HttpStatus.NOT_MODIFIED );
+        }
+        return ctx.contentType( ContentType.APPLICATION_JSON ).result( response.body() );
+    }
+
+    private Context searchTowns( Context ctx ){
+        final String query = ctx.queryParam( "q" );
+        if( query == null || query.isBlank() ){
+            return ctx.status( HttpStatus.BAD_REQUEST ).json( "Missing search query q" );
+        }
+        final int limit = ctx.queryParamAsClass( "limit", Integer.class )
+            .check( n -> n > 0 && n <= MAX_SEARCH_RESULTS, "limit must be between 1 and " + MAX_SEARCH_RESULTS )
+            .getOrDefault( DEFAULT_SEARCH_RESULTS );
+        final boolean fuzzy = ctx.queryParamAsClass( "fuzzy", Boolean.class ).getOrDefault( false );
+        return ctx.json( dataset.places().search( query, limit, fuzzy ));
+    }
+
+    private Context nearestTowns( Context ctx ){
+        final double lat = ctx.queryParamAsClass( "lat", Double.class )
+            .check( d -> Math.abs( d ) <= 90, "lat must be between -90 and 90" )
+            .get();
+        final double lon = ctx.queryParamAsClass( "lon", Double.class )
+            .check( d -> Math.abs( d ) <= 180, "lon must be between -180 and 180" )
+            .get();
+        final int k = ctx.queryParamAsClass( "k", Integer.class )
+            .check( n -> n > 0 && n <= MAX_NEAREST_RESULTS, "k must be between 1 and " + MAX_NEAREST_RESULTS )
+            .getOrDefault( DEFAULT_NEAREST_RESULTS );
+        final Places places = dataset.places();
+        return ctx.json( places.nearest( lat, lon, k ).stream()
+            .map( aTown -> nearbyTown( aTown, places.locationOf( aTown ), lat, lon ))
+            .toList() );
+    }
+
+    private static NearbyTown nearbyTown( Town aTown, Location where, double lat, double lon ){
+        return new NearbyTown( aTown.getName(), aTown.getProvince(),
+            where.latitude(), where.longitude(), where.distanceKmTo( lat, lon ));
+    }
+
+    private void initReloading(){
+        reloader = Executors.newSingleThreadScheduledExecutor( r -> {
+            final Thread t = new Thread( r, "places-reload" );
+            t.setDaemon( true );
+            return t;
+        });
+    }
+
+    /**
+     * Reload the places data from the data file (or snapshot) in the background, then swap
+     * it in. Reloads run one at a time, in the order they were asked for.
+     *
+     * @return a future that completes once the new data is being served, or completes
+     *      exceptionally if it could not be loaded (in which case the old data stays).
+     */
+    @VisibleForTesting
+    CompletableFuture<ReloadMetrics> reload(){
+        return scheduleReload( 0 );
+    }
+
+    private CompletableFuture<ReloadMetrics> scheduleReload( long delayMillis ){
+        final CompletableFuture<ReloadMetrics> done = new CompletableFuture<>();
+        reloader.schedule( () -> {
+            try{
+                reloadNow();
+                done.complete( reloadMetrics() );
+            }catch( RuntimeException ex ){
+                done.completeExceptionally( ex );
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS );
+        return done;
+    }
+
+    private void reloadNow(){
+        final long start = System.nanoTime();
+        try{
+            dataset = new Dataset( initPlacesDb() );
+        }catch( RuntimeException ex ){
+            reloadFailures.incrementAndGet();
+            throw ex;
+        }
+        lastReloadMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        lastReloadAt = Instant.now();
+        reloads.incrementAndGet();
+        LOG.info( "Reloaded {} places in {}ms", dataset.places().size(), lastReloadMillis );
+    }
+
+    private void checkAdminAllowed( Context ctx ){
+        if( ! ( Boolean.parseBoolean( getConfig( CFG_ADMIN_REMOTE )) || isLocal( ctx.ip() ))){
+            throw new ForbiddenResponse( "Admin endpoints are only available from the local host" );
+        }
+    }
+
+    @VisibleForTesting
+    static boolean isLocal( String address ){
+        try{
+            // An address literal, so there's no name lookup
+            return InetAddress.getByName( address ).isLoopbackAddress();
+        }catch( IOException ex ){
+            return false;
+        }
+    }
+
+    @VisibleForTesting
+    ReloadMetrics reloadMetrics(){
+        final Instant at = lastReloadAt;
+        return new ReloadMetrics( reloads.get(), reloadFailures.get(), lastReloadMillis,
+            at == null ? null : at.toString(), dataset.places().size(), loadedFrom );
+    }
+
+    /**
+     * Reload whenever the data file is created or modified. Editors and copy tools often
+     * write a file in several steps, so I wait for things to settle before reloading.
+     */
+    private void watchDataFile(){
+        final Path file = dataFile().toPath().toAbsolutePath();
+        try{
+            dataFileWatcher = file.getFileSystem().newWatchService();
+            file.getParent().register( dataFileWatcher,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+        }catch( IOException ex ){
+            System.err.println( "Cannot watch data file " + file + " for changes: " + ex.getMessage() );
+            return;
+        }
+        final Thread watcher = new Thread( () -> {
+            try{
+                while( true ){
+                    final WatchKey key = dataFileWatcher.take();
+                    for( WatchEvent<?> event : key.pollEvents() ){
+                        if( file.getFileName().equals( event.context() )
+                            && watchReloadPending.compareAndSet( false, true )){
+                            scheduleReload( WATCH_SETTLE_MILLIS )
+                                .whenComplete( ( m, ex ) -> watchReloadPending.set( false ));
+                        }
+                    }
+                    if( ! key.reset() ) return;
+                }
+            }catch( InterruptedException | ClosedWatchServiceException ex ){
+                // stopping
+            }
+        }, "places-data-watch" );
+        watcher.setDaemon( true );
+        watcher.start();
     }
 
     @VisibleForTesting
@@ -195,6 +559,13 @@ public class PlaceNameService implements Runnable {
             : new File( getConfig( CFG_DATA_FILE ));
     }
 
+    @VisibleForTesting
+    File snapshotFile(){
+        if( snapshotFile != null ) return snapshotFile;
+        final String configured = getConfig( CFG_SNAPSHOT_FILE );
+        return configured == null ? null : new File( configured );
+    }
+
     @VisibleForTesting
     File dataDir(){
         return dataDir != null
@@ -215,7 +586,7 @@ public class PlaceNameService implements Runnable {
 
     @VisibleForTesting
     Places getDb(){
-        return places;
+        return dataset.places();
     }
 
     private static Properties defaultConfig(){
@@ -225,6 +596,9 @@ public class PlaceNameService implements Runnable {
         System.out.println("User dir: " + System.getProperty( "user.dir" ));
         p.setProperty( CFG_DATA_FILE, System.getProperty( "user.dir" ) + "/resources/PlaceNamesZA2008.csv" );
         p.setProperty(CFG_SERVICE_PORT, Integer.toString(DEFAULT_PORT ));
+        p.setProperty( CFG_DATA_LOADER, LOADER_READER );
+        p.setProperty( CFG_DATA_WATCH, "false" );
+        p.setProperty( CFG_ADMIN_REMOTE, "false" );
         return p;
     }
 }
\ No newline at end of file
@@ -2,12 +2,23 @@ package za.co.fourgrid;
 
 import com.google.common.annotations.VisibleForTesting;
 import za.co.fourgrid.db.memory.PlacesDb;
+import za.co.fourgrid.model.Location;
 import za.co.fourgrid.model.Places;
 import za.co.fourgrid.model.Town;
 
 import java.io.*;
-import java.util.Objects;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
@@ -19,7 +30,8 @@ import static java.util.Objects.requireNonNull;
  * fklDisteral, Local Municipality, Sound, District Municipality, fklLocalMunic, Comments, Meaning</code>.
  * <p>
  * For the PlaceNameService we're only really interested in the <code>Name</code>,
- * <code>Feature_Description</code> and <code>Province</code> fields.
+ * <code>Feature_Description</code>, <code>Latitude</code>, <code>Longitude</code> and
+ * <code>Province</code> fields.
  * <code>Feature_Description</code> allows us to distinguish towns and urban areas from
  * (e.g.) rivers, mountains, etc. since our PlaceNameService is only concerned with occupied places.
  */
@@ -60,14 +72,110 @@ public class PlacesCsvParser
         }
     }
 
+    /**
+     * Parse a CSV file by memory-mapping it and parsing newline-aligned chunks of it in
+     * parallel on the common fork-join pool. For large files this scales with the number
+     * of cores instead of being limited by a single reader thread.
+     */
+    public Places parseMappedCsvSource( File csvFile ) throws IOException {
+        return parseMappedCsvSource( csvFile, DEFAULT_CHUNK_BYTES );
+    }
+
+    @VisibleForTesting
+    Places parseMappedCsvSource( File csvFile, long chunkBytes ) throws IOException {
+        requireNonNull( csvFile );
+        if( ! (csvFile.exists() && csvFile.canRead() )){
+            throw new FileNotFoundException( "Required CSV input file " + csvFile.getPath() + " not found." );
+        }
+        try( final FileChannel channel = FileChannel.open( csvFile.toPath(), StandardOpenOption.READ )){
+            final List<Callable<List<LocatedTown>>> tasks = new ArrayList<>();
+            for( Chunk aChunk : splitIntoChunks( channel, chunkBytes )){
+                tasks.add( () -> parseChunk( channel, aChunk ));
+            }
+            final Map<Town, Location> allTowns = new HashMap<>();
+            for( Future<List<LocatedTown>> result : ForkJoinPool.commonPool().invokeAll( tasks )){
+                for( LocatedTown aTown : result.get() ){
+                    allTowns.putIfAbsent( aTown.town(), aTown.location() );
+                }
+            }
+            return new PlacesDb( allTowns );
+        }catch( InterruptedException ex ){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while parsing " + csvFile.getPath() );
+        }catch( ExecutionException ex ){
+            if( ex.getCause() instanceof IOException ioEx ) throw ioEx;
+            throw new IOException( "Failed to parse " + csvFile.getPath(), ex.getCause() );
+        }
+    }
+
+    // Chunks must be small enough to map (and decode) into a single buffer, and big
+    // enough that there are only a few per core.
+    private static final long DEFAULT_CHUNK_BYTES = 16L * 1024 * 1024;
+    private static final long MAX_CHUNK_BYTES = 256L * 1024 * 1024;
+
+    private record Chunk( long start, long end ){}
+
+    /**
+     * Divide the file (less its header line) into chunks that each start at the beginning
+     * of a line and end just after a newline (or at the end of the file).
+     */
+    private static List<Chunk> splitIntoChunks( FileChannel channel, long chunkBytes ) throws IOException {
+        final long size = channel.size();
+        final long chunkSize = Math.max( 1, Math.min( chunkBytes, MAX_CHUNK_BYTES ));
+        final List<Chunk> chunks = new ArrayList<>();
+        long start = nextLineStart( channel, 0, size );     // skip the header line
+        while( start < size ){
+            final long end = nextLineStart( channel, Math.min( start + chunkSize, size ) - 1, size );
+            chunks.add( new Chunk( start, end ));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the position just after the first newline at or after {@code from}, or
+     *      {@code size} if there is no such newline.
+     */
+    private static long nextLineStart( FileChannel channel, long from, long size ) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate( 8192 );
+        long pos = from;
+        while( pos < size ){
+            buf.clear();
+            final int n = channel.read( buf, pos );
+            if( n <= 0 ) break;
+            for( int i = 0; i < n; i++ ){
+                if( buf.get( i ) == '\n' ) return pos + i + 1;
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private List<LocatedTown> parseChunk( FileChannel channel, Chunk aChunk ) throws IOException {
+        final MappedByteBuffer bytes = channel.map( FileChannel.MapMode.READ_ONLY, aChunk.start(), aChunk.end() - aChunk.start() );
+        // Chunks end on a newline, which never occurs inside a multi-byte UTF-8 sequence.
+        final CharBuffer text = StandardCharsets.UTF_8.decode( bytes );
+        final CsvLineTokenizer csv = newTokenizer();
+        final List<LocatedTown> towns = new ArrayList<>();
+        final int length = text.length();
+        int lineStart = 0;
+        while( lineStart < length ){
+            int lineEnd = lineStart;
+            while( lineEnd < length && text.charAt( lineEnd ) != '\n' ) lineEnd++;
+            final LocatedTown aTown = parseLine( csv, text, lineStart, lineEnd );
+            if( aTown != null ) towns.add( aTown );
+            lineStart = lineEnd + 1;
+        }
+        return towns;
+    }
+
     @VisibleForTesting
     Places parseDataLines( final LineNumberReader in ){
-        final Set<Town> allTowns = in.lines()
-            .map( this::splitLineIntoValues )
-            .filter(this::isLineAWantedFeature )
-                .filter(values -> VALID_PROVINCES.contains(values[PROVINCE_COLUMN].trim()))
-                .map( this::asTown )
-            .collect( Collectors.toSet() );
+        final CsvLineTokenizer csv = newTokenizer();
+        final Map<Town, Location> allTowns = in.lines()
+            .map( line -> parseLine( csv, line, 0, line.length() ))
+            .filter( Objects::nonNull )
+            .collect( Collectors.toMap( LocatedTown::town, LocatedTown::location, ( first, second ) -> first ));
         return new PlacesDb( allTowns );
     }
 
@@ -80,43 +188,110 @@ public class PlacesCsvParser
 
     static final int NAME_COLUMN = 0;
     static final int FEATURE_COLUMN = 1;
+    static final int LATITUDE_COLUMN = 3;
+    static final int LONGITUDE_COLUMN = 4;
     static final int PROVINCE_COLUMN = 7;
-    static final int MIN_COLUMNS = PROVINCE_COLUMN + 1;
-    static final int MAX_COLUMNS = 20;
+
+    // Positions of the wanted columns in the tokenizer (see newTokenizer())
+    private static final int NAME_FIELD = 0;
+    private static final int FEATURE_FIELD = 1;
+    private static final int LATITUDE_FIELD = 2;
+    private static final int LONGITUDE_FIELD = 3;
+    private static final int PROVINCE_FIELD = 4;
+
+    /**
+     * A tokenizer that picks out only the columns we use. Tokenizers keep state, so
+     * each thread doing the parsing needs one of its own.
+     */
+    CsvLineTokenizer newTokenizer(){
+        return new CsvLineTokenizer( NAME_COLUMN, FEATURE_COLUMN, LATITUDE_COLUMN, LONGITUDE_COLUMN, PROVINCE_COLUMN );
+    }
+
+    /**
+     * A Town parsed from a line, and where the line says it is.
+     */
+    record LocatedTown( Town town, Location location ){}
 
     @VisibleForTesting
-    boolean isLineAWantedFeature( String[] csvValue ){
-        try {
-            return WANTED_FEATURES.contains(csvValue[FEATURE_COLUMN].toLowerCase());
-        }
-        catch( ArrayIndexOutOfBoundsException ex ){
-            // Malformed line -- not enough columns
-            return false;
+    LocatedTown parseLine( String aCsvLine ){
+        return parseLine( newTokenizer(), aCsvLine, 0, aCsvLine.length() );
+    }
 
+    /**
+     * Parse the characters between {@code from} and {@code to} as a single CSV line.
+     * Only the name, province and coordinates of a wanted line are ever copied out of the input.
+     *
+     * @return the Town on the line, or null if the line is malformed, is not a wanted
+     *      feature or is not in a valid province.
+     */
+    LocatedTown parseLine( CsvLineTokenizer csv, CharSequence text, int from, int to ){
+        if( ! csv.tokenize( text, from, to )){
+            // Malformed line -- not enough columns
+            return null;
         }
+        if( ! isWantedFeature( csv )){
+            return null;
+        }
+        final String province = validProvince( csv );
+        return province == null
+            ? null
+            : new LocatedTown( asTown( csv.value( NAME_FIELD ), province ), location( csv ));
     }
 
-    @VisibleForTesting
-    String[] splitLineIntoValues( String aCsvLine ){
+    /**
+     * @return the location on the current line, or UNKNOWN if either coordinate is missing
+     *      or out of range.
+     */
+    private static Location location( CsvLineTokenizer csv ){
+        final double latitude = coordinate( csv, LATITUDE_FIELD, 90 );
+        final double longitude = coordinate( csv, LONGITUDE_FIELD, 180 );
+        return Double.isNaN( latitude ) || Double.isNaN( longitude )
+            ? Location.UNKNOWN
+            : new Location( latitude, longitude );
+    }
 
-        // There is a small potential problem with using String::split here:
-        // split() ignores empty values at the end of the input String rather than
-        // explicitly assigning null for those columns. This means we're never really
-        // sure how many columns (values) were actually in the input String. For the
-        // data we're currently dealing with, it doesn't matter -- the stuff we want
-        // is in the first few columns, but this could become a problem if the data
-        // format changes...
-        //
-        // The alternative to using split() would be to parse the input "by hand".
-        // That's tedious and error-prone.
+    /**
+     * @return the coordinate in the given field, or NaN if it is missing or out of range.
+     */
+    private static double coordinate( CsvLineTokenizer csv, int field, double maxDegrees ){
+        try{
+            final double degrees = Double.parseDouble( csv.value( field ));
+            return Math.abs( degrees ) <= maxDegrees ? degrees : Double.NaN;
+        }catch( NumberFormatException ex ){
+            return Double.NaN;
+        }
+    }
+
+    private boolean isWantedFeature( CsvLineTokenizer csv ){
+        for( String feature : WANTED_FEATURES ){
+            if( csv.valueEqualsIgnoreCase( FEATURE_FIELD, feature )) return true;
+        }
+        return false;
+    }
 
-        final String[] v = aCsvLine.trim().split( "," );
-        return v;
+    /**
+     * @return the canonical name of the province on the current line, or null if it is
+     *      not one of the VALID_PROVINCES.
+     */
+    private String validProvince( CsvLineTokenizer csv ){
+        for( String province : VALID_PROVINCES ){
+            if( csv.valueEquals( PROVINCE_FIELD, province )) return province;
+        }
+        return null;
     }
 
     @VisibleForTesting
-    Town asTown( String[] values ){
-        return new Town( values[NAME_COLUMN], values[PROVINCE_COLUMN]);
+    Town asTown( String aName, String aProvince ){
+        return new Town( intern( aName ), aProvince );
+    }
+
+    // Many places share a name ("Brakpan", "Riverside", ...), so while loading we make all
+    // the Towns with the same name share one String. The table is dropped with the parser.
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+
+    private String intern( String aName ){
+        final String existing = names.putIfAbsent( aName, aName );
+        return existing != null ? existing : aName;
     }
     //{/snip}
 }
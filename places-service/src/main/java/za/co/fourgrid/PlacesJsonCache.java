@@ -0,0 +1,83 @@
+package za.co.fourgrid;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import za.co.fourgrid.model.Places;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * I hold ready-to-send JSON for the place-name queries that don't take parameters:
+ * the list of provinces and the list of towns in each province.
+ * <p>
+ * The places data doesn't change once loaded, so there is no point in serialising the
+ * same collections for every request. I serialise everything once, when I am created,
+ * and give each response a strong ETag (a hash of its bytes) so that clients can make
+ * conditional requests.
+ */
+final class PlacesJsonCache
+{
+    record Response( byte[] body, String etag ){
+        /**
+         * @param ifNoneMatch the value of an If-None-Match request header, may be null.
+         * @return true if the client already has this response.
+         */
+        boolean isMatchedBy( String ifNoneMatch ){
+            if( ifNoneMatch == null ) return false;
+            for( String tag : ifNoneMatch.split( "," )){
+                final String t = tag.trim();
+                if( t.equals( "*" ) || t.equals( etag ) || t.equals( "W/" + etag )) return true;
+            }
+            return false;
+        }
+    }
+
+    private final Response provinces;
+
+    private final Map<String, Response> townsByProvince;
+
+    private final Response noTowns;
+
+    PlacesJsonCache( Places places ){
+        final ObjectMapper json = new ObjectMapper();
+        provinces = serialise( json, places.provinces() );
+        final Map<String, Response> towns = new HashMap<>();
+        for( String province : places.provinces() ){
+            towns.put( province, serialise( json, places.townsIn( province )));
+        }
+        townsByProvince = Collections.unmodifiableMap( towns );
+        noTowns = serialise( json, List.of() );
+    }
+
+    Response provinces(){
+        return provinces;
+    }
+
+    Response townsIn( String aProvince ){
+        return townsByProvince.getOrDefault( aProvince, noTowns );
+    }
+
+    private static Response serialise( ObjectMapper json, Object value ){
+        try{
+            final byte[] body = json.writeValueAsBytes( value );
+            return new Response( body, etagOf( body ));
+        }catch( JsonProcessingException ex ){
+            throw new IllegalStateException( "Cannot serialise places data", ex );
+        }
+    }
+
+    private static String etagOf( byte[] body ){
+        try{
+            final byte[] hash = MessageDigest.getInstance( "SHA-256" ).digest( body );
+            return "\"" + HexFormat.of().formatHex( hash, 0, 16 ) + "\"";
+        }catch( NoSuchAlgorithmException ex ){
+            throw new IllegalStateException( ex );     // every JVM must provide SHA-256
+        }
+    }
+}
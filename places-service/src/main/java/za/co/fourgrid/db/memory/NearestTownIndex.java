@@ -0,0 +1,214 @@
+package za.co.fourgrid.db.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import za.co.fourgrid.model.Town;
+
+/**
+ * I am a spatial index (a k-d tree) over the towns whose location is known, built once
+ * when the data is loaded, for answering "which towns are nearest to this point?"
+ * <p>
+ * Every town is stored as a point on the unit sphere, so straight-line (chord) distances
+ * between points rank towns exactly as great-circle distances do, with no trouble at the
+ * poles or the date line. The tree is implicit: the points live in primitive arrays, and
+ * the node for the range {@code [lo, hi)} is the point in the middle of that range, with
+ * the points before it on one side of its splitting plane and those after it on the other.
+ * Each point keeps the index of its town in the (unchanged) array of all the towns.
+ */
+final class NearestTownIndex
+{
+    private static final int DIMENSIONS = 3;
+
+    // Ranges this small are scanned rather than searched.
+    private static final int LEAF_SIZE = 8;
+
+    private final Town[] towns;
+
+    // The town at points[ DIMENSIONS * i ... ] is towns[ ids[ i ] ]
+    private final int[] ids;
+
+    private final double[] points;
+
+    // The splitting axis of the node in the middle of each range
+    private final byte[] axes;
+
+    /**
+     * @param latitudes the latitude of each of the towns, or NaN if unknown.
+     * @param longitudes the longitude of each of the towns, or NaN if unknown.
+     */
+    NearestTownIndex( Town[] allTowns, double[] latitudes, double[] longitudes ){
+        towns = allTowns;
+        int located = 0;
+        for( int i = 0; i < allTowns.length; i++ ){
+            if( ! ( Double.isNaN( latitudes[ i ] ) || Double.isNaN( longitudes[ i ] ))) located++;
+        }
+        ids = new int[ located ];
+        points = new double[ DIMENSIONS * located ];
+        axes = new byte[ located ];
+        for( int i = 0, n = 0; i < allTowns.length; i++ ){
+            if( Double.isNaN( latitudes[ i ] ) || Double.isNaN( longitudes[ i ] )) continue;
+            ids[ n ] = i;
+            toUnitVector( latitudes[ i ], longitudes[ i ], points, DIMENSIONS * n++ );
+        }
+        build( 0, ids.length );
+    }
+
+    int size(){
+        return ids.length;
+    }
+
+    /**
+     * @return at most {@code k} towns, nearest first.
+     */
+    List<Town> nearest( double latitude, double longitude, int k ){
+        if( k <= 0 || ids.length == 0 ){
+            return List.of();
+        }
+        final double[] query = new double[ DIMENSIONS ];
+        toUnitVector( latitude, longitude, query, 0 );
+        final Nearest found = new Nearest( Math.min( k, ids.length ));
+        search( 0, ids.length, query, found );
+        final List<Town> result = new ArrayList<>( found.size );
+        for( int i = 0; i < found.size; i++ ){
+            result.add( towns[ ids[ found.indices[ i ] ] ] );
+        }
+        return result;
+    }
+
+    private void build( int lo, int hi ){
+        if( hi - lo <= LEAF_SIZE ){
+            return;
+        }
+        final int axis = widestAxis( lo, hi );
+        final int mid = ( lo + hi ) >>> 1;
+        select( lo, hi - 1, mid, axis );
+        axes[ mid ] = (byte) axis;
+        build( lo, mid );
+        build( mid + 1, hi );
+    }
+
+    private void search( int lo, int hi, double[] query, Nearest found ){
+        if( hi - lo <= LEAF_SIZE ){
+            for( int i = lo; i < hi; i++ ){
+                found.offer( i, distanceSquared( i, query ));
+            }
+            return;
+        }
+        final int mid = ( lo + hi ) >>> 1;
+        found.offer( mid, distanceSquared( mid, query ));
+        final int axis = axes[ mid ];
+        final double offset = query[ axis ] - points[ DIMENSIONS * mid + axis ];
+        if( offset < 0 ){
+            search( lo, mid, query, found );
+            if( offset * offset < found.worst() ) search( mid + 1, hi, query, found );
+        }else{
+            search( mid + 1, hi, query, found );
+            if( offset * offset < found.worst() ) search( lo, mid, query, found );
+        }
+    }
+
+    private int widestAxis( int lo, int hi ){
+        int widest = 0;
+        double widestSpread = -1;
+        for( int axis = 0; axis < DIMENSIONS; axis++ ){
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for( int i = lo; i < hi; i++ ){
+                final double v = points[ DIMENSIONS * i + axis ];
+                if( v < min ) min = v;
+                if( v > max ) max = v;
+            }
+            if( max - min > widestSpread ){
+                widestSpread = max - min;
+                widest = axis;
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Quickselect: rearrange the points between {@code left} and {@code right} (inclusive)
+     * so that the point at {@code nth} is the one that would be there if they were sorted
+     * along {@code axis}.
+     */
+    private void select( int left, int right, int nth, int axis ){
+        while( left < right ){
+            final double pivot = points[ DIMENSIONS * (( left + right ) >>> 1 ) + axis ];
+            int i = left;
+            int j = right;
+            while( i <= j ){
+                while( points[ DIMENSIONS * i + axis ] < pivot ) i++;
+                while( points[ DIMENSIONS * j + axis ] > pivot ) j--;
+                if( i <= j ){
+                    swap( i++, j-- );
+                }
+            }
+            if( nth <= j ){
+                right = j;
+            }else if( nth >= i ){
+                left = i;
+            }else{
+                return;
+            }
+        }
+    }
+
+    private void swap( int i, int j ){
+        final int id = ids[ i ];
+        ids[ i ] = ids[ j ];
+        ids[ j ] = id;
+        for( int d = 0; d < DIMENSIONS; d++ ){
+            final double v = points[ DIMENSIONS * i + d ];
+            points[ DIMENSIONS * i + d ] = points[ DIMENSIONS * j + d ];
+            points[ DIMENSIONS * j + d ] = v;
+        }
+    }
+
+    private double distanceSquared( int i, double[] query ){
+        final double dx = points[ DIMENSIONS * i ] - query[ 0 ];
+        final double dy = points[ DIMENSIONS * i + 1 ] - query[ 1 ];
+        final double dz = points[ DIMENSIONS * i + 2 ] - query[ 2 ];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static void toUnitVector( double latitude, double longitude, double[] into, int at ){
+        final double lat = Math.toRadians( latitude );
+        final double lon = Math.toRadians( longitude );
+        into[ at ] = Math.cos( lat ) * Math.cos( lon );
+        into[ at + 1 ] = Math.cos( lat ) * Math.sin( lon );
+        into[ at + 2 ] = Math.sin( lat );
+    }
+
+    /**
+     * The best candidates found so far, kept in order of distance. k is small, so an
+     * insertion into a sorted array beats a heap.
+     */
+    private static final class Nearest
+    {
+        final int[] indices;
+        final double[] distances;
+        int size;
+
+        Nearest( int k ){
+            indices = new int[ k ];
+            distances = new double[ k ];
+        }
+
+        double worst(){
+            return size < indices.length ? Double.POSITIVE_INFINITY : distances[ size - 1 ];
+        }
+
+        void offer( int index, double distance ){
+            if( distance >= worst() ) return;
+            int i = size < indices.length ? size++ : size - 1;
+            while( i > 0 && distances[ i - 1 ] > distance ){
+                indices[ i ] = indices[ i - 1 ];
+                distances[ i ] = distances[ i - 1 ];
+                i--;
+            }
+            indices[ i ] = index;
+            distances[ i ] = distance;
+        }
+    }
+}
@@ -1,45 +1,179 @@
 package za.co.fourgrid.db.memory;
 
-import java.util.Collection;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.*;
+import java.util.function.ToDoubleFunction;
 
+import za.co.fourgrid.model.Location;
 import za.co.fourgrid.model.Places;
 import za.co.fourgrid.model.Town;
 
 /**
- * /*
  * In-memory implementation of the Places interface.
  *
  * This implementation is suitable for testing or for applications where the
  * dataset is small and can be entirely loaded into memory.
+ * <p>
+ * The data never changes once loaded, so I sort and partition the towns by province when
+ * I am constructed and hand out shared, read-only views of that index. Neither of the
+ * Places queries has to scan (or copy) the whole dataset.
+ * <p>
+ * Towns don't hold their own coordinates. I keep them in arrays parallel to the sorted
+ * towns, so a town without a known location costs two NaNs rather than an object.
  */
 public class PlacesDb implements Places
 {
-    private final Set<Town> towns = new TreeSet<>();
+    // All the towns, ordered by province then name
+    private final Town[] towns;
 
+    // Where towns[ i ] is: NaN if unknown
+    private final double[] latitudes;
+
+    private final double[] longitudes;
+
+    private final Map<String, List<Town>> townsByProvince;
+
+    private final List<String> provinces;
+
+    private final TownNameIndex names;
+
+    private final NearestTownIndex locations;
+
+    /**
+     * @param places towns whose locations are not known.
+     */
     public PlacesDb( Set<Town> places ){
-        towns.addAll( places );
+        this( sorted( places ), Map.of() );
+    }
+
+    /**
+     * @param places towns, and where each of them is.
+     */
+    public PlacesDb( Map<Town, Location> places ){
+        this( sorted( places.keySet() ), places );
+    }
+
+    private PlacesDb( Town[] sortedTowns, Map<Town, Location> locations ){
+        this( sortedTowns,
+            coordinates( sortedTowns, locations, Location::latitude ),
+            coordinates( sortedTowns, locations, Location::longitude ));
+    }
+
+    /**
+     * For loaders that have the towns in order already, and their coordinates in
+     * primitive arrays. I take ownership of the arrays.
+     *
+     * @param sortedTowns towns, ordered by province then name, with no duplicates.
+     * @param latitudes the latitude of each town, or NaN if unknown.
+     * @param longitudes the longitude of each town, or NaN if unknown.
+     * @throws IllegalArgumentException if the towns are out of order or duplicated, or
+     *      the arrays are not all the same length.
+     */
+    PlacesDb( Town[] sortedTowns, double[] latitudes, double[] longitudes ){
+        if( latitudes.length != sortedTowns.length || longitudes.length != sortedTowns.length ){
+            throw new IllegalArgumentException( "Expected a location for each of the " + sortedTowns.length + " towns" );
+        }
+        for( int i = 1; i < sortedTowns.length; i++ ){
+            if( sortedTowns[ i - 1 ].compareTo( sortedTowns[ i ] ) >= 0 ){
+                throw new IllegalArgumentException( "Towns out of order at " + sortedTowns[ i ] );
+            }
+        }
+        towns = sortedTowns;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        townsByProvince = indexByProvince( towns );
+        provinces = List.copyOf( townsByProvince.keySet() );
+        names = new TownNameIndex( towns );
+        locations = new NearestTownIndex( towns, latitudes, longitudes );
     }
 
     @Override
     public Collection<String> provinces(){
-        return towns.parallelStream()
-            .map( town -> town.getProvince() )
-            .collect( Collectors.toSet() );
+        return provinces;
     }
 
     @Override
     public Collection<Town> townsIn( String aProvince ){
-        return towns.parallelStream()
-            .filter( aTown -> aTown.getProvince().equals( aProvince ))
-            .collect( Collectors.toSet() );
+        return townsByProvince.getOrDefault( aProvince, Collections.emptyList() );
+    }
+
+    @Override
+    public List<Town> townsIn( String aProvince, String after, int limit ){
+        final List<Town> all = townsByProvince.getOrDefault( aProvince, Collections.emptyList() );
+        final int from = after == null ? 0 : firstNameAfter( all, after );
+        return all.subList( from, (int) Math.min( all.size(), (long) from + Math.max( 0, limit )));
+    }
+
+    @Override
+    public Collection<Town> search( String aQuery, int limit, boolean fuzzy ){
+        return names.search( aQuery, limit, fuzzy );
+    }
+
+    @Override
+    public List<Town> nearest( double latitude, double longitude, int k ){
+        return locations.nearest( latitude, longitude, k );
+    }
+
+    @Override
+    public Location locationOf( Town aTown ){
+        final int i = Arrays.binarySearch( towns, aTown );
+        return i < 0 || Double.isNaN( latitudes[ i ] ) || Double.isNaN( longitudes[ i ] )
+            ? Location.UNKNOWN
+            : new Location( latitudes[ i ], longitudes[ i ] );
     }
 
     @Override
     public int size(){
-        return towns.size();
+        return towns.length;
     }
 
-}
\ No newline at end of file
+    private static Town[] sorted( Set<Town> distinctTowns ){
+        final Town[] sorted = distinctTowns.toArray( new Town[ 0 ] );
+        Arrays.sort( sorted );
+        return sorted;
+    }
+
+    private static double[] coordinates( Town[] towns, Map<Town, Location> locations, ToDoubleFunction<Location> coordinate ){
+        final double[] coordinates = new double[ towns.length ];
+        for( int i = 0; i < towns.length; i++ ){
+            coordinates[ i ] = coordinate.applyAsDouble( locations.getOrDefault( towns[ i ], Location.UNKNOWN ));
+        }
+        return coordinates;
+    }
+
+    /**
+     * @return the index of the first town in {@code sortedTowns} whose name comes after
+     *      {@code aName}, or the size of the list if there is none.
+     */
+    private static int firstNameAfter( List<Town> sortedTowns, String aName ){
+        int low = 0;
+        int high = sortedTowns.size();
+        while( low < high ){
+            final int mid = ( low + high ) >>> 1;
+            if( sortedTowns.get( mid ).getName().compareTo( aName ) <= 0 ){
+                low = mid + 1;
+            }else{
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The towns are ordered by province, then by name, so each province is a contiguous,
+     * sorted run of the array that I can hand out as a read-only view.
+     */
+    private static Map<String, List<Town>> indexByProvince( Town[] sortedTowns ){
+        final Map<String, List<Town>> index = new TreeMap<>();
+        final List<Town> all = Arrays.asList( sortedTowns );
+        int start = 0;
+        for( int i = 1; i <= sortedTowns.length; i++ ){
+            if( i == sortedTowns.length
+                || ! sortedTowns[ i ].getProvince().equals( sortedTowns[ start ].getProvince() )){
+                index.put( sortedTowns[ start ].getProvince(),
+                    Collections.unmodifiableList( all.subList( start, i )));
+                start = i;
+            }
+        }
+        return Collections.unmodifiableMap( index );
+    }
+}
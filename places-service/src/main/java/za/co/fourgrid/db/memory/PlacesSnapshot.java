@@ -0,0 +1,211 @@
+package za.co.fourgrid.db.memory;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+import za.co.fourgrid.model.Location;
+import za.co.fourgrid.model.Places;
+import za.co.fourgrid.model.Town;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * I save a Places database to a compact binary snapshot file, and load it back again,
+ * so that a restarting PlaceNameService doesn't have to parse its CSV source every time.
+ * <p>
+ * The file layout (all numbers big-endian) is:
+ * <pre>
+ *   header:   magic, version, source length (long), source modification time (long),
+ *             source checksum (long), string count, town count, string-bytes length,
+ *             body checksum
+ *   strings:  (string count + 1) int offsets into the string bytes, then the UTF-8 bytes
+ *             of every distinct name and province
+ *   towns:    (name index, province index) int pairs, indexing the string table, each
+ *             followed by the town's latitude and longitude (doubles, NaN if unknown)
+ * </pre>
+ * The header records the length, modification time and CRC32C of the CSV file the
+ * snapshot was made from. If the CSV file still has that length and modification time,
+ * it is taken to be unchanged; only if its time differs is it checksummed, so that a
+ * file that was touched or copied without being changed still matches. A snapshot of a
+ * different CSV file (or one which is damaged in any way) is simply ignored, and the
+ * caller should fall back to parsing.
+ */
+public final class PlacesSnapshot
+{
+    static final int MAGIC = 0x504C4353;    // "PLCS"
+    static final int VERSION = 3;
+
+    private static final int TOWN_BYTES = 4 + 4 + 8 + 8;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 4 + 4;
+
+    /**
+     * What a snapshot records about the CSV file it was made from.
+     */
+    public record Source( long length, long lastModified, long checksum )
+    {
+        /**
+         * Take the details of a CSV file, before parsing it: if it changes while it is
+         * being parsed, the snapshot will then look out of date rather than current.
+         */
+        public static Source of( File csvFile ) throws IOException {
+            return new Source( csvFile.length(), csvFile.lastModified(), checksumOf( csvFile ));
+        }
+    }
+
+    private PlacesSnapshot(){
+    }
+
+    /**
+     * @return a CRC32C checksum of the whole content of {@code aFile}.
+     */
+    public static long checksumOf( File aFile ) throws IOException {
+        try( final FileChannel channel = FileChannel.open( aFile.toPath(), StandardOpenOption.READ )){
+            final CRC32C crc = new CRC32C();
+            final long size = channel.size();
+            for( long pos = 0; pos < size; pos += Integer.MAX_VALUE ){
+                final long length = Math.min( Integer.MAX_VALUE, size - pos );
+                crc.update( channel.map( FileChannel.MapMode.READ_ONLY, pos, length ));
+            }
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * Write {@code places} to {@code snapshotFile}, replacing any existing file atomically.
+     *
+     * @param source the CSV file the Places came from.
+     */
+    public static void write( Places places, File snapshotFile, Source source ) throws IOException {
+        requireNonNull( places );
+        final Map<String, Integer> stringIds = new LinkedHashMap<>();
+        final List<Town> towns = new ArrayList<>( places.size() );
+        final List<int[]> townIds = new ArrayList<>( places.size() );
+        for( String province : places.provinces() ){
+            final int provinceId = stringIds.computeIfAbsent( province, k -> stringIds.size() );
+            for( Town aTown : places.townsIn( province )){
+                final int nameId = stringIds.computeIfAbsent( aTown.getName(), k -> stringIds.size() );
+                towns.add( aTown );
+                townIds.add( new int[]{ nameId, provinceId } );
+            }
+        }
+
+        final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        final int[] offsets = new int[ stringIds.size() + 1 ];
+        int i = 0;
+        for( String aString : stringIds.keySet() ){
+            offsets[ i++ ] = stringBytes.size();
+            stringBytes.writeBytes( aString.getBytes( StandardCharsets.UTF_8 ));
+        }
+        offsets[ i ] = stringBytes.size();
+
+        final ByteBuffer body = ByteBuffer.allocate( 4 * offsets.length + stringBytes.size() + TOWN_BYTES * towns.size() );
+        for( int offset : offsets ) body.putInt( offset );
+        body.put( stringBytes.toByteArray() );
+        for( int t = 0; t < towns.size(); t++ ){
+            final Location where = places.locationOf( towns.get( t ));
+            body.putInt( townIds.get( t )[ 0 ] ).putInt( townIds.get( t )[ 1 ] )
+                .putDouble( where.latitude() ).putDouble( where.longitude() );
+        }
+        body.flip();
+        final CRC32C bodyCrc = new CRC32C();
+        bodyCrc.update( body.duplicate() );
+
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES )
+            .putInt( MAGIC )
+            .putInt( VERSION )
+            .putLong( source.length() )
+            .putLong( source.lastModified() )
+            .putLong( source.checksum() )
+            .putInt( stringIds.size() )
+            .putInt( towns.size() )
+            .putInt( stringBytes.size() )
+            .putInt( (int) bodyCrc.getValue() )
+            .flip();
+
+        final File tmp = new File( snapshotFile.getPath() + ".tmp" );
+        try( final FileChannel out = FileChannel.open( tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE )){
+            while( header.hasRemaining() ) out.write( header );
+            while( body.hasRemaining() ) out.write( body );
+            out.force( true );
+        }
+        Files.move( tmp.toPath(), snapshotFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    /**
+     * Load a snapshot, provided it was made from the current content of {@code csvFile}.
+     *
+     * @return the Places in the snapshot, or empty if there is no usable snapshot.
+     */
+    public static Optional<Places> read( File snapshotFile, File csvFile ) throws IOException {
+        if( ! ( snapshotFile.isFile() && snapshotFile.canRead() )){
+            return Optional.empty();
+        }
+        try( final FileChannel channel = FileChannel.open( snapshotFile.toPath(), StandardOpenOption.READ )){
+            if( channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE ){
+                return Optional.empty();
+            }
+            final MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if( buf.getInt( 0 ) != MAGIC || buf.getInt( 4 ) != VERSION || ! isSnapshotOf( buf, csvFile )){
+                return Optional.empty();
+            }
+            return Optional.ofNullable( decode( buf.position( 4 + 4 + 8 + 8 + 8 )));
+        }
+    }
+
+    private static boolean isSnapshotOf( ByteBuffer header, File csvFile ) throws IOException {
+        if( header.getLong( 8 ) != csvFile.length() ) return false;
+        return header.getLong( 16 ) == csvFile.lastModified()
+            || header.getLong( 24 ) == checksumOf( csvFile );
+    }
+
+    private static Places decode( ByteBuffer buf ){
+        try{
+            final int stringCount = buf.getInt();
+            final int townCount = buf.getInt();
+            final int stringBytesLength = buf.getInt();
+            final int expectedCrc = buf.getInt();
+
+            final CRC32C bodyCrc = new CRC32C();
+            bodyCrc.update( buf.duplicate() );
+            if( (int) bodyCrc.getValue() != expectedCrc ) return null;
+
+            final int[] offsets = new int[ stringCount + 1 ];
+            for( int i = 0; i < offsets.length; i++ ) offsets[ i ] = buf.getInt();
+            final int stringsStart = buf.position();
+            final String[] strings = new String[ stringCount ];
+            for( int i = 0; i < stringCount; i++ ){
+                final ByteBuffer utf8 = buf.slice( stringsStart + offsets[ i ], offsets[ i + 1 ] - offsets[ i ] );
+                strings[ i ] = StandardCharsets.UTF_8.decode( utf8 ).toString();
+            }
+            buf.position( stringsStart + stringBytesLength );
+
+            // Towns were written in order and without duplicates.
+            final Town[] towns = new Town[ townCount ];
+            final double[] latitudes = new double[ townCount ];
+            final double[] longitudes = new double[ townCount ];
+            for( int i = 0; i < townCount; i++ ){
+                final String name = strings[ buf.getInt() ];
+                final String province = strings[ buf.getInt() ];
+                towns[ i ] = new Town( name, province );
+                latitudes[ i ] = buf.getDouble();
+                longitudes[ i ] = buf.getDouble();
+            }
+            return new PlacesDb( towns, latitudes, longitudes );
+        }catch( BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException ex ){
+            // Damaged snapshot: treat it as missing.
+            return null;
+        }
+    }
+}
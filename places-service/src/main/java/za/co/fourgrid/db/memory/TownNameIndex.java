@@ -0,0 +1,169 @@
+package za.co.fourgrid.db.memory;
+
+import java.text.Normalizer;
+import java.util.*;
+
+import za.co.fourgrid.model.Town;
+
+/**
+ * I am a prefix index (a trie) over the normalised names of a fixed array of towns, built
+ * once when the data is loaded. I answer "towns whose name starts with..." by walking
+ * down one node per character of the query and then collecting towns from the subtree
+ * below, in name order, until I have enough.
+ * <p>
+ * I can also match names that start with something within one edit (a substitution,
+ * insertion, deletion or transposition of adjacent characters) of the query.
+ */
+final class TownNameIndex
+{
+    private static final char[] NO_KEYS = new char[ 0 ];
+    private static final Node[] NO_CHILDREN = new Node[ 0 ];
+    private static final int[] NO_TOWNS = new int[ 0 ];
+
+    private static final class Node
+    {
+        // Children are kept sorted by key so that results come out in name order.
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        // Indices of the towns whose normalised name ends at this node.
+        int[] towns = NO_TOWNS;
+
+        Node child( char key ){
+            final int i = Arrays.binarySearch( keys, key );
+            return i >= 0 ? children[ i ] : null;
+        }
+
+        Node addChild( char key ){
+            int i = Arrays.binarySearch( keys, key );
+            if( i >= 0 ) return children[ i ];
+            i = -( i + 1 );
+            final Node child = new Node();
+            keys = insert( keys, i, key );
+            children = insert( children, i, child );
+            return child;
+        }
+    }
+
+    private final Town[] towns;
+
+    private final Node root = new Node();
+
+    TownNameIndex( Town[] allTowns ){
+        towns = allTowns;
+        for( int i = 0; i < allTowns.length; i++ ){
+            final String key = normalise( allTowns[ i ].getName() );
+            Node node = root;
+            for( int c = 0; c < key.length(); c++ ){
+                node = node.addChild( key.charAt( c ));
+            }
+            node.towns = Arrays.copyOf( node.towns, node.towns.length + 1 );
+            node.towns[ node.towns.length - 1 ] = i;
+        }
+    }
+
+    /**
+     * @return up to {@code limit} towns whose names start with {@code aQuery} (after
+     *      normalisation), followed, if {@code fuzzy} is set and there is room, by towns
+     *      whose names start with something one edit away from the query.
+     */
+    List<Town> search( String aQuery, int limit, boolean fuzzy ){
+        if( limit <= 0 ) return List.of();
+        final String query = normalise( aQuery );
+        final Set<Town> found = new LinkedHashSet<>();
+        Node node = root;
+        for( int i = 0; i < query.length() && node != null; i++ ){
+            node = node.child( query.charAt( i ));
+        }
+        if( node != null ) collect( node, found, limit );
+        if( fuzzy && found.size() < limit ){
+            searchFuzzy( root, query, 0, false, found, limit );
+        }
+        return List.copyOf( found );
+    }
+
+    private void searchFuzzy( Node node, String query, int pos, boolean edited, Set<Town> found, int limit ){
+        if( found.size() >= limit ) return;
+        if( pos == query.length() ){
+            collect( node, found, limit );
+            return;
+        }
+        final char wanted = query.charAt( pos );
+        final Node exact = node.child( wanted );
+        if( exact != null ){
+            searchFuzzy( exact, query, pos + 1, edited, found, limit );
+        }
+        if( edited ) return;
+
+        // insertion: the query has an extra character
+        searchFuzzy( node, query, pos + 1, true, found, limit );
+        for( int i = 0; i < node.keys.length; i++ ){
+            // substitution: the query has a wrong character
+            if( node.keys[ i ] != wanted ){
+                searchFuzzy( node.children[ i ], query, pos + 1, true, found, limit );
+            }
+            // deletion: the query is missing a character
+            searchFuzzy( node.children[ i ], query, pos, true, found, limit );
+        }
+        // transposition: the query has two adjacent characters swapped
+        if( pos + 1 < query.length() ){
+            final Node first = node.child( query.charAt( pos + 1 ));
+            final Node second = first == null ? null : first.child( wanted );
+            if( second != null ){
+                searchFuzzy( second, query, pos + 2, true, found, limit );
+            }
+        }
+    }
+
+    /**
+     * Add the towns at and below {@code node}, in name order, until there are {@code limit}.
+     */
+    private void collect( Node node, Set<Town> found, int limit ){
+        for( int t : node.towns ){
+            if( found.size() >= limit ) return;
+            found.add( towns[ t ] );
+        }
+        for( Node child : node.children ){
+            if( found.size() >= limit ) return;
+            collect( child, found, limit );
+        }
+    }
+
+    /**
+     * Reduce a name to lower-case letters and digits, with accents removed and any run of
+     * other characters (spaces, hyphens, apostrophes...) replaced by a single space.
+     */
+    static String normalise( String aName ){
+        final String decomposed = Normalizer.normalize( aName, Normalizer.Form.NFD );
+        final StringBuilder out = new StringBuilder( decomposed.length() );
+        boolean pendingSpace = false;
+        for( int i = 0; i < decomposed.length(); i++ ){
+            final char c = decomposed.charAt( i );
+            if( Character.getType( c ) == Character.NON_SPACING_MARK ) continue;
+            if( Character.isLetterOrDigit( c )){
+                if( pendingSpace && out.length() > 0 ) out.append( ' ' );
+                pendingSpace = false;
+                out.append( Character.toLowerCase( c ));
+            }else{
+                pendingSpace = true;
+            }
+        }
+        if( pendingSpace && out.length() > 0 ) out.append( ' ' );   // "Port " is a prefix of "Port Alfred"
+        return out.toString();
+    }
+
+    private static char[] insert( char[] array, int index, char value ){
+        final char[] grown = new char[ array.length + 1 ];
+        System.arraycopy( array, 0, grown, 0, index );
+        grown[ index ] = value;
+        System.arraycopy( array, index, grown, index + 1, array.length - index );
+        return grown;
+    }
+
+    private static Node[] insert( Node[] array, int index, Node value ){
+        final Node[] grown = new Node[ array.length + 1 ];
+        System.arraycopy( array, 0, grown, 0, index );
+        grown[ index ] = value;
+        System.arraycopy( array, index, grown, index + 1, array.length - index );
+        return grown;
+    }
+}
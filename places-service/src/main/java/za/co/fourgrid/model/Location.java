@@ -0,0 +1,33 @@
+package za.co.fourgrid.model;
+
+/**
+ * Where a Town is. Towns don't hold their Locations, since most of the places data is
+ * only ever listed by name; the Places database keeps them apart, in primitive arrays,
+ * and makes a Location when it is asked for one.
+ *
+ * @param latitude degrees north (negative for south), or NaN if unknown.
+ * @param longitude degrees east (negative for west), or NaN if unknown.
+ */
+public record Location( double latitude, double longitude )
+{
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+
+    public static final Location UNKNOWN = new Location( Double.NaN, Double.NaN );
+
+    public boolean isKnown(){
+        return ! ( Double.isNaN( latitude ) || Double.isNaN( longitude ));
+    }
+
+    /**
+     * @return the great-circle distance in km from here to the given point, or NaN if I'm
+     *      not known.
+     */
+    public double distanceKmTo( double aLatitude, double aLongitude ){
+        final double dLat = Math.toRadians( aLatitude - latitude );
+        final double dLon = Math.toRadians( aLongitude - longitude );
+        final double h = Math.sin( dLat / 2 ) * Math.sin( dLat / 2 )
+            + Math.cos( Math.toRadians( latitude )) * Math.cos( Math.toRadians( aLatitude ))
+                * Math.sin( dLon / 2 ) * Math.sin( dLon / 2 );
+        return 2 * EARTH_RADIUS_KM * Math.asin( Math.min( 1, Math.sqrt( h )));
+    }
+}
@@ -2,6 +2,7 @@ package za.co.fourgrid.model;
 
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * I am the "database" of place-names. You should write a class that implements me.
@@ -13,5 +14,43 @@ public interface Places
 
     Collection<Town> townsIn( String aProvince );
 
+    /**
+     * A page of the towns in a province, for clients that can't take the whole list at once.
+     *
+     * @param after a cursor: only towns whose names come after this one are returned.
+     *      Pass null for the first page, then the name of the last town of each page.
+     * @param limit the maximum number of towns to return.
+     * @return towns in name order.
+     */
+    List<Town> townsIn( String aProvince, String after, int limit );
+
+    /**
+     * Find towns by name, for "search as you type".
+     *
+     * @param aQuery the start of a town name. Case, accents and punctuation are ignored.
+     * @param limit the maximum number of towns to return.
+     * @param fuzzy whether to also return towns whose names start with something that is
+     *      one typing mistake away from the query.
+     * @return matching towns, exact prefix matches (in name order) first.
+     */
+    Collection<Town> search( String aQuery, int limit, boolean fuzzy );
+
+    /**
+     * Find the towns closest to a point, e.g. a phone's GPS position. Towns whose location
+     * is not known are never returned.
+     *
+     * @param latitude degrees north (negative for south).
+     * @param longitude degrees east (negative for west).
+     * @param k the maximum number of towns to return.
+     * @return the nearest towns, nearest first.
+     */
+    List<Town> nearest( double latitude, double longitude, int k );
+
+    /**
+     * @return where {@code aTown} is, or {@link Location#UNKNOWN} if that is not known (or
+     *      the town is not one of mine).
+     */
+    Location locationOf( Town aTown );
+
     int size();
 }
\ No newline at end of file
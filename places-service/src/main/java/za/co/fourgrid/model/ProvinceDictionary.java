@@ -0,0 +1,52 @@
+package za.co.fourgrid.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * I give every distinct province name a small integer id, so that each Town need only
+ * hold that id rather than its own reference to (or, worse, copy of) the province name.
+ * <p>
+ * There are only a handful of provinces, and ids are never reused or forgotten, so I am
+ * a simple, process-wide dictionary. Looking up the name for an id is a plain array read.
+ */
+public final class ProvinceDictionary
+{
+    private static final Map<String, Short> ids = new ConcurrentHashMap<>();
+
+    private static volatile String[] names = new String[ 0 ];
+
+    private ProvinceDictionary(){
+    }
+
+    /**
+     * @return the id of the given province name, assigning a new id if the name has not
+     *      been seen before.
+     */
+    public static short idOf( String aProvince ){
+        final Short id = ids.get( aProvince );
+        return id != null ? id : register( aProvince );
+    }
+
+    /**
+     * @return the province name with the given id.
+     */
+    public static String nameOf( short anId ){
+        return names[ anId ];
+    }
+
+    private static synchronized short register( String aProvince ){
+        final Short existing = ids.get( aProvince );
+        if( existing != null ) return existing;
+        if( names.length >= Short.MAX_VALUE ){
+            throw new IllegalStateException( "Too many distinct provinces" );
+        }
+        final short id = (short) names.length;
+        final String[] grown = Arrays.copyOf( names, id + 1 );
+        grown[ id ] = aProvince;
+        names = grown;                  // publish the name before the id
+        ids.put( aProvince, id );
+        return id;
+    }
+}
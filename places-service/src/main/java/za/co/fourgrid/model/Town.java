@@ -10,17 +10,24 @@ import java.util.Objects;
  * is simply not true</em> and we'd have to invent a more sophisticated model to deal with that. But
  * then we'd also need better data than we have access to... Since our mission is to explore
  * Distributed Systems and integration, our assumption is Good Enough.)
+ * <p>
+ * There are millions of Towns but only a few provinces, so a Town holds the
+ * {@link ProvinceDictionary} id of its province rather than the name. Loaders should also
+ * share one String instance between all the Towns with the same name.
+ * <p>
+ * Where a Town is (its {@link Location}) is not part of its identity, and is kept by the
+ * {@link Places} database rather than by each Town.
  */
 public class Town
     implements Comparable<Town>
 {
     private final String name;
 
-    private final String province;
+    private final short provinceId;
 
     public Town( String aName, String aProvince ){
         name = aName;
-        province = aProvince;
+        provinceId = ProvinceDictionary.idOf( aProvince );
     }
 
     public String getName(){
@@ -28,13 +35,13 @@ public class Town
     }
 
     public String getProvince(){
-        return province;
+        return ProvinceDictionary.nameOf( provinceId );
     }
 
     @Override
     public int compareTo( Town other ){
         if( other == null ) throw new NullPointerException();
-        return getProvince().equals(other.getProvince() )
+        return provinceId == other.provinceId
             ? getName().compareTo(other.getName() )
             : getProvince().compareTo(other.getProvince() );
     }
@@ -43,7 +50,7 @@ public class Town
     public int hashCode(){
         int hash = 5;
         hash = 97 * hash + Objects.hashCode( this.name );
-        hash = 97 * hash + Objects.hashCode( this.province );
+        hash = 97 * hash + this.provinceId;
         return hash;
     }
 
@@ -53,8 +60,8 @@ public class Town
         if( obj == null )return false;
         if( getClass() != obj.getClass() )return false;
         final Town other = (Town) obj;
-        return this.province.equals( other.province )
-            && this.name.equals( other.name );
+        return this.provinceId == other.provinceId
+            && ( this.name == other.name || this.name.equals( other.name ));
     }
 
     @Override public String toString(){
@@ -64,4 +71,4 @@ public class Town
             + getProvince()
             + "}";
     }
-}
\ No newline at end of file
+}
@@ -75,6 +75,94 @@ public class PlaceNameApiTest
 
     }
 
+    @Test
+    public void conditionalGetOfTowns(){
+        HttpResponse<String> first = Unirest.get( serverUrl() + "/towns/Gauteng" ).asString();
+        assertEquals( HttpStatus.OK, first.getStatus() );
+        final String etag = first.getHeaders().getFirst( "ETag" );
+        assertFalse( etag.isEmpty() );
+
+        HttpResponse<String> again = Unirest.get( serverUrl() + "/towns/Gauteng" )
+            .header( "If-None-Match", etag )
+            .asString();
+        assertEquals( HttpStatus.NOT_MODIFIED, again.getStatus() );
+
+        HttpResponse<String> other = Unirest.get( serverUrl() + "/towns/Free%20State" )
+            .header( "If-None-Match", etag )
+            .asString();
+        assertEquals( HttpStatus.OK, other.getStatus() );
+        assertNotEquals( etag, other.getHeaders().getFirst( "ETag" ));
+    }
+
+    @Test
+    public void getTownsByPage(){
+        HttpResponse<JsonNode> first = Unirest.get( serverUrl() + "/towns/Gauteng?limit=1" ).asJson();
+        assertEquals( HttpStatus.OK, first.getStatus() );
+        assertEquals( 1, first.getBody().getArray().length() );
+        assertEquals( "Brakpan", first.getHeaders().getFirst( PlaceNameService.HEADER_NEXT_AFTER ));
+
+        HttpResponse<JsonNode> next = Unirest.get( serverUrl() + "/towns/Gauteng?limit=1&after=Brakpan" ).asJson();
+        assertEquals( HttpStatus.OK, next.getStatus() );
+        assertTrue( next.getBody().getArray().isEmpty() );
+        assertFalse( next.getHeaders().containsKey( PlaceNameService.HEADER_NEXT_AFTER ));
+
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/towns/Gauteng?limit=0" ).asString().getStatus() );
+    }
+
+    @Test
+    public void getTownsAsNdjson(){
+        HttpResponse<String> response = Unirest.get( serverUrl() + "/towns/Gauteng" )
+            .header( "Accept", PlaceNameService.CONTENT_TYPE_NDJSON )
+            .asString();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertEquals( PlaceNameService.CONTENT_TYPE_NDJSON, response.getHeaders().getFirst( "Content-Type" ));
+        assertEquals( "{\"name\":\"Brakpan\",\"province\":\"Gauteng\"}\n", response.getBody() );
+
+        HttpResponse<String> byParam = Unirest.get( serverUrl() + "/towns/Gauteng?format=ndjson" ).asString();
+        assertEquals( response.getBody(), byParam.getBody() );
+    }
+
+    @Test
+    public void nearestTowns(){
+        // Near Gouda, Western Cape -- Botrivier is the nearest town in the test data.
+        HttpResponse<JsonNode> response = Unirest.get( serverUrl() + "/nearest?lat=-33.3&lon=19.0&k=2" ).asJson();
+
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        final JSONArray towns = response.getBody().getArray();
+        assertEquals( 2, towns.length() );
+        assertEquals( "Botrivier", towns.getJSONObject( 0 ).getString( "name" ));
+        assertTrue( towns.getJSONObject( 0 ).getDouble( "distanceKm" ) < towns.getJSONObject( 1 ).getDouble( "distanceKm" ));
+
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/nearest?lat=-33.3" ).asString().getStatus() );
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/nearest?lat=-95&lon=19" ).asString().getStatus() );
+    }
+
+    @Test
+    public void searchTowns(){
+        HttpResponse<JsonNode> response = Unirest.get( serverUrl() + "/search?q=brak&limit=2" ).asJson();
+
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        JSONArray jsonArray = response.getBody().getArray();
+        assertEquals( 2, jsonArray.length() );
+        assertEquals( "Brakpan", jsonArray.getJSONObject( 0 ).getString( "name" ));
+    }
+
+    @Test
+    public void searchTowns_fuzzy(){
+        HttpResponse<JsonNode> response = Unirest.get( serverUrl() + "/search?q=Botrvier&fuzzy=true" ).asJson();
+
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        JSONArray jsonArray = response.getBody().getArray();
+        assertEquals( 1, jsonArray.length() );
+        assertEquals( "Western Cape", jsonArray.getJSONObject( 0 ).getString( "province" ));
+    }
+
+    @Test
+    public void searchTowns_badRequests(){
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/search" ).asString().getStatus() );
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/search?q=a&limit=0" ).asString().getStatus() );
+    }
+
     private String serverUrl(){
         return "http://localhost:" + TEST_PORT;
     }
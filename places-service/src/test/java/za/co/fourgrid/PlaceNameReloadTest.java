@@ -0,0 +1,137 @@
+package za.co.fourgrid;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kong.unirest.HttpResponse;
+import kong.unirest.HttpStatus;
+import kong.unirest.JsonNode;
+import kong.unirest.Unirest;
+import org.junit.jupiter.api.*;
+import picocli.CommandLine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * I check that the places data can be reloaded while the service is busy serving requests.
+ */
+public class PlaceNameReloadTest
+{
+    public static final int TEST_PORT = 7778;
+
+    private static final String EXTRA_TOWN =
+        "Newtown,Town,99999,-26.2,28.0,01-01-2020,,Gauteng,111,,280,3,16,EKU,Ekurhuleni Metro,,,EKU,,\n";
+
+    private File csvFile;
+
+    private PlaceNameService server;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        csvFile = File.createTempFile( "places", "csv" );
+        csvFile.deleteOnExit();
+        writeCsv( 0 );
+        server = new PlaceNameService();
+        new CommandLine( server ).parseArgs( "-f", csvFile.getPath() );
+        server.initialise();
+        server.start( TEST_PORT );
+    }
+
+    @AfterEach
+    public void stopServer(){
+        server.stop();
+        csvFile.delete();
+    }
+
+    @Test
+    public void reloadWhileServingRequests() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean( true );
+        final AtomicInteger requests = new AtomicInteger();
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        final ExecutorService clients = Executors.newFixedThreadPool( 4 );
+        final List<Future<?>> hammers = new ArrayList<>();
+        for( int i = 0; i < 4; i++ ){
+            hammers.add( clients.submit( () -> {
+                while( running.get() ){
+                    final HttpResponse<JsonNode> r = Unirest.get( serverUrl() + "/towns/Gauteng" ).asJson();
+                    requests.incrementAndGet();
+                    if( r.getStatus() != HttpStatus.OK || r.getBody().getArray().isEmpty() ){
+                        errors.add( r.getStatus() + " " + r.getBody() );
+                    }
+                }
+            }));
+        }
+
+        final int reloads = 5;
+        for( int i = 1; i <= reloads; i++ ){
+            writeCsv( i );
+            final PlaceNameService.ReloadMetrics metrics = server.reload().get( 10, TimeUnit.SECONDS );
+            assertEquals( i, metrics.reloads() );
+            assertEquals( 5 + i, metrics.towns() );
+        }
+        running.set( false );
+        for( Future<?> f : hammers ) f.get( 10, TimeUnit.SECONDS );
+        clients.shutdown();
+
+        assertEquals( List.of(), errors );
+        assertEquals( 5 + reloads, server.getDb().size() );
+        assertTrue( requests.get() >= reloads, "only " + requests.get() + " requests served during " + reloads + " reloads" );
+    }
+
+    @Test
+    public void adminEndpointReloads() throws Exception {
+        writeCsv( 2 );
+        final HttpResponse<JsonNode> post = Unirest.post( serverUrl() + "/admin/reload" ).asJson();
+        assertEquals( HttpStatus.ACCEPTED, post.getStatus() );
+
+        JsonNode metrics = null;
+        for( int i = 0; i < 50; i++ ){
+            metrics = Unirest.get( serverUrl() + "/admin/reload" ).asJson().getBody();
+            if( metrics.getObject().getLong( "reloads" ) == 1 ) break;
+            Thread.sleep( 100 );
+        }
+        assertEquals( 1, metrics.getObject().getLong( "reloads" ));
+        assertEquals( 7, metrics.getObject().getInt( "towns" ));
+        assertEquals( 0, metrics.getObject().getLong( "failures" ));
+    }
+
+    @Test
+    public void adminEndpointsAreOnlyForTheLocalHost(){
+        assertTrue( PlaceNameService.isLocal( "127.0.0.1" ));
+        assertTrue( PlaceNameService.isLocal( "0:0:0:0:0:0:0:1" ));
+        assertFalse( PlaceNameService.isLocal( "10.0.0.5" ));
+    }
+
+    @Test
+    public void failedReloadKeepsTheOldData() throws Exception {
+        csvFile.delete();
+        final CompletableFuture<PlaceNameService.ReloadMetrics> reload = server.reload();
+        Assertions.assertThrows( ExecutionException.class, () -> reload.get( 10, TimeUnit.SECONDS ));
+        assertEquals( 1, server.reloadMetrics().failures() );
+        assertEquals( 5, server.getDb().size() );
+    }
+
+    /**
+     * Write the standard test data plus {@code extraTowns} more towns.
+     */
+    private void writeCsv( int extraTowns ) throws IOException {
+        try( FileWriter out = new FileWriter( csvFile )){
+            out.write( PlacesTestData.CSV_DATA );
+            for( int i = 0; i < extraTowns; i++ ){
+                out.write( EXTRA_TOWN.replace( "Newtown", "Newtown" + i ));
+            }
+        }
+    }
+
+    private String serverUrl(){
+        return "http://localhost:" + TEST_PORT;
+    }
+}
@@ -9,6 +9,7 @@ import picocli.CommandLine;
 import za.co.fourgrid.model.Places;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 /**
@@ -35,6 +36,28 @@ public class PlaceNameServiceTest
 
     }
 
+    @Test
+    public void snapshotIsWrittenThenUsed() throws IOException {
+        final File csvFile = createTestCsvFile();
+        final File snapshot = File.createTempFile( "places", "snapshot" );
+        snapshot.deleteOnExit();
+        assertTrue( snapshot.delete() );
+        final String[] args = {"-f", csvFile.getPath(), "-s", snapshot.getPath()};
+
+        final PlaceNameService first = new PlaceNameService();
+        new CommandLine( first ).parseArgs( args );
+        first.initialise();
+        assertTrue( snapshot.exists() );
+        assertEquals( PlaceNameService.LoadSource.CSV, first.reloadMetrics().loadedFrom() );
+
+        final PlaceNameService second = new PlaceNameService();
+        new CommandLine( second ).parseArgs( args );
+        second.initialise();
+        assertEquals( PlaceNameService.LoadSource.SNAPSHOT, second.reloadMetrics().loadedFrom() );
+        assertEquals( first.getDb().size(), second.getDb().size() );
+        assertEquals( first.getDb().provinces(), second.getDb().provinces() );
+    }
+
     private File createTestCsvFile() throws IOException{
         final File f = File.createTempFile( "places", "csv" );
         f.deleteOnExit();
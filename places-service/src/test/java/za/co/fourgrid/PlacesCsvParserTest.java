@@ -1,11 +1,15 @@
 package za.co.fourgrid;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.LineNumberReader;
 import java.io.StringReader;
 
 import org.junit.jupiter.api.*;
+import za.co.fourgrid.model.Location;
 import za.co.fourgrid.model.Places;
+import za.co.fourgrid.model.Town;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -40,34 +44,55 @@ public class PlacesCsvParserTest
     }
 
     @Test
-    public void splitLineIntoValuesProducesCorrectNoOfValues(){
+    public void tokenizerFindsTheWantedColumns(){
         final String testLine = "Brakpan,Non_Perennial,92797,-26.60444444,26.34,01-06-1992,,North West,66,,262,8,16,DC40,Matlosana,,,NW403,,";
-        final String[] values = parser.splitLineIntoValues( testLine );
-        assertTrue( values.length > PlacesCsvParser.MIN_COLUMNS );
+        final CsvLineTokenizer csv = parser.newTokenizer();
+        assertTrue( csv.tokenize( testLine ));
+        assertEquals( "Brakpan", csv.value( 0 ));
+        assertEquals( "Non_Perennial", csv.value( 1 ));
+        assertEquals( "-26.60444444", csv.value( 2 ));
+        assertEquals( "26.34", csv.value( 3 ));
+        assertEquals( "North West", csv.value( 4 ));
+    }
+
+    @Test
+    public void tooFewColumnsIsMalformed(){
+        final String testLine = "Brakpan,Town,92802,-27.95111111,26.53333333";
+        assertFalse( parser.newTokenizer().tokenize( testLine ));
+        assertNull( parser.parseLine( testLine ));
     }
 
     @Test
     public void urbanPlacesAreWanted(){
         final String testLine = "Brakpan,Urban Area,92799,-26.23527778,28.37,31-05-1995,,Gauteng,114,,280,3,16,EKU,Ekurhuleni Metro,,,EKU,,\n";
-        final String[] values = parser.splitLineIntoValues( testLine );
-        assertEquals( "urban area", values[PlacesCsvParser.FEATURE_COLUMN].toLowerCase() );
-        assertTrue( parser.isLineAWantedFeature( values ));
+        assertEquals( new Town( "Brakpan", "Gauteng" ), parser.parseLine( testLine ).town() );
     }
 
     @Test
     public void townsAreWanted(){
         final String testLine = "Brakpan,Town,92802,-27.95111111,26.53333333,30-05-1975,,Free State,68,,155,2,16,DC18,Matjhabeng,,,FS184,,";
-        final String[] values = parser.splitLineIntoValues( testLine );
-        assertEquals( "town", values[PlacesCsvParser.FEATURE_COLUMN].toLowerCase() );
-        assertTrue( parser.isLineAWantedFeature( values ));
+        assertEquals( new Town( "Brakpan", "Free State" ), parser.parseLine( testLine ).town() );
+    }
+
+    @Test
+    public void coordinatesAreKept(){
+        final String testLine = "Brakpan,Town,92802,-27.95111111,26.53333333,30-05-1975,,Free State,68,,155,2,16,DC18,Matjhabeng,,,FS184,,";
+        assertEquals( new Location( -27.95111111, 26.53333333 ), parser.parseLine( testLine ).location() );
+
+        final String noCoordinates = "Brakpan,Town,92802,,unknown,30-05-1975,,Free State,68,,155,2,16,DC18,Matjhabeng,,,FS184,,";
+        assertFalse( parser.parseLine( noCoordinates ).location().isKnown() );
     }
 
     @Test
     public void otherFeaturesAreNotWanted(){
         final String testLine = "Amatikulu,Station,95756,-29.05111111,31.53138889,31-05-1989,,KwaZulu-Natal,79,,237,4,16,DC28,uMlalazi,,,KZ284,,";
-        final String[] values = parser.splitLineIntoValues( testLine );
-        assertEquals( "station", values[PlacesCsvParser.FEATURE_COLUMN].toLowerCase() );
-        assertFalse( parser.isLineAWantedFeature( values ));
+        assertNull( parser.parseLine( testLine ));
+    }
+
+    @Test
+    public void quotedValuesMayContainCommasAndQuotes(){
+        final String testLine = "\"Nkandla, \"\"Old\"\" Town\",Town,95757,\"-29.0, approx\",31.52,31-05-1989,,KwaZulu-Natal,111,,237,4,16,DC28,uMlalazi,,,KZ284,,";
+        assertEquals( new Town( "Nkandla, \"Old\" Town", "KwaZulu-Natal" ), parser.parseLine( testLine ).town() );
     }
 
     @Test
@@ -75,4 +100,24 @@ public class PlacesCsvParserTest
         final Places db = parser.parseDataLines( input );
         assertEquals( 5, db.size() );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void mappedParseFindsTheSameTowns() throws IOException {
+        final File csvFile = File.createTempFile( "places", "csv" );
+        csvFile.deleteOnExit();
+        try( FileWriter out = new FileWriter( csvFile )){
+            out.write( PlacesTestData.CSV_DATA );
+        }
+        final Places expected = parser.parseCsvSource( csvFile );
+
+        // Tiny chunks force many chunk boundaries, most of them mid-line.
+        for( long chunkBytes : new long[]{ 1, 50, 333, Long.MAX_VALUE } ){
+            final Places mapped = parser.parseMappedCsvSource( csvFile, chunkBytes );
+            assertEquals( expected.size(), mapped.size() );
+            assertEquals( expected.provinces(), mapped.provinces() );
+            for( String province : expected.provinces() ){
+                assertEquals( expected.townsIn( province ), mapped.townsIn( province ));
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package za.co.fourgrid;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.*;
+import za.co.fourgrid.db.memory.PlacesDb;
+import za.co.fourgrid.model.Location;
+import za.co.fourgrid.model.Places;
+import za.co.fourgrid.model.Town;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * I check that a parsed places database shares its town names between towns, and so takes
+ * less heap than it would if each town held its own copy.
+ */
+public class PlacesHeapTest
+{
+    private static final int DISTINCT_NAMES = 2_000;
+
+    private static final String[] PROVINCES = PlacesCsvParser.VALID_PROVINCES.toArray( new String[ 0 ] );
+
+    @Test
+    public void townsShareNameStrings() throws IOException {
+        final Places db = parse();
+        final Set<String> nameInstances = Collections.newSetFromMap( new IdentityHashMap<>() );
+        for( String province : db.provinces() ){
+            for( Town aTown : db.townsIn( province )) nameInstances.add( aTown.getName() );
+        }
+        assertThat( db.size() ).isEqualTo( DISTINCT_NAMES * PROVINCES.length );
+        assertThat( nameInstances ).hasSize( DISTINCT_NAMES );
+    }
+
+    /**
+     * Measures, rather than estimates, the heap taken by the parsed towns and by the same
+     * towns each holding a copy of its name. Measuring heap needs a quiet JVM and a full
+     * GC, so this only runs with the benchmarks.
+     */
+    @Test
+    @Tag( "benchmark" )
+    public void sharedNamesTakeLessHeapThanCopies() throws IOException {
+        final Loader shared = PlacesHeapTest::parse;
+        final Loader copied = () -> {
+            final Places parsed = parse();
+            final Map<Town, Location> copies = new HashMap<>();
+            for( Town aTown : towns( parsed )){
+                // new String( String ) would share the characters, so copy them.
+                final String name = new String( aTown.getName().toCharArray() );
+                copies.put( new Town( name, aTown.getProvince() ), parsed.locationOf( aTown ));
+            }
+            return new PlacesDb( copies );
+        };
+        // The first time anything is loaded, some of what it allocates is kept (in caches of
+        // the JDK's own, for example), so only the second measurement of each counts.
+        retainedBytes( shared );
+        retainedBytes( copied );
+        final long sharedBytes = retainedBytes( shared );
+        final long copiedBytes = retainedBytes( copied );
+        System.out.printf( "%d towns: %d bytes with shared names, %d bytes with a copy each%n",
+            DISTINCT_NAMES * PROVINCES.length, sharedBytes, copiedBytes );
+        // Each name is stored once instead of once per province: the copies take at least
+        // a String object (24 bytes, with compressed pointers) more for each extra copy.
+        assertThat( copiedBytes - sharedBytes ).isGreaterThanOrEqualTo( 24L * DISTINCT_NAMES * ( PROVINCES.length - 1 ));
+    }
+
+    private interface Loader
+    {
+        Places load() throws IOException;
+    }
+
+    // Holds what is being measured, so that the GC can't tell it won't be used again.
+    private static Places[] measured;
+
+    // Several of each are measured at once, so they stand out from the noise.
+    private static final int COPIES = 4;
+
+    /**
+     * @return how much heap a loaded Places takes: the heap in use (after a GC) while some
+     *      are held, less that in use once they are dropped.
+     */
+    private static long retainedBytes( Loader loader ) throws IOException {
+        measured = new Places[ COPIES ];
+        for( int i = 0; i < COPIES; i++ ) measured[ i ] = loader.load();
+        final long held = heapUsedAfterGc();
+        measured = null;
+        final long dropped = heapUsedAfterGc();
+        return ( held - dropped ) / COPIES;
+    }
+
+    private static long heapUsedAfterGc(){
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // Objects only reachable through references that are being cleared may take
+        // another GC to go, so collect more than once.
+        for( int i = 0; i < 3; i++ ) memory.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static List<Town> towns( Places db ){
+        final List<Town> towns = new ArrayList<>();
+        for( String province : db.provinces() ) towns.addAll( db.townsIn( province ));
+        return towns;
+    }
+
+    private static Places parse() throws IOException {
+        final StringBuilder csv = new StringBuilder( "header\n" );
+        for( int i = 0; i < DISTINCT_NAMES * PROVINCES.length; i++ ){
+            csv.append( nameOf( i / PROVINCES.length )).append( ",Town,1,-29.0,31.5,31-05-1989,," )
+                .append( PROVINCES[ i % PROVINCES.length ] ).append( ",111,,237,4,16,DC28,X,,,KZ284,,\n" );
+        }
+        return new PlacesCsvParser().parseCsvSource( new LineNumberReader( new StringReader( csv.toString() )));
+    }
+
+    private static String nameOf( int i ){
+        return "Some Place Name " + i;
+    }
+}
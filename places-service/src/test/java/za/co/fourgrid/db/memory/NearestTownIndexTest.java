@@ -0,0 +1,151 @@
+package za.co.fourgrid.db.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.*;
+import za.co.fourgrid.model.Location;
+import za.co.fourgrid.model.Town;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of the nearest-town index against a brute-force scan of all the towns.
+ */
+public class NearestTownIndexTest
+{
+    private static final int TOWN_COUNT = 100_000;
+    private static final int QUERY_COUNT = 2_000;
+
+    private static Town[] towns;
+
+    private static double[] latitudes;
+
+    private static double[] longitudes;
+
+    private static double[][] points;
+
+    private static NearestTownIndex index;
+
+    @BeforeAll
+    public static void buildIndex(){
+        final Random random = new Random( 20240601 );
+        towns = new Town[ TOWN_COUNT ];
+        latitudes = new double[ TOWN_COUNT ];
+        longitudes = new double[ TOWN_COUNT ];
+        for( int i = 0; i < TOWN_COUNT; i++ ){
+            towns[ i ] = new Town( "Place" + i, "Gauteng" );
+            // Mostly in and around South Africa, with some anywhere in the world
+            latitudes[ i ] = i % 10 == 0 ? random.nextDouble( -90, 90 ) : random.nextDouble( -35, -22 );
+            longitudes[ i ] = i % 10 == 0 ? random.nextDouble( -180, 180 ) : random.nextDouble( 16, 33 );
+        }
+        points = new double[ TOWN_COUNT ][];
+        for( int i = 0; i < TOWN_COUNT; i++ ) points[ i ] = unitVector( latitudes[ i ], longitudes[ i ] );
+        index = new NearestTownIndex( towns, latitudes, longitudes );
+    }
+
+    @Test
+    public void nearestMatchesBruteForce(){
+        final Random random = new Random( 42 );
+        for( int q = 0; q < 200; q++ ){
+            final double lat = random.nextDouble( -90, 90 );
+            final double lon = random.nextDouble( -180, 180 );
+            final int k = 1 + random.nextInt( 10 );
+            assertThat( distances( index.nearest( lat, lon, k ), lat, lon ))
+                .isEqualTo( distances( bruteForce( lat, lon, k ), lat, lon ));
+        }
+    }
+
+    @Test
+    public void townsWithoutLocationAreLeftOut(){
+        final NearestTownIndex small = new NearestTownIndex(
+            new Town[]{ new Town( "Nowhere", "Gauteng" ), new Town( "Somewhere", "Gauteng" ) },
+            new double[]{ Double.NaN, -26.0 },
+            new double[]{ Double.NaN, 28.0 });
+        assertThat( small.size() ).isEqualTo( 1 );
+        assertThat( small.nearest( -26.0, 28.0, 5 )).extracting( Town::getName ).containsExactly( "Somewhere" );
+        assertThat( small.nearest( -26.0, 28.0, 0 )).isEmpty();
+    }
+
+    @Test
+    public void nearestAcrossTheDateLine(){
+        final NearestTownIndex small = new NearestTownIndex(
+            new Town[]{ new Town( "East", "Gauteng" ), new Town( "West", "Gauteng" ), new Town( "Far", "Gauteng" ) },
+            new double[]{ -17.0, -17.0, -17.0 },
+            new double[]{ 179.9, -179.5, 170.0 });
+        assertThat( small.nearest( -17.0, -179.9, 2 )).extracting( Town::getName ).containsExactly( "East", "West" );
+    }
+
+    /**
+     * Not a rigorous benchmark, just a rough comparison of the two approaches.
+     */
+    @Test
+    @Tag( "benchmark" )
+    public void indexVersusBruteForceTiming(){
+        final Random random = new Random( 7 );
+        final double[][] queries = new double[ QUERY_COUNT ][];
+        for( int q = 0; q < QUERY_COUNT; q++ ){
+            queries[ q ] = new double[]{ random.nextDouble( -35, -22 ), random.nextDouble( 16, 33 ) };
+        }
+        long found = 0;
+        long t0 = System.nanoTime();
+        for( double[] q : queries ) found += index.nearest( q[ 0 ], q[ 1 ], 5 ).size();
+        final long indexNanos = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        for( int q = 0; q < QUERY_COUNT / 20; q++ ) found += bruteForce( queries[ q ][ 0 ], queries[ q ][ 1 ], 5 ).size();
+        final long bruteNanos = ( System.nanoTime() - t0 ) * 20;
+
+        System.out.printf( "Nearest 5 of %d towns: index %.1f us/query, brute force %.1f us/query%n",
+            TOWN_COUNT, indexNanos / 1000.0 / QUERY_COUNT, bruteNanos / 1000.0 / QUERY_COUNT );
+        assertThat( found ).isEqualTo( 5L * ( QUERY_COUNT + QUERY_COUNT / 20 ));
+        // The index should win by orders of magnitude; this only catches it not winning at all.
+        assertThat( indexNanos * 10 ).isLessThan( bruteNanos );
+    }
+
+    /**
+     * Scan all the towns, comparing straight-line distances between points on the unit
+     * sphere (which rank towns the same as great-circle distances, without the trigonometry).
+     */
+    private static List<Town> bruteForce( double lat, double lon, int k ){
+        final double[] q = unitVector( lat, lon );
+        final double[] distances = new double[ towns.length ];
+        for( int i = 0; i < towns.length; i++ ){
+            final double dx = points[ i ][ 0 ] - q[ 0 ];
+            final double dy = points[ i ][ 1 ] - q[ 1 ];
+            final double dz = points[ i ][ 2 ] - q[ 2 ];
+            distances[ i ] = dx * dx + dy * dy + dz * dz;
+        }
+        final List<Town> nearest = new ArrayList<>( k );
+        for( int n = 0; n < k; n++ ){
+            int best = 0;
+            for( int i = 1; i < towns.length; i++ ){
+                if( distances[ i ] < distances[ best ] ) best = i;
+            }
+            distances[ best ] = Double.POSITIVE_INFINITY;
+            nearest.add( towns[ best ] );
+        }
+        return nearest;
+    }
+
+    private static double[] unitVector( double lat, double lon ){
+        final double phi = Math.toRadians( lat );
+        final double lambda = Math.toRadians( lon );
+        return new double[]{ Math.cos( phi ) * Math.cos( lambda ), Math.cos( phi ) * Math.sin( lambda ), Math.sin( phi ) };
+    }
+
+    private static List<Double> distances( List<Town> found, double lat, double lon ){
+        // Compare distances rather than towns, which may tie; rounding hides floating-point noise.
+        return found.stream()
+            .map( aTown -> locationOf( aTown ).distanceKmTo( lat, lon ))
+            .map( km -> Math.round( km * 1e6 ) / 1e6 )
+            .toList();
+    }
+
+    private static Location locationOf( Town aTown ){
+        // The towns are named after their place in the arrays.
+        final int i = Integer.parseInt( aTown.getName().substring( "Place".length() ));
+        return new Location( latitudes[ i ], longitudes[ i ] );
+    }
+}
@@ -1,11 +1,14 @@
 package za.co.fourgrid.db.memory;
 
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.jupiter.api.*;
+import za.co.fourgrid.model.Location;
 import za.co.fourgrid.model.Town;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  *
@@ -13,16 +16,16 @@ import static org.assertj.core.api.Assertions.assertThat;
  */
 public class PlacesDbTest
 {
-    public static final Set<Town> TOWNS = Set.of(
-        new Town( "Cape Town", "Western Cape" ),
-        new Town( "Worcester", "Western Cape" ),
-        new Town( "Riversdale", "Western Cape" ),
-        new Town( "Gqeberha", "Eastern Cape" ),
-        new Town( "Queenstown", "Eastern Cape" ),
-        new Town( "Sandton-East", "Gauteng" ),
-        new Town( "Riversdale", "Gauteng" ),
-        new Town( "Mabopane", "Gauteng" ),
-        new Town( "Brakpan", "Gauteng" )
+    public static final Map<Town, Location> TOWNS = Map.of(
+        new Town( "Cape Town", "Western Cape" ), new Location( -33.925, 18.424 ),
+        new Town( "Worcester", "Western Cape" ), new Location( -33.646, 19.448 ),
+        new Town( "Riversdale", "Western Cape" ), new Location( -34.094, 21.263 ),
+        new Town( "Gqeberha", "Eastern Cape" ), new Location( -33.958, 25.600 ),
+        new Town( "Queenstown", "Eastern Cape" ), Location.UNKNOWN,
+        new Town( "Sandton-East", "Gauteng" ), Location.UNKNOWN,
+        new Town( "Riversdale", "Gauteng" ), Location.UNKNOWN,
+        new Town( "Mabopane", "Gauteng" ), Location.UNKNOWN,
+        new Town( "Brakpan", "Gauteng" ), Location.UNKNOWN
     );
 
     @Test
@@ -39,4 +42,88 @@ public class PlacesDbTest
         assertThat( db.townsIn( "Western Cape" ).size() ).isEqualTo( 3 );
         assertThat( db.townsIn( "Northern Cape" ) ).isEmpty();
     }
+
+    @Test
+    public void townsInProvinceAreSortedByName(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        assertThat( db.townsIn( "Gauteng" ).stream().map( Town::getName ).toList() )
+            .containsExactly( "Brakpan", "Mabopane", "Riversdale", "Sandton-East" );
+    }
+
+    @Test
+    public void townsInProvinceByPage(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        assertThat( db.townsIn( "Gauteng", null, 2 ).stream().map( Town::getName ).toList() )
+            .containsExactly( "Brakpan", "Mabopane" );
+        assertThat( db.townsIn( "Gauteng", "Mabopane", 2 ).stream().map( Town::getName ).toList() )
+            .containsExactly( "Riversdale", "Sandton-East" );
+        assertThat( db.townsIn( "Gauteng", "Mabo", 10 ).stream().map( Town::getName ).toList() )
+            .containsExactly( "Mabopane", "Riversdale", "Sandton-East" );
+        assertThat( db.townsIn( "Gauteng", "Sandton-East", 2 )).isEmpty();
+        assertThat( db.townsIn( "Northern Cape", null, 2 )).isEmpty();
+    }
+
+    @Test
+    public void queriesShareReadOnlyViews(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        assertThat( db.townsIn( "Gauteng" ) ).isSameAs( db.townsIn( "Gauteng" ));
+        assertThat( db.provinces() ).isSameAs( db.provinces() );
+        assertThat( db.provinces() ).isEqualTo( List.of( "Eastern Cape", "Gauteng", "Western Cape" ));
+    }
+
+    @Test
+    public void nearestTowns(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        // Stellenbosch
+        assertThat( db.nearest( -33.934, 18.861, 2 ).stream().map( Town::getName ).toList() )
+            .containsExactly( "Cape Town", "Worcester" );
+        // Only towns with a known location are found
+        assertThat( db.nearest( -26.2, 28.0, 10 )).hasSize( 4 );
+    }
+
+    @Test
+    public void locationsAreKeptApartFromTheTowns(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        assertThat( db.locationOf( new Town( "Worcester", "Western Cape" ))).isEqualTo( new Location( -33.646, 19.448 ));
+        assertThat( db.locationOf( new Town( "Riversdale", "Gauteng" ))).isEqualTo( Location.UNKNOWN );
+        assertThat( db.locationOf( new Town( "Nowhere", "Gauteng" ))).isEqualTo( Location.UNKNOWN );
+        assertThat( new PlacesDb( TOWNS.keySet() ).locationOf( new Town( "Worcester", "Western Cape" )).isKnown() ).isFalse();
+    }
+
+    @Test
+    public void townsMustBeGivenInOrder(){
+        final Town[] outOfOrder = { new Town( "Worcester", "Western Cape" ), new Town( "Cape Town", "Western Cape" ) };
+        final double[] nowhere = { Double.NaN, Double.NaN };
+        assertThatThrownBy( () -> new PlacesDb( outOfOrder, nowhere, nowhere.clone() ))
+            .isInstanceOf( IllegalArgumentException.class );
+    }
+
+    @Test
+    public void searchByNamePrefix(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        assertThat( db.search( "river", 10, false ))
+            .containsExactly( new Town( "Riversdale", "Gauteng" ), new Town( "Riversdale", "Western Cape" ));
+        assertThat( db.search( "SANDTON EAST", 10, false ))
+            .containsExactly( new Town( "Sandton-East", "Gauteng" ));
+        assertThat( db.search( "q", 1, false )).containsExactly( new Town( "Queenstown", "Eastern Cape" ));
+        assertThat( db.search( "xyz", 10, false )).isEmpty();
+    }
+
+    @Test
+    public void searchIsLimited(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        assertThat( db.search( "", 3, false )).hasSize( 3 );
+        assertThat( db.search( "r", 1, false )).hasSize( 1 );
+    }
+
+    @Test
+    public void fuzzySearchAllowsOneMistake(){
+        final PlacesDb db = new PlacesDb( TOWNS );
+        assertThat( db.search( "Worcster", 10, false )).isEmpty();
+        assertThat( db.search( "Worcster", 10, true )).containsExactly( new Town( "Worcester", "Western Cape" ));  // deletion
+        assertThat( db.search( "Mabpoane", 10, true )).containsExactly( new Town( "Mabopane", "Gauteng" ));     // transposition
+        assertThat( db.search( "Gqebxrha", 10, true )).containsExactly( new Town( "Gqeberha", "Eastern Cape" )); // substitution
+        assertThat( db.search( "Brakkpan", 10, true )).containsExactly( new Town( "Brakpan", "Gauteng" ));      // insertion
+        assertThat( db.search( "Gqxbxrha", 10, true )).isEmpty();
+    }
 }
@@ -0,0 +1,124 @@
+package za.co.fourgrid.db.memory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Optional;
+
+import org.junit.jupiter.api.*;
+import za.co.fourgrid.PlacesCsvParser;
+import za.co.fourgrid.model.Places;
+import za.co.fourgrid.model.Town;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for saving and loading binary snapshots of the places database.
+ */
+public class PlacesSnapshotTest
+{
+    private static final String CSV_HEADER = "Name,Feature_Description,pklid,Latitude,Longitude,Date,MapInfo,Province,fklFeatureSubTypeID,Previous_Name,fklMagisterialDistrictID,ProvinceID,fklLanguageID,fklDisteral,Local Municipality,Sound,District Municipality,fklLocalMunic,Comments,Meaning\n";
+
+    private File snapshotFile;
+
+    private File csvFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        snapshotFile = File.createTempFile( "places", ".snapshot" );
+        snapshotFile.deleteOnExit();
+        csvFile = File.createTempFile( "places", ".csv" );
+        csvFile.deleteOnExit();
+        writeCsv( 10 );
+    }
+
+    @AfterEach
+    public void tearDown(){
+        snapshotFile.delete();
+        csvFile.delete();
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        final PlacesDb db = new PlacesDb( PlacesDbTest.TOWNS );
+        PlacesSnapshot.write( db, snapshotFile, PlacesSnapshot.Source.of( csvFile ));
+
+        final Optional<Places> loaded = PlacesSnapshot.read( snapshotFile, csvFile );
+        assertThat( loaded ).isPresent();
+        assertSamePlaces( db, loaded.get() );
+    }
+
+    @Test
+    public void snapshotOfDifferentSourceIsIgnored() throws IOException {
+        final PlacesSnapshot.Source source = PlacesSnapshot.Source.of( csvFile );
+        PlacesSnapshot.write( new PlacesDb( PlacesDbTest.TOWNS ), snapshotFile,
+            new PlacesSnapshot.Source( source.length() + 1, source.lastModified(), source.checksum() ));
+        assertThat( PlacesSnapshot.read( snapshotFile, csvFile )).isEmpty();
+
+        // Same length, but different content and a different time
+        PlacesSnapshot.write( new PlacesDb( PlacesDbTest.TOWNS ), snapshotFile,
+            new PlacesSnapshot.Source( source.length(), source.lastModified() - 1000, source.checksum() + 1 ));
+        assertThat( PlacesSnapshot.read( snapshotFile, csvFile )).isEmpty();
+    }
+
+    @Test
+    public void touchedButUnchangedSourceStillMatches() throws IOException {
+        PlacesSnapshot.write( new PlacesDb( PlacesDbTest.TOWNS ), snapshotFile, PlacesSnapshot.Source.of( csvFile ));
+        assertThat( csvFile.setLastModified( csvFile.lastModified() + 60_000 )).isTrue();
+        assertThat( PlacesSnapshot.read( snapshotFile, csvFile )).isPresent();
+    }
+
+    @Test
+    public void damagedSnapshotIsIgnored() throws IOException {
+        PlacesSnapshot.write( new PlacesDb( PlacesDbTest.TOWNS ), snapshotFile, PlacesSnapshot.Source.of( csvFile ));
+        try( RandomAccessFile raf = new RandomAccessFile( snapshotFile, "rw" )){
+            raf.seek( raf.length() - 3 );
+            raf.write( 0xFF );
+        }
+        assertThat( PlacesSnapshot.read( snapshotFile, csvFile )).isEmpty();
+    }
+
+    @Test
+    @Tag( "benchmark" )
+    public void startupFromSnapshotVersusCsv() throws IOException {
+        writeCsv( 200_000 );
+
+        long t0 = System.nanoTime();
+        final Places parsed = new PlacesCsvParser().parseCsvSource( csvFile );
+        final long parseNanos = System.nanoTime() - t0;
+
+        PlacesSnapshot.write( parsed, snapshotFile, PlacesSnapshot.Source.of( csvFile ));
+
+        t0 = System.nanoTime();
+        final Optional<Places> loaded = PlacesSnapshot.read( snapshotFile, csvFile );
+        final long snapshotNanos = System.nanoTime() - t0;
+
+        System.out.printf( "Startup with %d towns: CSV parse %d ms, snapshot load %d ms%n",
+            parsed.size(), parseNanos / 1_000_000, snapshotNanos / 1_000_000 );
+        assertThat( loaded ).isPresent();
+        assertSamePlaces( parsed, loaded.get() );
+        assertThat( snapshotNanos ).isLessThanOrEqualTo( parseNanos );
+    }
+
+    private void writeCsv( int towns ) throws IOException {
+        try( FileWriter out = new FileWriter( csvFile )){
+            out.write( CSV_HEADER );
+            final String[] provinces = PlacesCsvParser.VALID_PROVINCES.toArray( new String[ 0 ] );
+            for( int i = 0; i < towns; i++ ){
+                out.write( "Place" + i + ",Town," + i + ",-29.0,31.5,31-05-1989,," + provinces[ i % provinces.length ]
+                    + ",111,,237,4,16,DC28,Somewhere,,,KZ284,,\n" );
+            }
+        }
+    }
+
+    private static void assertSamePlaces( Places expected, Places actual ){
+        assertThat( actual.size() ).isEqualTo( expected.size() );
+        assertThat( actual.provinces() ).isEqualTo( expected.provinces() );
+        for( String province : expected.provinces() ){
+            assertThat( actual.townsIn( province )).isEqualTo( expected.townsIn( province ));
+            assertThat( actual.townsIn( province )).extracting( actual::locationOf )
+                .isEqualTo( expected.townsIn( province ).stream().map( expected::locationOf ).toList() );
+        }
+    }
+}
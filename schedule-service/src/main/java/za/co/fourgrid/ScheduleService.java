@@ -1,26 +1,76 @@
 package za.co.fourgrid;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.common.annotations.VisibleForTesting;
 import io.javalin.Javalin;
+import io.javalin.json.JavalinJackson;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import za.co.fourgrid.common.mq.MQ;
 import za.co.fourgrid.common.mq.MqTopicReceiver;
 import za.co.fourgrid.common.transfer.DayDO;
+import za.co.fourgrid.common.transfer.ScheduledStageDO;
 import za.co.fourgrid.common.transfer.ScheduleDO;
 import za.co.fourgrid.common.transfer.SlotDO;
 import za.co.fourgrid.common.transfer.StageDO;
+import za.co.fourgrid.schedule.BlockMap;
+import za.co.fourgrid.schedule.IcsWriter;
+import za.co.fourgrid.schedule.ScheduleCache;
+import za.co.fourgrid.schedule.ScheduleEngine;
+import za.co.fourgrid.schedule.SingleFlight;
 
 import javax.jms.JMSException;
 import javax.jms.TextMessage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.time.LocalTime;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
 /**
  * I provide a REST API providing the current loadshedding schedule for a given town (in a specific province) at a given
@@ -34,11 +84,58 @@ public class ScheduleService
 
     public static final String MQ_TOPIC = "stage";
 
+    // The classpath resource listing the towns whose block we know, overriding the block
+    // they would be given by name. Only these towns, and those in the places file, are found.
+    public static final String BLOCKS_RESOURCE = "/blocks.csv";
+
+    // A system property naming the places CSV file whose towns are given blocks. If it isn't
+    // set we use the same file as the PlaceNameService: the data.file in places.properties,
+    // or resources/PlaceNamesZA2008.csv, in the working directory.
+    public static final String PLACES_FILE_PROPERTY = "fourgrid.places.file";
+
+    // Threads used to warm the cache when the stage changes
+    public static final int WARM_UP_THREADS = 2;
+
+    public static final String STAGE_SERVICE_URL = "http://localhost:7001";
+
+    // How long before a scheduled stage change its schedules are put in the cache
+    public static final Duration PREWARM_LEAD = Duration.ofMinutes( 5 );
+
+    // How often to ask the StageService which stage changes are scheduled
+    public static final Duration SCHEDULED_STAGES_REFRESH = Duration.ofMinutes( 1 );
+
+    private static final Logger LOG = LoggerFactory.getLogger( "schedule" );
+
     private Javalin server;
 
     private int servicePort;
     private volatile int currentStage = DEFAULT_STAGE;
 
+    private final ScheduleEngine engine = new ScheduleEngine();
+
+    private final BlockMap blocks = loadBlocks();
+
+    // Schedules are cached as JSON, so they must be serialised exactly as Javalin would.
+    private final JavalinJackson json = new JavalinJackson();
+
+    private final ScheduleCache cache = new ScheduleCache();
+
+    // Concurrent requests for the same block's schedule share a single computation.
+    private final SingleFlight<BlockKey, byte[]> blockSchedules = new SingleFlight<>();
+
+    private final ThreadPoolExecutor warmUp = newWarmUpPool();
+
+    private ScheduledExecutorService housekeeping;
+
+    // Where to ask about scheduled stage changes; null when there is no StageService (in tests)
+    private String stageServiceUrl;
+
+    // The one client for all our requests to the StageService, so its connections are reused
+    private HttpClient stageService;
+
+    // The warm-ups planned for scheduled stage changes, by the change's id
+    private final Map<Long, ScheduledFuture<?>> plannedWarmUps = new ConcurrentHashMap<>();
+
     public static void main( String[] args ){
         final ScheduleService svc = new ScheduleService().initialise();
         svc.start();
@@ -47,18 +144,19 @@ public class ScheduleService
     @VisibleForTesting
     public ScheduleService initialise(){
         // Fetch initial stage from StageService if possible
+        stageService = HttpClient.newHttpClient();
         try{
-            HttpClient http = HttpClient.newHttpClient();
             HttpRequest req = HttpRequest.newBuilder()
-                    .uri(new java.net.URI("http://localhost:7001/stage"))
+                    .uri(new java.net.URI(STAGE_SERVICE_URL + "/stage"))
                     .GET()
                     .build();
-            HttpResponse<String> resp = http.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> resp = stageService.send(req, HttpResponse.BodyHandlers.ofString());
             if(resp.statusCode() == 200 && resp.body() != null){
                 ObjectMapper om = new ObjectMapper();
                 StageDO s = om.readValue(resp.body(), StageDO.class);
                 currentStage = s.getStage();}
         }catch(Exception ignored){ }
+        stageServiceUrl = STAGE_SERVICE_URL;
 
         // Start listening for stage change events
         try{
@@ -68,7 +166,8 @@ public class ScheduleService
                         String payload = ((TextMessage) message).getText();
                         ObjectMapper om = new ObjectMapper();
                         StageDO s = om.readValue(payload, StageDO.class);
-                        currentStage = s.getStage();
+                        onStageChange( s.getStage() );
+                        prewarm( s.getStage() );
                         System.out.println("Current stage: " + currentStage);
                     }
                 } catch (Exception e) {
@@ -105,16 +204,161 @@ public class ScheduleService
     }
 
     public void stop(){
+        if( housekeeping != null ) housekeeping.shutdownNow();
+        warmUp.shutdownNow();
         server.stop();
     }
 
     public void run(){
         server.start( servicePort );
+        housekeeping = Executors.newSingleThreadScheduledExecutor( r -> {
+            final Thread t = new Thread( r, "schedule-cache-housekeeping" );
+            t.setDaemon( true );
+            return t;
+        });
+        scheduleMidnightPurge();
+        if( stageServiceUrl != null ){
+            housekeeping.scheduleWithFixedDelay( this::refreshScheduledStages,
+                0, SCHEDULED_STAGES_REFRESH.toMillis(), TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * When the stage changes, the schedules cached for the old stage will hardly be asked
+     * for any more, so make room for the new stage's schedules.
+     */
+    @VisibleForTesting
+    void onStageChange( int newStage ){
+        final int oldStage = currentStage;
+        currentStage = newStage;
+        if( oldStage != newStage ){
+            cache.invalidateStage( oldStage );
+        }
+    }
+
+    /**
+     * As soon as a new stage is announced, every client asks for its new schedule at
+     * once. So cache the new stage's schedule for every town we know about before they
+     * ask, on a small background pool. Each block's schedule is only built and serialised
+     * once and then shared by all the towns in the block, and requests that arrive while
+     * it is being built wait for it rather than building it again. Warming up only fills
+     * free space in the cache: it never evicts schedules that people are actually asking
+     * for.
+     *
+     * @return a future that completes when the warm-up is done.
+     */
+    @VisibleForTesting
+    CompletableFuture<Void> prewarm( int stage ){
+        // The stage may have moved on while this was queued.
+        return prewarm( stage, LocalDate.now(), () -> stage == currentStage );
+    }
+
+    private CompletableFuture<Void> prewarm( int stage, LocalDate date, BooleanSupplier stillWanted ){
+        final CompletableFuture<?>[] warmed = new CompletableFuture<?>[ ScheduleEngine.BLOCKS ];
+        for( int block = 0; block < ScheduleEngine.BLOCKS; block++ ){
+            final int b = block;
+            warmed[ block ] = CompletableFuture.runAsync( () -> {
+                if( stillWanted.getAsBoolean() ) prewarm( b, stage, date );
+            }, warmUp );
+        }
+        return CompletableFuture.allOf( warmed );
+    }
+
+    private void prewarm( int block, int stage, LocalDate date ){
+        final byte[] schedule = blockSchedules.get( new BlockKey( block, stage, date ), this::serialise );
+        blocks.forEachTownIn( block, ( province, town, b ) ->
+                cache.warm( new ScheduleCache.Key( province, town, stage, date ), schedule ));
+    }
+
+    /**
+     * Ask the StageService which stage changes are scheduled, and plan warm-ups for them.
+     * Failures are ignored: we'll ask again at the next refresh, and at worst a change
+     * finds the cache cold.
+     */
+    private void refreshScheduledStages(){
+        try{
+            final HttpResponse<String> resp = stageService.send(
+                HttpRequest.newBuilder( URI.create( stageServiceUrl + "/stage/schedule" )).GET().build(),
+                HttpResponse.BodyHandlers.ofString() );
+            if( resp.statusCode() == 200 ){
+                planWarmUps( Arrays.asList( new ObjectMapper().readValue( resp.body(), ScheduledStageDO[].class )));
+            }
+        }catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+        }catch( Exception ignored ){ }
+    }
+
+    /**
+     * Warm the cache for each scheduled stage change {@link #PREWARM_LEAD} before it is
+     * made (or straight away, if it is sooner than that), so that the rush of requests
+     * when it is announced finds the new schedules already cached. The warm-up is for the
+     * day of the change, since that is the day the schedules will start on. Warm-ups
+     * for changes that are no longer scheduled are called off.
+     */
+    @VisibleForTesting
+    void planWarmUps( List<ScheduledStageDO> scheduled ){
+        final Set<Long> ids = scheduled.stream().map( ScheduledStageDO::getId ).collect( Collectors.toSet() );
+        plannedWarmUps.entrySet().removeIf( planned -> {
+            if( ids.contains( planned.getKey() )) return false;
+            planned.getValue().cancel( false );
+            return true;
+        });
+        for( ScheduledStageDO change : scheduled ){
+            if( plannedWarmUps.containsKey( change.getId() )) continue;
+            final ZonedDateTime effectiveAt;
+            try{
+                effectiveAt = OffsetDateTime.parse( change.getEffectiveAt() ).atZoneSameInstant( ZoneId.systemDefault() );
+            }catch( DateTimeParseException | NullPointerException e ){
+                continue;
+            }
+            final long delayMillis = Math.max( 0,
+                Duration.between( Instant.now(), effectiveAt.toInstant() ).minus( PREWARM_LEAD ).toMillis() );
+            // Warming only fills free space, so a change cancelled after this has run
+            // costs nothing but some idle cache space.
+            plannedWarmUps.put( change.getId(), housekeeping.schedule(
+                () -> prewarm( change.getStage(), effectiveAt.toLocalDate(), () -> true ),
+                delayMillis, TimeUnit.MILLISECONDS ));
+        }
+    }
+
+    // A full queue makes the stage listener warm blocks itself, which slows the next
+    // announcement down rather than piling up work.
+    private static ThreadPoolExecutor newWarmUpPool(){
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor( WARM_UP_THREADS, WARM_UP_THREADS,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>( 2 * ScheduleEngine.BLOCKS ),
+                r -> {
+                    final Thread t = new Thread( r, "schedule-warm-up-" + threads.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy() );
+        pool.allowCoreThreadTimeOut( true );
+        return pool;
+    }
+
+    // Schedules start "today", so after midnight all the cached ones are out of date.
+    private void scheduleMidnightPurge(){
+        final LocalDateTime now = LocalDateTime.now();
+        final long delayMillis = Duration.between( now, now.toLocalDate().plusDays( 1 ).atStartOfDay() ).toMillis();
+        housekeeping.schedule( () -> {
+            cache.invalidateBefore( LocalDate.now() );
+            scheduleMidnightPurge();
+        }, delayMillis + 1, TimeUnit.MILLISECONDS );
     }
 
     private Javalin initHttpServer(){
-        return Javalin.create()
+        return Javalin.create( config -> config.jsonMapper( json ))
+                .get( "/metrics", ctx -> ctx.json( cache.metrics() ))
+                .post( "/schedules/batch", this::getScheduleBatch )
+                // must come before /{province}/{town}/{stage}, which would otherwise match it
+                .get( "/next/{province}/{town}", this::getNextOutages )
+                // must come before /{province}/{town}/{stage}, which would otherwise match it
+                .get( "/{province}/{town}/status", this::getStatus )
                 .get( "/{province}/{town}/{stage}", this::getSchedule )
+                // must come before /{province}/{town}, which would otherwise match it
+                .get( "/{province}/{town}.ics", this::getCalendar )
                 .get( "/{province}/{town}", this::getScheduleWithCurrent );
     }
 
@@ -132,12 +376,7 @@ public class ScheduleService
             return ctx.status( HttpStatus.BAD_REQUEST );
         }
 
-        final Optional<ScheduleDO> schedule = getSchedule( province, townName, stage );
-
-        ctx.status( schedule.isPresent()
-                ? HttpStatus.OK
-                : HttpStatus.NOT_FOUND );
-        return ctx.json( schedule.orElseGet( ScheduleService::emptySchedule ) );
+        return sendSchedule( ctx, province, townName, stage );
     }
 
     private Context getScheduleWithCurrent(Context ctx){
@@ -146,40 +385,320 @@ public class ScheduleService
         System.out.println(currentStage);
         final int stage = currentStage;
 
-        final Optional<ScheduleDO> schedule = getSchedule( province, townName, stage );
+        return sendSchedule( ctx, province, townName, stage );
+    }
+
+    private Context sendSchedule( Context ctx, String province, String townName, int stage ){
+        final OptionalInt block = blockOf( province, townName );
+        if( block.isEmpty() ){
+            return ctx.status( HttpStatus.NOT_FOUND ).json( emptySchedule() );
+        }
+        final byte[] body = scheduleJson( province, townName, block.getAsInt(), stage, LocalDate.now() );
+        return ctx.contentType( ContentType.APPLICATION_JSON ).result( body );
+    }
+
+    /**
+     * The town's schedule as JSON, from the cache if it's there. The block is resolved by
+     * the caller, before the lookup, so a hit costs no more than the lookup; and a miss
+     * shares the block's schedule with every other town in the block.
+     */
+    private byte[] scheduleJson( String province, String town, int block, int stage, LocalDate date ){
+        return cache.get(
+                ScheduleCache.Key.of( province, town, stage, date ),
+                key -> blockSchedules.get( new BlockKey( block, stage, date ), this::serialise ));
+    }
+
+    record BlockKey( int block, int stage, LocalDate startDate ){}
+
+    private byte[] serialise( BlockKey key ){
+        final ScheduleDO schedule = engine.scheduleFor( key.block(), key.stage(), key.startDate() );
+        try{
+            return json.getMapper().writeValueAsBytes( schedule );
+        }catch( JsonProcessingException e ){
+            throw new IllegalStateException( "Unable to serialise schedule for " + key, e );
+        }
+    }
+
+    @VisibleForTesting
+    ScheduleCache.Metrics cacheMetrics(){
+        return cache.metrics();
+    }
+
+    /**
+     * Is the town off right now (or at the time given by {@code ?at=}, an ISO local date-time)?
+     * The answer comes straight from the engine's precomputed tables, so this is cheap
+     * enough for clients to poll.
+     */
+    private Context getStatus( Context ctx ){
+        final String province = ctx.pathParam( "province" );
+        final String townName = ctx.pathParam( "town" );
+        final LocalDateTime at;
+        try{
+            final String atParam = ctx.queryParam( "at" );
+            at = atParam == null ? LocalDateTime.now() : LocalDateTime.parse( atParam );
+        }catch( DateTimeParseException e ){
+            return ctx.status( HttpStatus.BAD_REQUEST ).json( "at must be a date-time like 2024-03-30T14:30" );
+        }
+        final int stage = ctx.queryParamAsClass( "stage", Integer.class )
+                .check( s -> s >= 0 && s <= ScheduleEngine.MAX_STAGE, "stage must be between 0 and " + ScheduleEngine.MAX_STAGE )
+                .getOrDefault( currentStage );
+
+        final Optional<Boolean> off = isShed( province, townName, stage, at );
+        if( off.isEmpty() ){
+            return ctx.status( HttpStatus.NOT_FOUND ).json( "Town not found" );
+        }
+        return ctx.json( new StatusDO( province, townName, stage, at.toString(), off.get() ));
+    }
+
+    public static final int DEFAULT_NEXT_OUTAGES = 1;
+    public static final int MAX_NEXT_OUTAGES = 100;
+
+    /**
+     * When are the town's next outages, and how long do they last? Outages are taken from
+     * the engine one at a time, so only as many as {@code ?count=} asks for are worked out.
+     */
+    private Context getNextOutages( Context ctx ){
+        final String province = ctx.pathParam( "province" );
+        final String townName = ctx.pathParam( "town" );
+        final LocalDateTime from;
+        try{
+            final String fromParam = ctx.queryParam( "from" );
+            from = fromParam == null ? LocalDateTime.now() : LocalDateTime.parse( fromParam );
+        }catch( DateTimeParseException e ){
+            return ctx.status( HttpStatus.BAD_REQUEST ).json( "from must be a date-time like 2024-03-30T14:30" );
+        }
+        final int count = ctx.queryParamAsClass( "count", Integer.class )
+                .check( n -> n > 0 && n <= MAX_NEXT_OUTAGES, "count must be between 1 and " + MAX_NEXT_OUTAGES )
+                .getOrDefault( DEFAULT_NEXT_OUTAGES );
+        final int stage = ctx.queryParamAsClass( "stage", Integer.class )
+                .check( s -> s >= 0 && s <= ScheduleEngine.MAX_STAGE, "stage must be between 0 and " + ScheduleEngine.MAX_STAGE )
+                .getOrDefault( currentStage );
+
+        final OptionalInt block = blockOf( province, townName );
+        if( block.isEmpty() ){
+            return ctx.status( HttpStatus.NOT_FOUND ).json( "Town not found" );
+        }
+        return ctx.json( engine.nextOutages( block.getAsInt(), stage, from )
+                .limit( count )
+                .map( outage -> new OutageDO( outage.start().toString(), outage.end().toString(), outage.duration().toMinutes() ))
+                .toList() );
+    }
 
-        ctx.status( schedule.isPresent()
-                ? HttpStatus.OK
-                : HttpStatus.NOT_FOUND );
-        return ctx.json( schedule.orElseGet( ScheduleService::emptySchedule ) );
+    public static final String CONTENT_TYPE_CALENDAR = "text/calendar; charset=utf-8";
+
+    /**
+     * The town's outages at the current stage as an iCalendar feed, for calendar apps to
+     * subscribe to. The feed covers the same days as a schedule, and is the same all day
+     * until the stage changes, so its ETag is made from just the town, block, stage and
+     * date, and pollers that send it back in {@code If-None-Match} get a 304 without a
+     * calendar being generated at all. Otherwise the calendar is streamed to the client as
+     * it is generated.
+     */
+    private void getCalendar( Context ctx ) throws IOException {
+        final String province = ctx.pathParam( "province" );
+        final String townName = ctx.pathParam( "town" );
+        final OptionalInt block = blockOf( province, townName );
+        if( block.isEmpty() ){
+            ctx.status( HttpStatus.NOT_FOUND ).json( "Town not found" );
+            return;
+        }
+        final int stage = currentStage;
+        final LocalDate today = LocalDate.now();
+        final String etag = "\"" + block.getAsInt() + "-" + stage + "-" + today
+                + "-" + Integer.toHexString( ( province + '/' + townName ).hashCode() ) + "\"";
+        ctx.header( "ETag", etag );
+        if( etag.equals( ctx.header( "If-None-Match" ))){
+            ctx.status( HttpStatus.NOT_MODIFIED );
+            return;
+        }
+        final LocalDateTime start = today.atStartOfDay();
+        final LocalDateTime end = start.plusDays( ScheduleEngine.SCHEDULE_DAYS );
+        ctx.contentType( CONTENT_TYPE_CALENDAR );
+        IcsWriter.write( ctx.outputStream(), BlockMap.normalise( province ) + "-" + BlockMap.normalise( townName ),
+                townName, stage, start,
+                engine.nextOutages( block.getAsInt(), stage, start )
+                        .takeWhile( outage -> outage.start().isBefore( end ))
+                        .iterator() );
     }
 
-    private Context getDefaultSchedule( Context ctx ){
-        return ctx.json( mockSchedule() );
+    record OutageDO( String start, String end, long minutes ){}
+
+    record StatusDO( String province, String town, int stage, String at, boolean off ){}
+
+    Optional<Boolean> isShed( String province, String town, int stage, LocalDateTime at ){
+        final OptionalInt block = blockOf( province, town );
+        return block.isPresent()
+                ? Optional.of( engine.isShed( block.getAsInt(), stage, at ))
+                : Optional.empty();
     }
 
-    // There *must* be a better way than this...
     Optional<ScheduleDO> getSchedule( String province, String town, int stage ){
-        return province.equalsIgnoreCase( "Mars" )
-                ? Optional.empty()
-                : Optional.of( mockSchedule() );
-    }
-
-    private static ScheduleDO mockSchedule(){
-        final List<SlotDO> slots = List.of(
-                new SlotDO( LocalTime.of( 2, 0 ), LocalTime.of( 4, 0 ) ),
-                new SlotDO( LocalTime.of( 10, 0 ), LocalTime.of( 12, 0 ) ),
-                new SlotDO( LocalTime.of( 18, 0 ), LocalTime.of( 20, 0 ) )
-        );
-        final List<DayDO> days = List.of(
-                new DayDO( slots ),
-                new DayDO( slots ),
-                new DayDO( slots ),
-                new DayDO( slots )
-        );
-        return new ScheduleDO( days );
+        final OptionalInt block = blockOf( province, town );
+        return block.isPresent()
+                ? Optional.of( engine.scheduleFor( block.getAsInt(), stage, LocalDate.now() ))
+                : Optional.empty();
     }
 
+    private OptionalInt blockOf( String province, String town ){
+        final int block = blocks.blockOf( province, town );
+        return block == BlockMap.NOT_FOUND
+                ? OptionalInt.empty()
+                : OptionalInt.of( block );
+    }
+
+    private static BlockMap loadBlocks(){
+        final BlockMap blocks = new BlockMap();
+        final InputStream resource = ScheduleService.class.getResourceAsStream( BLOCKS_RESOURCE );
+        if( resource == null ){
+            throw new IllegalStateException( "Missing town blocks resource " + BLOCKS_RESOURCE );
+        }
+        try( Reader in = new InputStreamReader( resource, StandardCharsets.UTF_8 )){
+            blocks.load( in );
+        }catch( IOException e ){
+            throw new IllegalStateException( "Unable to load town blocks from " + BLOCKS_RESOURCE, e );
+        }
+        final File placesFile = placesFile();
+        if( placesFile.isFile() ){
+            try{
+                blocks.addAll( new PlacesCsvParser().parseCsvSource( placesFile ));
+            }catch( IOException e ){
+                throw new IllegalStateException( "Unable to load towns from " + placesFile, e );
+            }
+        }else if( System.getProperty( PLACES_FILE_PROPERTY ) != null ){
+            throw new IllegalStateException( "No places file " + placesFile );
+        }else{
+            LOG.warn( "No places file {}: only the {} towns in {} will be found", placesFile, blocks.size(), BLOCKS_RESOURCE );
+        }
+        return blocks;
+    }
+
+    private static File placesFile(){
+        final String property = System.getProperty( PLACES_FILE_PROPERTY );
+        if( property != null ) return new File( property );
+
+        final File workingDir = new File( System.getProperty( "user.dir" ));
+        final Properties config = new Properties();
+        final File configFile = new File( workingDir, "places.properties" );
+        if( configFile.isFile() ){
+            try( Reader in = new FileReader( configFile, StandardCharsets.UTF_8 )){
+                config.load( in );
+            }catch( IOException e ){
+                throw new IllegalStateException( "Unable to read " + configFile, e );
+            }
+        }
+        final String dataFile = config.getProperty( PlaceNameService.CFG_DATA_FILE );
+        return dataFile != null
+            ? new File( dataFile )
+            : new File( workingDir, "resources/PlaceNamesZA2008.csv" );
+    }
+
+    /**
+     * Schedules for many towns at once. The request body is a JSON array of
+     * {@code {"province": ..., "town": ...}} objects, and the stage is given by {@code ?stage=}
+     * (or is the current stage). The response is an array of
+     * {@code {"province": ..., "town": ..., "schedule": ...}} objects in the same order, with
+     * a null schedule for towns that don't exist. A body that isn't an array of such
+     * objects gets a 400.
+     * <p>
+     * The whole request is read (and checked) before any of the response is written, since
+     * after that it's too late to change the status; but it's only names. The schedules,
+     * which are the bulk of it, are streamed one town at a time. Every town in a block has
+     * the same schedule, so each block's is found once per batch: from the cache if it's
+     * there, or else built and shared with any other request building it. A batch only
+     * reads the cache: caching every town in it would push out the towns that single
+     * requests keep asking for. The cached JSON is written out as the bytes it already is.
+     */
+    private void getScheduleBatch( Context ctx ) throws IOException {
+        final int stage = ctx.queryParamAsClass( "stage", Integer.class )
+                .check( s -> s >= 0 && s <= ScheduleEngine.MAX_STAGE, "stage must be between 0 and " + ScheduleEngine.MAX_STAGE )
+                .getOrDefault( currentStage );
+        final LocalDate today = LocalDate.now();
+        final List<TownDO> towns = readTowns( json.getMapper(), ctx.bodyInputStream() );
+        if( towns == null ){
+            ctx.status( HttpStatus.BAD_REQUEST ).json( "Expected a JSON array of {province, town} objects" );
+            return;
+        }
+        ctx.contentType( ContentType.APPLICATION_JSON );
+        final byte[][] schedules = new byte[ ScheduleEngine.BLOCKS ][];
+        try( OutputStream out = new BufferedOutputStream( ctx.outputStream() )){
+            out.write( '[' );
+            for( int i = 0; i < towns.size(); i++ ){
+                final TownDO aTown = towns.get( i );
+                if( i > 0 ) out.write( ',' );
+                out.write( PROVINCE_FIELD );
+                writeString( out, aTown.province() );
+                out.write( TOWN_FIELD );
+                writeString( out, aTown.town() );
+                out.write( SCHEDULE_FIELD );
+                final OptionalInt block = aTown.province() == null || aTown.town() == null
+                        ? OptionalInt.empty()
+                        : blockOf( aTown.province(), aTown.town() );
+                if( block.isPresent() ){
+                    final int b = block.getAsInt();
+                    if( schedules[ b ] == null ){
+                        schedules[ b ] = batchScheduleJson( aTown, b, stage, today );
+                    }
+                    out.write( schedules[ b ] );
+                }else{
+                    out.write( NULL );
+                }
+                out.write( '}' );
+            }
+            out.write( ']' );
+        }
+    }
+
+    private static final byte[] PROVINCE_FIELD = "{\"province\":".getBytes( StandardCharsets.UTF_8 );
+    private static final byte[] TOWN_FIELD = ",\"town\":".getBytes( StandardCharsets.UTF_8 );
+    private static final byte[] SCHEDULE_FIELD = ",\"schedule\":".getBytes( StandardCharsets.UTF_8 );
+    private static final byte[] NULL = "null".getBytes( StandardCharsets.UTF_8 );
+
+    private static void writeString( OutputStream out, String s ) throws IOException {
+        if( s == null ){
+            out.write( NULL );
+            return;
+        }
+        out.write( '"' );
+        out.write( JsonStringEncoder.getInstance().quoteAsUTF8( s ));
+        out.write( '"' );
+    }
+
+    /**
+     * The block's schedule for a batch: cached JSON if there is any, but nothing is cached.
+     */
+    private byte[] batchScheduleJson( TownDO aTown, int block, int stage, LocalDate date ){
+        final byte[] cached = cache.find( ScheduleCache.Key.of( aTown.province(), aTown.town(), stage, date ));
+        return cached != null
+                ? cached
+                : blockSchedules.get( new BlockKey( block, stage, date ), this::serialise );
+    }
+
+    /**
+     * @return the towns in a batch request, or null if it isn't a JSON array of objects.
+     */
+    private static List<TownDO> readTowns( ObjectMapper mapper, InputStream body ) throws IOException {
+        final ObjectReader townReader = mapper.readerFor( TownDO.class )
+                .without( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES );
+        final List<TownDO> towns = new ArrayList<>();
+        try( JsonParser in = mapper.getFactory().createParser( body )){
+            if( in.nextToken() != JsonToken.START_ARRAY ){
+                return null;
+            }
+            JsonToken next;
+            while(( next = in.nextToken() ) != JsonToken.END_ARRAY ){
+                if( next != JsonToken.START_OBJECT ){
+                    return null;
+                }
+                towns.add( townReader.readValue( in ));
+            }
+        }catch( JsonProcessingException e ){
+            return null;
+        }
+        return towns;
+    }
+
+    record TownDO( String province, String town ){}
+
     private static ScheduleDO emptySchedule(){
         final List<SlotDO> slots = Collections.emptyList();
         final List<DayDO> days = Collections.emptyList();
@@ -0,0 +1,271 @@
+package za.co.fourgrid.schedule;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import za.co.fourgrid.model.Places;
+import za.co.fourgrid.model.Town;
+
+/**
+ * I know which load-shedding block each town is in.
+ * <p>
+ * Towns are looked up by a normalised (province, town) key: only letters and digits count,
+ * and case doesn't matter, so {@code "KwaZulu-Natal"}, {@code "kwazulu natal"} and
+ * {@code "KwaZuluNatal"} are all the same province. The keys live in an open-addressing
+ * hash table, and a lookup normalises, hashes and compares its arguments character by
+ * character, so it never allocates anything. A town that isn't in the table simply isn't
+ * found.
+ * <p>
+ * A BlockMap is filled in while loading and then only read, so it may be shared between
+ * threads once it has been loaded.
+ */
+public final class BlockMap
+{
+    public static final int NOT_FOUND = -1;
+
+    private static final char SEPARATOR = '/';
+
+    private String[] keys;
+
+    private byte[] blocks;
+
+    private int size;
+
+    // The towns in each block, built the first time they're asked for and dropped whenever
+    // a town is put, so that a warm-up doesn't have to look through every town for each block.
+    private volatile TownsByBlock townsByBlock;
+
+    public BlockMap(){
+        keys = new String[ 64 ];
+        blocks = new byte[ 64 ];
+    }
+
+    /**
+     * Load a block file: lines of {@code province,town,block}, where blocks are numbered
+     * from 1 to {@link ScheduleEngine#BLOCKS}. Blank lines and lines starting with
+     * {@code #} are ignored.
+     *
+     * @return me, with the towns in the file added, replacing any I already knew about.
+     */
+    public BlockMap load( Reader blockFile ) throws IOException {
+        final BufferedReader in = new BufferedReader( blockFile );
+        String line;
+        int lineNumber = 0;
+        while(( line = in.readLine() ) != null ){
+            lineNumber++;
+            if( line.isBlank() || line.startsWith( "#" )) continue;
+            final String[] fields = line.split( "," );
+            if( fields.length != 3 ){
+                throw new IOException( "Line " + lineNumber + ": expected province,town,block but got " + line );
+            }
+            final int block;
+            try{
+                block = Integer.parseInt( fields[ 2 ].trim() ) - 1;
+            }catch( NumberFormatException e ){
+                throw new IOException( "Line " + lineNumber + ": bad block number " + fields[ 2 ], e );
+            }
+            if( block < 0 || block >= ScheduleEngine.BLOCKS ){
+                throw new IOException( "Line " + lineNumber + ": block must be between 1 and " + ScheduleEngine.BLOCKS );
+            }
+            put( fields[ 0 ], fields[ 1 ], block );
+        }
+        return this;
+    }
+
+    /**
+     * Add all the towns in a places dataset that I don't already know about. The places
+     * data doesn't say which block a town is in, so the towns are spread over the blocks
+     * by {@link ScheduleEngine#blockOf name}.
+     *
+     * @return me
+     */
+    public BlockMap addAll( Places places ){
+        for( String province : places.provinces() ){
+            for( Town aTown : places.townsIn( province )){
+                if( blockOf( province, aTown.getName() ) == NOT_FOUND ){
+                    put( province, aTown.getName(), ScheduleEngine.blockOf( province, aTown.getName() ));
+                }
+            }
+        }
+        return this;
+    }
+
+    public interface TownBlockConsumer
+    {
+        void accept( String province, String town, int block );
+    }
+
+    /**
+     * Pass every town in a block to {@code consumer}, with its province and town names
+     * {@link #normalise normalised}.
+     */
+    public void forEachTownIn( int block, TownBlockConsumer consumer ){
+        final TownsByBlock towns = townsByBlock();
+        final String[] provinces = towns.provinces[ block ];
+        final String[] names = towns.towns[ block ];
+        for( int i = 0; i < names.length; i++ ){
+            consumer.accept( provinces[ i ], names[ i ], block );
+        }
+    }
+
+    // The normalised province and town names of the i'th town in block b are
+    // provinces[ b ][ i ] and towns[ b ][ i ].
+    private record TownsByBlock( String[][] provinces, String[][] towns ){}
+
+    private TownsByBlock townsByBlock(){
+        TownsByBlock towns = townsByBlock;
+        if( towns != null ) return towns;
+        synchronized( this ){
+            if( townsByBlock == null ) townsByBlock = indexTownsByBlock();
+            return townsByBlock;
+        }
+    }
+
+    private TownsByBlock indexTownsByBlock(){
+        final int[] counts = new int[ ScheduleEngine.BLOCKS ];
+        for( int i = 0; i < keys.length; i++ ){
+            if( keys[ i ] != null ) counts[ blocks[ i ]]++;
+        }
+        final String[][] provinces = new String[ ScheduleEngine.BLOCKS ][];
+        final String[][] towns = new String[ ScheduleEngine.BLOCKS ][];
+        for( int b = 0; b < ScheduleEngine.BLOCKS; b++ ){
+            provinces[ b ] = new String[ counts[ b ]];
+            towns[ b ] = new String[ counts[ b ]];
+        }
+        // There are only a handful of provinces, so each town shares its province's name.
+        final Map<String, String> provinceNames = new HashMap<>();
+        final int[] filled = new int[ ScheduleEngine.BLOCKS ];
+        for( int i = 0; i < keys.length; i++ ){
+            if( keys[ i ] == null ) continue;
+            final int separator = keys[ i ].indexOf( SEPARATOR );
+            final int b = blocks[ i ];
+            provinces[ b ][ filled[ b ]] = provinceNames.computeIfAbsent( keys[ i ].substring( 0, separator ), p -> p );
+            towns[ b ][ filled[ b ]++ ] = keys[ i ].substring( separator + 1 );
+        }
+        return new TownsByBlock( provinces, towns );
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return the block (from 0) that the town is in, or {@link #NOT_FOUND}.
+     */
+    public int blockOf( String province, String town ){
+        final int mask = keys.length - 1;
+        for( int i = hash( province, town ) & mask; keys[ i ] != null; i = ( i + 1 ) & mask ){
+            if( matches( keys[ i ], province, town )){
+                return blocks[ i ];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    public void put( String province, String town, int block ){
+        if( block < 0 || block >= ScheduleEngine.BLOCKS ){
+            throw new IllegalArgumentException( "No such block: " + block );
+        }
+        final String key = normalise( province ) + SEPARATOR + normalise( town );
+        if( key.length() == 1 ){
+            throw new IllegalArgumentException( "Province and town may not both be empty" );
+        }
+        townsByBlock = null;
+        if( 2 * ( size + 1 ) > keys.length ){
+            grow();
+        }
+        final int mask = keys.length - 1;
+        int i = hash( province, town ) & mask;
+        while( keys[ i ] != null && ! keys[ i ].equals( key )){
+            i = ( i + 1 ) & mask;
+        }
+        if( keys[ i ] == null ){
+            keys[ i ] = key;
+            size++;
+        }
+        blocks[ i ] = (byte) block;
+    }
+
+    private void grow(){
+        final String[] oldKeys = keys;
+        final byte[] oldBlocks = blocks;
+        keys = new String[ oldKeys.length * 2 ];
+        blocks = new byte[ oldKeys.length * 2 ];
+        final int mask = keys.length - 1;
+        for( int j = 0; j < oldKeys.length; j++ ){
+            if( oldKeys[ j ] == null ) continue;
+            int i = hashOfKey( oldKeys[ j ] ) & mask;
+            while( keys[ i ] != null ) i = ( i + 1 ) & mask;
+            keys[ i ] = oldKeys[ j ];
+            blocks[ i ] = oldBlocks[ j ];
+        }
+    }
+
+    // FNV-1a over the normalised characters of "province/town", then mixed so that the
+    // low bits (used to index the table) depend on all of them.
+    private static int hash( String province, String town ){
+        int h = 0x811C9DC5;
+        h = hashNormalised( h, province );
+        h = ( h ^ SEPARATOR ) * 0x01000193;
+        h = hashNormalised( h, town );
+        return h ^ ( h >>> 16 );
+    }
+
+    private static int hashNormalised( int h, String s ){
+        for( int i = 0; i < s.length(); i++ ){
+            final char c = s.charAt( i );
+            if( Character.isLetterOrDigit( c )){
+                h = ( h ^ Character.toLowerCase( c )) * 0x01000193;
+            }
+        }
+        return h;
+    }
+
+    private static int hashOfKey( String key ){
+        int h = 0x811C9DC5;
+        for( int i = 0; i < key.length(); i++ ){
+            h = ( h ^ key.charAt( i )) * 0x01000193;
+        }
+        return h ^ ( h >>> 16 );
+    }
+
+    /**
+     * @return true if {@code key} is the normalised form of {@code province + "/" + town}.
+     */
+    private static boolean matches( String key, String province, String town ){
+        int k = matchesNormalised( key, 0, province );
+        if( k < 0 || k >= key.length() || key.charAt( k ) != SEPARATOR ) return false;
+        k = matchesNormalised( key, k + 1, town );
+        return k == key.length();
+    }
+
+    /**
+     * @return the position in {@code key} after the normalised characters of {@code s}, or
+     *      -1 if they don't match the characters of {@code key} from {@code from}.
+     */
+    private static int matchesNormalised( String key, int from, String s ){
+        int k = from;
+        for( int i = 0; i < s.length(); i++ ){
+            final char c = s.charAt( i );
+            if( ! Character.isLetterOrDigit( c )) continue;
+            if( k >= key.length() || key.charAt( k ) != Character.toLowerCase( c )) return -1;
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * @return {@code s} as it is used in keys: just its letters and digits, in lower case.
+     */
+    public static String normalise( String s ){
+        final StringBuilder normal = new StringBuilder( s.length() );
+        for( int i = 0; i < s.length(); i++ ){
+            final char c = s.charAt( i );
+            if( Character.isLetterOrDigit( c )) normal.append( Character.toLowerCase( c ));
+        }
+        return normal.toString();
+    }
+}
@@ -0,0 +1,187 @@
+package za.co.fourgrid.schedule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Iterator;
+
+/**
+ * I write load-shedding outages as an iCalendar (RFC 5545) feed that calendar apps can
+ * subscribe to.
+ * <p>
+ * The calendar is written straight to an output stream as it is generated, one content
+ * line at a time, and is never held in memory as a whole. Each thread has one writer whose
+ * line and output buffers are reused for every feed it writes, so writing a feed
+ * allocates very little. Lines are folded at 75 octets and end with CRLF, as the RFC
+ * requires.
+ */
+public final class IcsWriter
+{
+    // Outage times are local (South African) times; the feed gives them in UTC.
+    public static final ZoneId LOCAL_ZONE = ZoneId.of( "Africa/Johannesburg" );
+
+    private static final int MAX_LINE_OCTETS = 75;
+
+    private static final ThreadLocal<IcsWriter> WRITERS = ThreadLocal.withInitial( IcsWriter::new );
+
+    private final StringBuilder line = new StringBuilder( 256 );
+
+    private final byte[] buffer = new byte[ 8192 ];
+
+    private int used;
+
+    private OutputStream out;
+
+    private IcsWriter(){
+    }
+
+    /**
+     * Write a calendar with an event for each outage.
+     *
+     * @param calendarId identifies the calendar; used to make unique event ids.
+     * @param townName the town the outages are for, used in the calendar and event names.
+     * @param stamp the time the calendar's content was determined (its {@code DTSTAMP}).
+     */
+    public static void write( OutputStream out, String calendarId, String townName, int stage,
+                              LocalDateTime stamp, Iterator<Outage> outages ) throws IOException {
+        final IcsWriter writer = WRITERS.get();
+        writer.out = out;
+        writer.used = 0;
+        try{
+            writer.writeCalendar( calendarId, townName, stage, stamp, outages );
+            writer.flush();
+        }finally{
+            writer.out = null;
+        }
+    }
+
+    private void writeCalendar( String calendarId, String townName, int stage,
+                                LocalDateTime stamp, Iterator<Outage> outages ) throws IOException {
+        property( "BEGIN", "VCALENDAR" );
+        property( "VERSION", "2.0" );
+        property( "PRODID", "-//4Grid//ScheduleService//EN" );
+        property( "CALSCALE", "GREGORIAN" );
+        property( "METHOD", "PUBLISH" );
+        line.setLength( 0 );
+        line.append( "X-WR-CALNAME:Load-shedding in " );
+        appendText( townName );
+        writeLine();
+        while( outages.hasNext() ){
+            final Outage outage = outages.next();
+            property( "BEGIN", "VEVENT" );
+            line.setLength( 0 );
+            line.append( "UID:" );
+            appendUtc( outage.start() );
+            line.append( '-' ).append( stage ).append( '-' );
+            appendText( calendarId );
+            line.append( "@fourgrid.co.za" );
+            writeLine();
+            timeProperty( "DTSTAMP", stamp );
+            timeProperty( "DTSTART", outage.start() );
+            timeProperty( "DTEND", outage.end() );
+            line.setLength( 0 );
+            line.append( "SUMMARY:Load-shedding (stage " ).append( stage ).append( "): " );
+            appendText( townName );
+            writeLine();
+            property( "TRANSP", "OPAQUE" );
+            property( "END", "VEVENT" );
+        }
+        property( "END", "VCALENDAR" );
+    }
+
+    private void property( String name, String value ) throws IOException {
+        line.setLength( 0 );
+        line.append( name ).append( ':' ).append( value );
+        writeLine();
+    }
+
+    private void timeProperty( String name, LocalDateTime localTime ) throws IOException {
+        line.setLength( 0 );
+        line.append( name ).append( ':' );
+        appendUtc( localTime );
+        writeLine();
+    }
+
+    // e.g. 20240330T120000Z
+    private void appendUtc( LocalDateTime localTime ){
+        final ZonedDateTime utc = localTime.atZone( LOCAL_ZONE ).withZoneSameInstant( ZoneOffset.UTC );
+        line.append( utc.getYear() );
+        twoDigits( utc.getMonthValue() );
+        twoDigits( utc.getDayOfMonth() );
+        line.append( 'T' );
+        twoDigits( utc.getHour() );
+        twoDigits( utc.getMinute() );
+        twoDigits( utc.getSecond() );
+        line.append( 'Z' );
+    }
+
+    private void twoDigits( int n ){
+        if( n < 10 ) line.append( '0' );
+        line.append( n );
+    }
+
+    // TEXT values must escape backslashes, semicolons, commas and newlines.
+    private void appendText( String text ){
+        for( int i = 0; i < text.length(); i++ ){
+            final char c = text.charAt( i );
+            switch( c ){
+                case '\\', ';', ',' -> line.append( '\\' ).append( c );
+                case '\n' -> line.append( "\\n" );
+                case '\r' -> { }
+                default -> line.append( c );
+            }
+        }
+    }
+
+    /**
+     * Encode the line as UTF-8 into the output buffer, folding it so that no physical line
+     * is longer than 75 octets and never splitting a character.
+     */
+    private void writeLine() throws IOException {
+        int octetsOnLine = 0;
+        for( int i = 0; i < line.length(); ){
+            final int codePoint = line.codePointAt( i );
+            i += Character.charCount( codePoint );
+            final int octets = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if( octetsOnLine + octets > MAX_LINE_OCTETS ){
+                put( '\r' );
+                put( '\n' );
+                put( ' ' );
+                octetsOnLine = 1;
+            }
+            if( octets == 1 ){
+                put( codePoint );
+            }else if( octets == 2 ){
+                put( 0xC0 | ( codePoint >> 6 ));
+                put( 0x80 | ( codePoint & 0x3F ));
+            }else if( octets == 3 ){
+                put( 0xE0 | ( codePoint >> 12 ));
+                put( 0x80 | (( codePoint >> 6 ) & 0x3F ));
+                put( 0x80 | ( codePoint & 0x3F ));
+            }else{
+                put( 0xF0 | ( codePoint >> 18 ));
+                put( 0x80 | (( codePoint >> 12 ) & 0x3F ));
+                put( 0x80 | (( codePoint >> 6 ) & 0x3F ));
+                put( 0x80 | ( codePoint & 0x3F ));
+            }
+            octetsOnLine += octets;
+        }
+        put( '\r' );
+        put( '\n' );
+    }
+
+    private void put( int b ) throws IOException {
+        if( used == buffer.length ){
+            flush();
+        }
+        buffer[ used++ ] = (byte) b;
+    }
+
+    private void flush() throws IOException {
+        out.write( buffer, 0, used );
+        used = 0;
+    }
+}
@@ -0,0 +1,19 @@
+package za.co.fourgrid.schedule;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * A single period of load-shedding: one or more adjacent slots, possibly running past
+ * midnight into the next day.
+ */
+public record Outage( LocalDateTime start, LocalDateTime end )
+{
+    public Duration duration(){
+        return Duration.between( start, end );
+    }
+
+    public boolean contains( LocalDateTime time ){
+        return ! time.isBefore( start ) && time.isBefore( end );
+    }
+}
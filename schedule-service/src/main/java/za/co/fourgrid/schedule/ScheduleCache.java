@@ -0,0 +1,201 @@
+package za.co.fourgrid.schedule;
+
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * I am a bounded cache of schedules that have already been serialised to JSON, so that
+ * popular towns don't have their schedule rebuilt and re-serialised on every request.
+ * <p>
+ * I am a segmented LRU cache, bounded by the total size of the cached bytes rather than
+ * by the number of entries. A new entry goes into a small <em>probationary</em> segment
+ * and is only moved to the larger <em>protected</em> segment if it is asked for again,
+ * so a burst of one-off requests can't push out the schedules that are asked for all
+ * the time. When the protected segment is full its least recently used entry goes back
+ * to probation, and when the cache is full the least recently used probationary entry
+ * is evicted.
+ */
+public final class ScheduleCache
+{
+    public static final long DEFAULT_CAPACITY_BYTES = 16L * 1024 * 1024;
+
+    // The share of the capacity kept for entries that have been asked for more than once
+    private static final double PROTECTED_SHARE = 0.8;
+
+    // Names are normalised the same way as in a BlockMap, so every spelling of a town
+    // that finds its block also finds its cached schedule. Names that are already
+    // normalised, as a BlockMap gives them out, can be used as they are.
+    public record Key( String province, String town, int stage, LocalDate startDate ){
+        public static Key of( String province, String town, int stage, LocalDate startDate ){
+            return new Key( BlockMap.normalise( province ), BlockMap.normalise( town ), stage, startDate );
+        }
+    }
+
+    public record Metrics( long hits, long misses, long evictions, long invalidations,
+                           int entries, long sizeBytes, long capacityBytes ){}
+
+    private final long capacityBytes;
+
+    private final long protectedCapacityBytes;
+
+    // Both segments are in access order: least recently used first.
+    private final LinkedHashMap<Key, byte[]> probation = new LinkedHashMap<>( 64, 0.75f, true );
+
+    private final LinkedHashMap<Key, byte[]> protectedSegment = new LinkedHashMap<>( 256, 0.75f, true );
+
+    private long probationBytes;
+
+    private long protectedBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    public ScheduleCache(){
+        this( DEFAULT_CAPACITY_BYTES );
+    }
+
+    public ScheduleCache( long capacityBytes ){
+        if( capacityBytes <= 0 ){
+            throw new IllegalArgumentException( "Cache capacity must be positive" );
+        }
+        this.capacityBytes = capacityBytes;
+        protectedCapacityBytes = (long) ( capacityBytes * PROTECTED_SHARE );
+    }
+
+    /**
+     * @return the cached JSON for {@code key}, computing (and caching) it if necessary.
+     *      {@code compute} is called without holding the cache lock.
+     */
+    public byte[] get( Key key, Function<Key, byte[]> compute ){
+        final byte[] cached = lookup( key );
+        if( cached != null ){
+            return cached;
+        }
+        final byte[] json = compute.apply( key );
+        put( key, json );
+        return json;
+    }
+
+    /**
+     * @return the cached JSON for {@code key}, or null if it isn't cached. Unlike
+     *      {@link #get}, a miss caches nothing, so callers that look up a lot of keys
+     *      once each don't crowd out the entries that are asked for again and again.
+     */
+    public byte[] find( Key key ){
+        return lookup( key );
+    }
+
+    private synchronized byte[] lookup( Key key ){
+        byte[] json = protectedSegment.get( key );
+        if( json != null ){
+            hits++;
+            return json;
+        }
+        json = probation.remove( key );
+        if( json == null ){
+            misses++;
+            return null;
+        }
+        hits++;
+        probationBytes -= json.length;
+        promote( key, json );
+        return json;
+    }
+
+    private synchronized void put( Key key, byte[] json ){
+        if( json.length > capacityBytes || protectedSegment.containsKey( key ) || probation.containsKey( key )){
+            return;
+        }
+        probation.put( key, json );
+        probationBytes += json.length;
+        evictIfFull();
+    }
+
+    /**
+     * Cache a schedule ahead of it being asked for, but only if there is room for it: a
+     * warm-up never pushes out anything that is already cached.
+     *
+     * @return true if {@code json} was cached.
+     */
+    public synchronized boolean warm( Key key, byte[] json ){
+        if( probationBytes + protectedBytes + json.length > capacityBytes
+                || protectedSegment.containsKey( key ) || probation.containsKey( key )){
+            return false;
+        }
+        probation.put( key, json );
+        probationBytes += json.length;
+        return true;
+    }
+
+    private void promote( Key key, byte[] json ){
+        protectedSegment.put( key, json );
+        protectedBytes += json.length;
+        final Iterator<Map.Entry<Key, byte[]>> lru = protectedSegment.entrySet().iterator();
+        while( protectedBytes > protectedCapacityBytes && lru.hasNext() ){
+            final Map.Entry<Key, byte[]> demoted = lru.next();
+            lru.remove();
+            protectedBytes -= demoted.getValue().length;
+            probation.put( demoted.getKey(), demoted.getValue() );
+            probationBytes += demoted.getValue().length;
+        }
+        evictIfFull();
+    }
+
+    private void evictIfFull(){
+        final Iterator<Map.Entry<Key, byte[]>> lru = probation.entrySet().iterator();
+        while( probationBytes + protectedBytes > capacityBytes && lru.hasNext() ){
+            probationBytes -= lru.next().getValue().length;
+            lru.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop the schedules for a stage, e.g. when it stops being the current stage and its
+     * schedules are unlikely to be asked for much any more.
+     */
+    public void invalidateStage( int stage ){
+        invalidateIf( key -> key.stage() == stage );
+    }
+
+    /**
+     * Drop the schedules that start before {@code date}: after midnight nobody will ask
+     * for yesterday's schedule.
+     */
+    public void invalidateBefore( LocalDate date ){
+        invalidateIf( key -> key.startDate().isBefore( date ));
+    }
+
+    private synchronized void invalidateIf( Predicate<Key> stale ){
+        probationBytes -= removeIf( probation, stale );
+        protectedBytes -= removeIf( protectedSegment, stale );
+    }
+
+    private long removeIf( Map<Key, byte[]> segment, Predicate<Key> stale ){
+        long removedBytes = 0;
+        final Iterator<Map.Entry<Key, byte[]>> entries = segment.entrySet().iterator();
+        while( entries.hasNext() ){
+            final Map.Entry<Key, byte[]> entry = entries.next();
+            if( stale.test( entry.getKey() )){
+                removedBytes += entry.getValue().length;
+                entries.remove();
+                invalidations++;
+            }
+        }
+        return removedBytes;
+    }
+
+    public synchronized Metrics metrics(){
+        return new Metrics( hits, misses, evictions, invalidations,
+            probation.size() + protectedSegment.size(), probationBytes + protectedBytes, capacityBytes );
+    }
+}
@@ -0,0 +1,271 @@
+package za.co.fourgrid.schedule;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import za.co.fourgrid.common.transfer.DayDO;
+import za.co.fourgrid.common.transfer.ScheduleDO;
+import za.co.fourgrid.common.transfer.SlotDO;
+
+/**
+ * I work out loadshedding schedules from a fixed set of rules instead of looking them up.
+ * <p>
+ * Every town belongs to one of {@link #BLOCKS} load-shedding blocks. The day is divided
+ * into {@link #SLOTS_PER_DAY} two-hour slots, and the rotation repeats every month: in
+ * each slot of each day of the month, stage 1 sheds one block, stage 2 sheds that block
+ * and one more, and so on up to stage 8, which sheds half of the blocks. So a block shed
+ * at some stage is always shed at every higher stage too.
+ * <p>
+ * The whole rotation is a table of bytes, built once, holding for each (block, day of
+ * month, slot) the lowest stage at which that block is shed in that slot. From that I
+ * precompute, for every (stage, block, day of month), a bit mask of the slots shed that
+ * day, so that "is this block off right now?" is one array lookup and a bit test.
+ */
+public final class ScheduleEngine
+{
+    public static final int BLOCKS = 16;
+
+    public static final int MAX_STAGE = 8;
+
+    public static final int DAYS_IN_CYCLE = 31;
+
+    public static final int SLOTS_PER_DAY = 12;
+
+    public static final int SLOT_HOURS = 24 / SLOTS_PER_DAY;
+
+    public static final int SCHEDULE_DAYS = 4;
+
+    // The stage-(n + 1) block in a slot is this many blocks on from the stage-n block.
+    // It is coprime with BLOCKS, so the 8 stages always shed 8 different blocks.
+    private static final int STAGE_STRIDE = 5;
+
+    // The threshold for a block that isn't shed in a slot at any stage
+    private static final byte NEVER = MAX_STAGE + 1;
+
+    private static final byte[] ROTATION = buildRotation();
+
+    // Bit n of SHED_SLOTS[ dayIndex( stage, block, day ) ] is set if the block is shed in slot n
+    private static final long[] SHED_SLOTS = buildShedSlots();
+
+    private static final LocalTime[] SLOT_STARTS = new LocalTime[ SLOTS_PER_DAY + 1 ];
+
+    static{
+        for( int slot = 0; slot < SLOTS_PER_DAY; slot++ ){
+            SLOT_STARTS[ slot ] = LocalTime.of( slot * SLOT_HOURS, 0 );
+        }
+        // The last slot of the day ends at midnight.
+        SLOT_STARTS[ SLOTS_PER_DAY ] = LocalTime.MIDNIGHT;
+    }
+
+    /**
+     * @return the schedule for the given block and stage for {@link #SCHEDULE_DAYS} days,
+     *      starting on {@code startDate}.
+     */
+    public ScheduleDO scheduleFor( int block, int stage, LocalDate startDate ){
+        checkBlock( block );
+        checkStage( stage );
+        final List<DayDO> days = new ArrayList<>( SCHEDULE_DAYS );
+        LocalDate date = startDate;
+        for( int i = 0; i < SCHEDULE_DAYS; i++ ){
+            days.add( new DayDO( slotsFor( shedSlots( block, stage, date ))));
+            date = date.plusDays( 1 );
+        }
+        final ScheduleDO schedule = new ScheduleDO( startDate, days );
+        schedule.setStage( stage );
+        return schedule;
+    }
+
+    /**
+     * @return a bit mask of the slots on {@code date} in which {@code block} is shed at
+     *      {@code stage}: bit n is set if the block is shed from {@code 2n:00} to {@code 2(n+1):00}.
+     */
+    public long shedSlots( int block, int stage, LocalDate date ){
+        checkBlock( block );
+        checkStage( stage );
+        return SHED_SLOTS[ dayIndex( stage, block, date.getDayOfMonth() - 1 ) ];
+    }
+
+    /**
+     * @return true if {@code block} is shed at {@code stage} at the time {@code at}.
+     */
+    public boolean isShed( int block, int stage, LocalDateTime at ){
+        checkBlock( block );
+        checkStage( stage );
+        final long slots = SHED_SLOTS[ dayIndex( stage, block, at.getDayOfMonth() - 1 ) ];
+        return ( slots & ( 1L << ( at.getHour() / SLOT_HOURS ))) != 0;
+    }
+
+    /**
+     * The outages of {@code block} at {@code stage}, in order, starting with the one in
+     * progress at {@code from} (if there is one). Outages are found lazily, a slot at a
+     * time, so consumers only pay for as many as they take. The search gives up
+     * {@link #OUTAGE_HORIZON_DAYS} days after {@code from}, so there are no outages at all
+     * at stage 0.
+     */
+    public Spliterator<Outage> outages( int block, int stage, LocalDateTime from ){
+        checkBlock( block );
+        checkStage( stage );
+        return new OutageSpliterator( block, stage, from );
+    }
+
+    /**
+     * @see #outages(int, int, LocalDateTime)
+     */
+    public Stream<Outage> nextOutages( int block, int stage, LocalDateTime from ){
+        return StreamSupport.stream( outages( block, stage, from ), false );
+    }
+
+    public static final int OUTAGE_HORIZON_DAYS = DAYS_IN_CYCLE;
+
+    /**
+     * I walk forward through the shed-slot masks one slot at a time, joining adjacent shed
+     * slots (even across midnight) into a single Outage.
+     */
+    private static final class OutageSpliterator
+        extends Spliterators.AbstractSpliterator<Outage>
+    {
+        private final int block;
+        private final int stage;
+        private final LocalDate lastDate;
+
+        private LocalDate date;
+        private int slot;
+        private long slots;
+
+        OutageSpliterator( int block, int stage, LocalDateTime from ){
+            super( Long.MAX_VALUE, ORDERED | DISTINCT | NONNULL | IMMUTABLE );
+            this.block = block;
+            this.stage = stage;
+            lastDate = from.toLocalDate().plusDays( OUTAGE_HORIZON_DAYS );
+            moveTo( from.toLocalDate(), from.getHour() / SLOT_HOURS );
+            // If we start part-way through an outage, report it from its real start.
+            for( int i = 0; stage > 0 && i < SLOTS_PER_DAY * OUTAGE_HORIZON_DAYS && isShed(); i++ ){
+                if( slot > 0 ){
+                    slot--;
+                }else{
+                    moveTo( date.minusDays( 1 ), SLOTS_PER_DAY - 1 );
+                }
+                if( ! isShed() ){
+                    step();
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean tryAdvance( Consumer<? super Outage> action ){
+            while( ! isShed() ){
+                if( date.isAfter( lastDate )) return false;
+                step();
+            }
+            final LocalDateTime start = date.atTime( SLOT_STARTS[ slot ] );
+            while( isShed() ){
+                step();
+            }
+            action.accept( new Outage( start, date.atTime( SLOT_STARTS[ slot ] )));
+            return true;
+        }
+
+        private boolean isShed(){
+            return ( slots & ( 1L << slot )) != 0;
+        }
+
+        private void step(){
+            if( ++slot == SLOTS_PER_DAY ){
+                moveTo( date.plusDays( 1 ), 0 );
+            }
+        }
+
+        private void moveTo( LocalDate aDate, int aSlot ){
+            date = aDate;
+            slot = aSlot;
+            slots = SHED_SLOTS[ dayIndex( stage, block, date.getDayOfMonth() - 1 ) ];
+        }
+    }
+
+    /**
+     * For towns whose block we don't know: spread them over the blocks by their names,
+     * {@link BlockMap#normalise normalised} so that every spelling BlockMap accepts for a
+     * town gets the same block.
+     */
+    public static int blockOf( String province, String town ){
+        final String key = BlockMap.normalise( province ) + "/" + BlockMap.normalise( town );
+        return Math.floorMod( key.hashCode(), BLOCKS );
+    }
+
+    /**
+     * Turn a bit mask of shed slots into a list of SlotDOs, joining adjacent slots together.
+     */
+    static List<SlotDO> slotsFor( long shedSlots ){
+        final List<SlotDO> slots = new ArrayList<>( Long.bitCount( shedSlots ));
+        int slot = 0;
+        while( slot < SLOTS_PER_DAY ){
+            if(( shedSlots & ( 1L << slot )) == 0 ){
+                slot++;
+                continue;
+            }
+            final int from = slot;
+            while( slot < SLOTS_PER_DAY && ( shedSlots & ( 1L << slot )) != 0 ) slot++;
+            slots.add( new SlotDO( SLOT_STARTS[ from ], SLOT_STARTS[ slot ] ));
+        }
+        return slots;
+    }
+
+    private static byte[] buildRotation(){
+        final byte[] rotation = new byte[ BLOCKS * DAYS_IN_CYCLE * SLOTS_PER_DAY ];
+        Arrays.fill( rotation, NEVER );
+        for( int day = 0; day < DAYS_IN_CYCLE; day++ ){
+            for( int slot = 0; slot < SLOTS_PER_DAY; slot++ ){
+                // Number the slots of the month so the rotation moves on from day to day.
+                final int slotOfMonth = day * SLOTS_PER_DAY + slot;
+                for( int stage = 1; stage <= MAX_STAGE; stage++ ){
+                    final int block = ( slotOfMonth + ( stage - 1 ) * STAGE_STRIDE ) % BLOCKS;
+                    rotation[ ( block * DAYS_IN_CYCLE + day ) * SLOTS_PER_DAY + slot ] = (byte) stage;
+                }
+            }
+        }
+        return rotation;
+    }
+
+    private static long[] buildShedSlots(){
+        final long[] shedSlots = new long[ ( MAX_STAGE + 1 ) * BLOCKS * DAYS_IN_CYCLE ];
+        for( int stage = 0; stage <= MAX_STAGE; stage++ ){
+            for( int block = 0; block < BLOCKS; block++ ){
+                for( int day = 0; day < DAYS_IN_CYCLE; day++ ){
+                    final int base = ( block * DAYS_IN_CYCLE + day ) * SLOTS_PER_DAY;
+                    long mask = 0;
+                    for( int slot = 0; slot < SLOTS_PER_DAY; slot++ ){
+                        if( ROTATION[ base + slot ] <= stage ) mask |= 1L << slot;
+                    }
+                    shedSlots[ dayIndex( stage, block, day ) ] = mask;
+                }
+            }
+        }
+        return shedSlots;
+    }
+
+    private static int dayIndex( int stage, int block, int dayOfMonth ){
+        return ( stage * BLOCKS + block ) * DAYS_IN_CYCLE + dayOfMonth;
+    }
+
+    private static void checkBlock( int block ){
+        if( block < 0 || block >= BLOCKS ){
+            throw new IllegalArgumentException( "No such block: " + block );
+        }
+    }
+
+    private static void checkStage( int stage ){
+        if( stage < 0 || stage > MAX_STAGE ){
+            throw new IllegalArgumentException( "No such stage: " + stage );
+        }
+    }
+}
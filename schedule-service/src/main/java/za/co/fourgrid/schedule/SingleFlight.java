@@ -0,0 +1,51 @@
+package za.co.fourgrid.schedule;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * I make sure that a value is only computed once at a time: threads that ask for a key
+ * while it is already being computed wait for that computation and share its result,
+ * instead of all computing it themselves.
+ * <p>
+ * I don't keep results once they have been handed out; that's what a cache is for.
+ */
+public final class SingleFlight<K, V>
+{
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @return the value for {@code key}, either from a computation that is already under
+     *      way or by calling {@code compute} in this thread.
+     */
+    public V get( K key, Function<K, V> compute ){
+        final CompletableFuture<V> mine = new CompletableFuture<>();
+        final CompletableFuture<V> theirs = inFlight.putIfAbsent( key, mine );
+        if( theirs != null ){
+            try{
+                return theirs.join();
+            }catch( CompletionException e ){
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+        try{
+            final V value = compute.apply( key );
+            mine.complete( value );
+            return value;
+        }catch( RuntimeException | Error e ){
+            mine.completeExceptionally( e );
+            throw e;
+        }finally{
+            inFlight.remove( key, mine );
+        }
+    }
+
+    /**
+     * @return how many computations are under way.
+     */
+    public int inFlight(){
+        return inFlight.size();
+    }
+}
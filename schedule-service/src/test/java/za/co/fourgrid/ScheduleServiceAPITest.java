@@ -1,16 +1,21 @@
 package za.co.fourgrid;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import kong.unirest.HttpResponse;
 import kong.unirest.HttpStatus;
+import kong.unirest.JsonNode;
+import kong.unirest.json.JSONArray;
+import kong.unirest.json.JSONObject;
 import kong.unirest.Unirest;
 import org.junit.jupiter.api.*;
 import za.co.fourgrid.common.transfer.ScheduleDO;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * I am an API / functional test of the ScheduleService. I am not a unit test.
@@ -19,6 +24,9 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 public class ScheduleServiceAPITest
 {
     public static final int TEST_PORT = 8888;
+
+    private static final String[] GAUTENG_TOWNS = { "Johannesburg", "Pretoria", "Soweto", "Brakpan", "Benoni" };
+
     private static ScheduleService testSvc;
 
     @BeforeAll
@@ -61,6 +69,24 @@ public class ScheduleServiceAPITest
         assertEquals( 0, response.getBody().numberOfDays() );
     }
 
+    @Test
+    public void getSchedule_unknownTownInARealProvince(){
+        HttpResponse<ScheduleDO> response = Unirest
+            .get( serverUrl() + "/Western%20Cape/Nowhereville/4" )
+            .asObject( ScheduleDO.class );
+        assertEquals( HttpStatus.NOT_FOUND, response.getStatus() );
+        assertEquals( 0, response.getBody().numberOfDays() );
+    }
+
+    @Test
+    public void getSchedule_provinceNamesAreNormalised(){
+        HttpResponse<String> response = Unirest
+            .get( serverUrl() + "/KwaZuluNatal/Durban/2" )
+            .asString();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertEquals( Unirest.get( serverUrl() + "/KwaZulu-Natal/Durban/2" ).asString().getBody(), response.getBody() );
+    }
+
     @Test
     public void illegalStage(){
         HttpResponse<ScheduleDO> response = Unirest
@@ -69,6 +95,158 @@ public class ScheduleServiceAPITest
         assertEquals( HttpStatus.BAD_REQUEST, response.getStatus() );
     }
 
+    @Test
+    public void getStatus_someTown(){
+        HttpResponse<JsonNode> response = Unirest
+            .get( serverUrl() + "/Eastern%20Cape/Gqeberha/status?at=2024-03-30T14:30&stage=8" )
+            .asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertEquals( 8, response.getBody().getObject().getInt( "stage" ));
+        final boolean off = response.getBody().getObject().getBoolean( "off" );
+        assertEquals( testSvc.isShed( "Eastern Cape", "Gqeberha", 8, LocalDateTime.of( 2024, 3, 30, 14, 30 )).get(), off );
+    }
+
+    @Test
+    public void getStatus_badRequests(){
+        assertEquals( HttpStatus.NOT_FOUND, Unirest.get( serverUrl() + "/Mars/Elonsburg/status" ).asString().getStatus() );
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/Western%20Cape/Knysna/status?at=teatime" ).asString().getStatus() );
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/Western%20Cape/Knysna/status?stage=9" ).asString().getStatus() );
+    }
+
+    @Test
+    public void repeatedScheduleRequestsAreCached(){
+        final HttpResponse<String> first = Unirest.get( serverUrl() + "/Western%20Cape/George/3" ).asString();
+        final HttpResponse<String> second = Unirest.get( serverUrl() + "/Western%20Cape/George/3" ).asString();
+        assertEquals( HttpStatus.OK, second.getStatus() );
+        assertEquals( "application/json", second.getHeaders().getFirst( "Content-Type" ));
+        assertEquals( first.getBody(), second.getBody() );
+
+        HttpResponse<JsonNode> metrics = Unirest.get( serverUrl() + "/metrics" ).asJson();
+        assertEquals( HttpStatus.OK, metrics.getStatus() );
+        assertTrue( metrics.getBody().getObject().getLong( "hits" ) >= 1 );
+    }
+
+    @Test
+    public void getSchedulesInABatch(){
+        HttpResponse<JsonNode> response = Unirest.post( serverUrl() + "/schedules/batch?stage=5" )
+            .body( "[{\"province\":\"Western Cape\",\"town\":\"Knysna\"},"
+                + "{\"province\":\"Mars\",\"town\":\"Elonsburg\"},"
+                + "{\"province\":\"Eastern Cape\",\"town\":\"Gqeberha\"}]" )
+            .asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+
+        final JSONArray results = response.getBody().getArray();
+        assertEquals( 3, results.length() );
+        assertEquals( "Knysna", results.getJSONObject( 0 ).getString( "town" ));
+        assertEquals( 5, results.getJSONObject( 0 ).getJSONObject( "schedule" ).getInt( "stage" ));
+        assertEquals( 4, results.getJSONObject( 0 ).getJSONObject( "schedule" ).getJSONArray( "days" ).length() );
+        assertTrue( results.getJSONObject( 1 ).isNull( "schedule" ));
+        assertEquals( "Gqeberha", results.getJSONObject( 2 ).getString( "town" ));
+    }
+
+    @Test
+    public void getSchedulesInALargeBatch(){
+        final StringBuilder body = new StringBuilder( "[" );
+        for( int i = 0; i < 10_000; i++ ){
+            if( i > 0 ) body.append( ',' );
+            body.append( "{\"province\":\"Gauteng\",\"town\":\"" ).append( GAUTENG_TOWNS[ i % GAUTENG_TOWNS.length ] ).append( "\"}" );
+        }
+        body.append( ']' );
+        HttpResponse<JsonNode> response = Unirest.post( serverUrl() + "/schedules/batch?stage=6" )
+            .body( body.toString() )
+            .asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertEquals( 10_000, response.getBody().getArray().length() );
+        assertEquals( 6, response.getBody().getArray().getJSONObject( 9_999 ).getJSONObject( "schedule" ).getInt( "stage" ));
+    }
+
+    @Test
+    public void batchMustBeAnArray(){
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.post( serverUrl() + "/schedules/batch" )
+            .body( "{\"province\":\"Gauteng\"}" ).asString().getStatus() );
+    }
+
+    @Test
+    public void batchMustOnlyHoldTowns(){
+        for( String body : new String[]{
+                "[{\"province\":\"Gauteng\",\"town\":\"Soweto\"},42]",
+                "[{\"province\":\"Gauteng\",\"town\":\"Soweto\"},[\"Gauteng\",\"Soweto\"]]",
+                "[{\"province\":{},\"town\":\"Soweto\"}]",
+                "[{\"province\":\"Gauteng\",\"town\":\"Soweto\"}," }){
+            assertEquals( HttpStatus.BAD_REQUEST, Unirest.post( serverUrl() + "/schedules/batch" )
+                .body( body ).asString().getStatus(), body );
+        }
+    }
+
+    @Test
+    public void batchesReadTheScheduleCacheWithoutFillingIt(){
+        final String bethlehem = "{\"province\":\"Free State\",\"town\":\"Bethlehem\"}";
+        HttpResponse<JsonNode> single = Unirest.get( serverUrl() + "/Free%20State/Bethlehem/3" ).asJson();
+        final JSONObject before = Unirest.get( serverUrl() + "/metrics" ).asJson().getBody().getObject();
+
+        // Bethlehem's schedule is cached, and is looked up once for the whole batch
+        HttpResponse<JsonNode> response = Unirest.post( serverUrl() + "/schedules/batch?stage=3" )
+            .body( "[" + bethlehem + "," + bethlehem + "]" )
+            .asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertEquals( single.getBody().getObject().toString(),
+            response.getBody().getArray().getJSONObject( 1 ).getJSONObject( "schedule" ).toString() );
+        JSONObject after = Unirest.get( serverUrl() + "/metrics" ).asJson().getBody().getObject();
+        assertEquals( before.getLong( "hits" ) + 1, after.getLong( "hits" ));
+
+        // Towns that aren't cached stay that way
+        response = Unirest.post( serverUrl() + "/schedules/batch?stage=3" )
+            .body( "[{\"province\":\"Gauteng\",\"town\":\"Benoni\"},{\"province\":\"Gauteng\",\"town\":\"Brakpan\"}]" )
+            .asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertEquals( 3, response.getBody().getArray().getJSONObject( 1 ).getJSONObject( "schedule" ).getInt( "stage" ));
+        after = Unirest.get( serverUrl() + "/metrics" ).asJson().getBody().getObject();
+        assertEquals( before.getInt( "entries" ), after.getInt( "entries" ));
+    }
+
+    @Test
+    public void batchNamesAreEscaped(){
+        HttpResponse<JsonNode> response = Unirest.post( serverUrl() + "/schedules/batch" )
+            .body( "[{\"province\":\"Gauteng\",\"town\":\"\\\"Quoted\\\" Town\"},{\"town\":\"Soweto\"}]" )
+            .asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertEquals( "\"Quoted\" Town", response.getBody().getArray().getJSONObject( 0 ).getString( "town" ));
+        assertTrue( response.getBody().getArray().getJSONObject( 1 ).isNull( "province" ));
+    }
+
+    @Test
+    public void getNextOutages(){
+        HttpResponse<JsonNode> response = Unirest
+            .get( serverUrl() + "/next/Western%20Cape/Knysna?from=2024-03-30T14:30&count=3&stage=4" )
+            .asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        final JSONArray outages = response.getBody().getArray();
+        assertEquals( 3, outages.length() );
+        assertTrue( outages.getJSONObject( 0 ).getLong( "minutes" ) >= 120 );
+        assertTrue( outages.getJSONObject( 0 ).getString( "end" ).compareTo( outages.getJSONObject( 1 ).getString( "start" )) < 0 );
+
+        assertEquals( HttpStatus.NOT_FOUND, Unirest.get( serverUrl() + "/next/Mars/Elonsburg" ).asString().getStatus() );
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/next/Western%20Cape/Knysna?count=0" ).asString().getStatus() );
+    }
+
+    @Test
+    public void getCalendar(){
+        HttpResponse<String> response = Unirest.get( serverUrl() + "/Western%20Cape/Knysna.ics" ).asString();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        assertTrue( response.getHeaders().getFirst( "Content-Type" ).startsWith( "text/calendar" ));
+        assertTrue( response.getBody().startsWith( "BEGIN:VCALENDAR\r\n" ));
+        assertTrue( response.getBody().endsWith( "END:VCALENDAR\r\n" ));
+
+        final String etag = response.getHeaders().getFirst( "ETag" );
+        assertTrue( ! etag.isEmpty() );
+        HttpResponse<String> again = Unirest.get( serverUrl() + "/Western%20Cape/Knysna.ics" )
+            .header( "If-None-Match", etag )
+            .asString();
+        assertEquals( HttpStatus.NOT_MODIFIED, again.getStatus() );
+
+        assertEquals( HttpStatus.NOT_FOUND, Unirest.get( serverUrl() + "/Mars/Elonsburg.ics" ).asString().getStatus() );
+    }
+
     private String serverUrl(){
         return "http://localhost:" + TEST_PORT;
     }
@@ -1,9 +1,16 @@
 package za.co.fourgrid;
 
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
+import kong.unirest.Unirest;
 import org.junit.jupiter.api.*;
 import za.co.fourgrid.common.transfer.ScheduleDO;
+import za.co.fourgrid.common.transfer.ScheduledStageDO;
+import za.co.fourgrid.schedule.ScheduleEngine;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -29,6 +36,64 @@ public class ScheduleServiceTest
         assertEquals( 4, schedule.get().numberOfDays() );
     }
 
+    @Test
+    public void stageChangeDropsTheOldStagesSchedules(){
+        testSvc.initialise( null );
+        testSvc.onStageChange( 2 );
+        testSvc.start( 8889 );
+        try{
+            Unirest.get( "http://localhost:8889/Eastern%20Cape/Gqeberha" ).asString();
+            assertEquals( 1, testSvc.cacheMetrics().entries() );
+
+            testSvc.onStageChange( 3 );
+            assertEquals( 0, testSvc.cacheMetrics().entries() );
+            assertEquals( 1, testSvc.cacheMetrics().invalidations() );
+        }finally{
+            testSvc.stop();
+        }
+    }
+
+    @Test
+    public void stageChangeWarmsTheCache() throws Exception {
+        testSvc.initialise( null );
+        testSvc.start( 8889 );
+        try{
+            testSvc.onStageChange( 5 );
+            testSvc.prewarm( 5 ).get( 30, TimeUnit.SECONDS );
+            assertThat( testSvc.cacheMetrics().entries() ).isGreaterThan( ScheduleEngine.BLOCKS );
+            assertEquals( 0, testSvc.cacheMetrics().misses() );
+
+            Unirest.get( "http://localhost:8889/Eastern%20Cape/Gqeberha" ).asString();
+            Unirest.get( "http://localhost:8889/Gauteng/Brakpan" ).asString();
+            assertEquals( 2, testSvc.cacheMetrics().hits() );
+            assertEquals( 0, testSvc.cacheMetrics().misses() );
+        }finally{
+            testSvc.stop();
+        }
+    }
+
+    @Test
+    public void scheduledStageChangeWarmsTheCacheBeforeTheSwitch() throws Exception {
+        testSvc.initialise( null );
+        testSvc.start( 8889 );
+        try{
+            final String soon = Instant.now().plus( 1, ChronoUnit.MINUTES ).toString();
+            testSvc.planWarmUps( List.of( new ScheduledStageDO( 1, 7, soon )));
+            final long deadline = System.currentTimeMillis() + 30_000;
+            while( testSvc.cacheMetrics().entries() <= ScheduleEngine.BLOCKS && System.currentTimeMillis() < deadline ){
+                Thread.sleep( 50 );
+            }
+            assertThat( testSvc.cacheMetrics().entries() ).isGreaterThan( ScheduleEngine.BLOCKS );
+
+            testSvc.onStageChange( 7 );
+            Unirest.get( "http://localhost:8889/Eastern%20Cape/Gqeberha" ).asString();
+            assertEquals( 1, testSvc.cacheMetrics().hits() );
+            assertEquals( 0, testSvc.cacheMetrics().misses() );
+        }finally{
+            testSvc.stop();
+        }
+    }
+
     @Test
     public void testSchedule_nonexistentTown(){
         final Optional<ScheduleDO> schedule = testSvc.getSchedule( "Mars", "Elonsburg", 2 );
@@ -0,0 +1,107 @@
+package za.co.fourgrid.schedule;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.*;
+import za.co.fourgrid.db.memory.PlacesDb;
+import za.co.fourgrid.model.Town;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlockMapTest
+{
+    private static final String BLOCKS = """
+        # province,town,block
+        Eastern Cape,Gqeberha,3
+        KwaZulu-Natal,Richards Bay,16
+
+        Western Cape,Knysna,1
+        """;
+
+    @Test
+    public void knownTownsHaveABlock() throws IOException {
+        final BlockMap blocks = new BlockMap().load( new StringReader( BLOCKS ));
+        assertThat( blocks.size() ).isEqualTo( 3 );
+        assertThat( blocks.blockOf( "Eastern Cape", "Gqeberha" )).isEqualTo( 2 );
+        assertThat( blocks.blockOf( "Western Cape", "Knysna" )).isEqualTo( 0 );
+        assertThat( blocks.blockOf( "KwaZulu-Natal", "Richards Bay" )).isEqualTo( 15 );
+    }
+
+    @Test
+    public void namesAreNormalised() throws IOException {
+        final BlockMap blocks = new BlockMap().load( new StringReader( BLOCKS ));
+        assertThat( blocks.blockOf( "KwaZuluNatal", "RichardsBay" )).isEqualTo( 15 );
+        assertThat( blocks.blockOf( "kwazulu natal", "RICHARDS BAY" )).isEqualTo( 15 );
+        assertThat( blocks.blockOf( "Eastern Cape ", " Gqeberha" )).isEqualTo( 2 );
+    }
+
+    @Test
+    public void unknownTownsAreNotFound() throws IOException {
+        final BlockMap blocks = new BlockMap().load( new StringReader( BLOCKS ));
+        assertThat( blocks.blockOf( "Mars", "Elonsburg" )).isEqualTo( BlockMap.NOT_FOUND );
+        assertThat( blocks.blockOf( "Western Cape", "Gqeberha" )).isEqualTo( BlockMap.NOT_FOUND );
+        // The province/town boundary matters
+        assertThat( blocks.blockOf( "Eastern CapeGq", "eberha" )).isEqualTo( BlockMap.NOT_FOUND );
+        assertThat( blocks.blockOf( "", "" )).isEqualTo( BlockMap.NOT_FOUND );
+    }
+
+    @Test
+    public void manyTowns(){
+        final BlockMap blocks = new BlockMap();
+        for( int i = 0; i < 100_000; i++ ){
+            blocks.put( "Gauteng", "Town " + i, i % ScheduleEngine.BLOCKS );
+        }
+        assertThat( blocks.size() ).isEqualTo( 100_000 );
+        for( int i = 0; i < 100_000; i++ ){
+            assertThat( blocks.blockOf( "Gauteng", "Town " + i )).isEqualTo( i % ScheduleEngine.BLOCKS );
+        }
+        assertThat( blocks.blockOf( "Gauteng", "Town 100000" )).isEqualTo( BlockMap.NOT_FOUND );
+    }
+
+    @Test
+    public void placesAddTownsWithoutReplacingKnownBlocks() throws IOException {
+        final BlockMap blocks = new BlockMap().load( new StringReader( BLOCKS ));
+        blocks.addAll( new PlacesDb( Set.of(
+            new Town( "Gqeberha", "Eastern Cape" ),
+            new Town( "Brakpan", "Gauteng" ))));
+
+        assertThat( blocks.size() ).isEqualTo( 4 );
+        assertThat( blocks.blockOf( "Eastern Cape", "Gqeberha" )).isEqualTo( 2 );
+        assertThat( blocks.blockOf( "Gauteng", "Brakpan" )).isEqualTo( ScheduleEngine.blockOf( "Gauteng", "Brakpan" ));
+    }
+
+    @Test
+    public void townsAreListedByBlock() throws IOException {
+        final BlockMap blocks = new BlockMap().load( new StringReader( BLOCKS ));
+        assertThat( townsIn( blocks, 15 )).containsExactly( "kwazulunatal/richardsbay" );
+        assertThat( townsIn( blocks, 1 )).isEmpty();
+
+        // Towns put after they have been listed are listed too.
+        blocks.put( "Western Cape", "George", 0 );
+        assertThat( townsIn( blocks, 0 )).containsExactlyInAnyOrder( "westerncape/knysna", "westerncape/george" );
+    }
+
+    private static List<String> townsIn( BlockMap blocks, int block ){
+        final List<String> towns = new ArrayList<>();
+        blocks.forEachTownIn( block, ( province, town, b ) -> {
+            assertThat( b ).isEqualTo( block );
+            towns.add( province + "/" + town );
+        });
+        return towns;
+    }
+
+    @Test
+    public void badBlockFilesAreRejected(){
+        assertThatThrownBy( () -> new BlockMap().load( new StringReader( "Gauteng,Brakpan\n" )))
+            .isInstanceOf( IOException.class );
+        assertThatThrownBy( () -> new BlockMap().load( new StringReader( "Gauteng,Brakpan,17\n" )))
+            .isInstanceOf( IOException.class );
+        assertThatThrownBy( () -> new BlockMap().load( new StringReader( "Gauteng,Brakpan,one\n" )))
+            .isInstanceOf( IOException.class );
+    }
+}
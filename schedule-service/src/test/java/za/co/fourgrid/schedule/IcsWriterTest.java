@@ -0,0 +1,83 @@
+package za.co.fourgrid.schedule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IcsWriterTest
+{
+    private static final LocalDateTime STAMP = LocalDateTime.of( 2024, 3, 30, 0, 0 );
+
+    private static String write( String townName, List<Outage> outages ) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IcsWriter.write( out, "westerncape-knysna", townName, 4, STAMP, outages.iterator() );
+        return out.toString( StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    public void emptyCalendar() throws IOException {
+        final String ics = write( "Knysna", Collections.emptyList() );
+        assertThat( ics ).startsWith( "BEGIN:VCALENDAR\r\nVERSION:2.0\r\n" );
+        assertThat( ics ).endsWith( "END:VCALENDAR\r\n" );
+        assertThat( ics ).doesNotContain( "BEGIN:VEVENT" );
+    }
+
+    @Test
+    public void outagesAreEventsInUtc() throws IOException {
+        final String ics = write( "Knysna", List.of(
+            new Outage( LocalDateTime.of( 2024, 3, 30, 14, 0 ), LocalDateTime.of( 2024, 3, 30, 18, 0 )),
+            new Outage( LocalDateTime.of( 2024, 3, 30, 22, 0 ), LocalDateTime.of( 2024, 3, 31, 2, 0 ))));
+
+        assertThat( ics.split( "BEGIN:VEVENT\r\n", -1 )).hasSize( 3 );
+        assertThat( ics ).contains( "DTSTAMP:20240329T220000Z\r\n" );
+        assertThat( ics ).contains( "DTSTART:20240330T120000Z\r\nDTEND:20240330T160000Z\r\n" );
+        assertThat( ics ).contains( "DTSTART:20240330T200000Z\r\nDTEND:20240331T000000Z\r\n" );
+        assertThat( ics ).contains( "UID:20240330T120000Z-4-westerncape-knysna@fourgrid.co.za\r\n" );
+        assertThat( ics ).contains( "SUMMARY:Load-shedding (stage 4): Knysna\r\n" );
+    }
+
+    @Test
+    public void textIsEscaped() throws IOException {
+        assertThat( write( "Knysna, Heads; \\Village", Collections.emptyList() ))
+            .contains( "X-WR-CALNAME:Load-shedding in Knysna\\, Heads\\; \\\\Village\r\n" );
+    }
+
+    @Test
+    public void longLinesAreFoldedWithoutSplittingCharacters() throws IOException {
+        final String townName = "Ś".repeat( 100 );
+        final String ics = write( townName, Collections.emptyList() );
+        for( String line : ics.split( "\r\n" )){
+            assertThat( line.getBytes( StandardCharsets.UTF_8 ).length ).isLessThanOrEqualTo( 75 );
+        }
+        final String unfolded = ics.replace( "\r\n ", "" );
+        assertThat( unfolded ).contains( "X-WR-CALNAME:Load-shedding in " + townName + "\r\n" );
+    }
+
+    @Test
+    public void largeCalendarsAreStreamedInPieces() throws IOException {
+        final List<Outage> outages = new java.util.ArrayList<>();
+        for( int i = 0; i < 1000; i++ ){
+            final LocalDateTime start = STAMP.plusHours( 4L * i );
+            outages.add( new Outage( start, start.plusHours( 2 )));
+        }
+        final int[] writes = new int[ 1 ];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(){
+            @Override
+            public synchronized void write( byte[] b, int off, int len ){
+                writes[ 0 ]++;
+                assertThat( len ).isLessThanOrEqualTo( 8192 );
+                super.write( b, off, len );
+            }
+        };
+        IcsWriter.write( out, "westerncape-knysna", "Knysna", 4, STAMP, outages.iterator() );
+        assertThat( writes[ 0 ] ).isGreaterThan( 1 );
+        assertThat( out.toString( StandardCharsets.UTF_8 ).split( "BEGIN:VEVENT", -1 )).hasSize( 1001 );
+    }
+}
@@ -0,0 +1,124 @@
+package za.co.fourgrid.schedule;
+
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ScheduleCacheTest
+{
+    private static final LocalDate TODAY = LocalDate.of( 2024, 3, 30 );
+
+    private final AtomicInteger computed = new AtomicInteger();
+
+    private byte[] compute( ScheduleCache.Key key ){
+        computed.incrementAndGet();
+        return new byte[ 100 ];
+    }
+
+    private static ScheduleCache.Key key( String town, int stage ){
+        return ScheduleCache.Key.of( "Western Cape", town, stage, TODAY );
+    }
+
+    @Test
+    public void secondRequestIsAHit(){
+        final ScheduleCache cache = new ScheduleCache();
+        final byte[] first = cache.get( key( "Knysna", 2 ), this::compute );
+        final byte[] second = cache.get( ScheduleCache.Key.of( "western cape", " KNYSNA", 2, TODAY ), this::compute );
+
+        assertThat( second ).isSameAs( first );
+        assertThat( computed ).hasValue( 1 );
+        assertThat( cache.metrics().hits() ).isEqualTo( 1 );
+        assertThat( cache.metrics().misses() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void findingDoesNotCache(){
+        final ScheduleCache cache = new ScheduleCache();
+        assertThat( cache.find( key( "Knysna", 2 ))).isNull();
+        assertThat( cache.metrics().entries() ).isEqualTo( 0 );
+        assertThat( cache.metrics().misses() ).isEqualTo( 1 );
+
+        final byte[] cached = cache.get( key( "Knysna", 2 ), this::compute );
+        assertThat( cache.find( key( "Knysna", 2 ))).isSameAs( cached );
+        assertThat( cache.metrics().hits() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void cacheStaysWithinItsCapacity(){
+        final ScheduleCache cache = new ScheduleCache( 1000 );
+        for( int i = 0; i < 50; i++ ){
+            cache.get( key( "Town" + i, 2 ), this::compute );
+        }
+        assertThat( cache.metrics().sizeBytes() ).isLessThanOrEqualTo( 1000 );
+        assertThat( cache.metrics().entries() ).isEqualTo( 10 );
+        assertThat( cache.metrics().evictions() ).isEqualTo( 40 );
+    }
+
+    @Test
+    public void popularEntriesSurviveABurstOfOneOffs(){
+        final ScheduleCache cache = new ScheduleCache( 1000 );
+        cache.get( key( "Knysna", 2 ), this::compute );
+        cache.get( key( "Knysna", 2 ), this::compute );
+        for( int i = 0; i < 50; i++ ){
+            cache.get( key( "Town" + i, 2 ), this::compute );
+        }
+        computed.set( 0 );
+        cache.get( key( "Knysna", 2 ), this::compute );
+        assertThat( computed ).hasValue( 0 );
+    }
+
+    @Test
+    public void spellingsOfATownShareAnEntry(){
+        final ScheduleCache cache = new ScheduleCache();
+        cache.get( ScheduleCache.Key.of( "KwaZulu-Natal", "Richards Bay", 2, TODAY ), this::compute );
+        cache.get( ScheduleCache.Key.of( "kwazulu natal", "RichardsBay", 2, TODAY ), this::compute );
+        assertThat( computed ).hasValue( 1 );
+    }
+
+    @Test
+    public void warmingNeverEvicts(){
+        final ScheduleCache cache = new ScheduleCache( 1000 );
+        cache.get( key( "Knysna", 2 ), this::compute );
+        int warmed = 0;
+        for( int i = 0; i < 50; i++ ){
+            if( cache.warm( key( "Town" + i, 2 ), new byte[ 100 ] )) warmed++;
+        }
+        assertThat( warmed ).isEqualTo( 9 );
+        assertThat( cache.metrics().evictions() ).isZero();
+        assertThat( cache.warm( key( "Town0", 2 ), new byte[ 1 ] )).isFalse();
+
+        computed.set( 0 );
+        cache.get( key( "Knysna", 2 ), this::compute );
+        cache.get( key( "Town0", 2 ), this::compute );
+        assertThat( computed ).hasValue( 0 );
+    }
+
+    @Test
+    public void invalidateOneStage(){
+        final ScheduleCache cache = new ScheduleCache();
+        cache.get( key( "Knysna", 2 ), this::compute );
+        cache.get( key( "George", 2 ), this::compute );
+        cache.get( key( "Knysna", 3 ), this::compute );
+
+        cache.invalidateStage( 2 );
+        assertThat( cache.metrics().entries() ).isEqualTo( 1 );
+        assertThat( cache.metrics().invalidations() ).isEqualTo( 2 );
+        assertThat( cache.metrics().sizeBytes() ).isEqualTo( 100 );
+    }
+
+    @Test
+    public void invalidateYesterdaysSchedules(){
+        final ScheduleCache cache = new ScheduleCache();
+        cache.get( ScheduleCache.Key.of( "Gauteng", "Brakpan", 4, TODAY.minusDays( 1 )), this::compute );
+        cache.get( ScheduleCache.Key.of( "Gauteng", "Brakpan", 4, TODAY ), this::compute );
+
+        cache.invalidateBefore( TODAY );
+        assertThat( cache.metrics().entries() ).isEqualTo( 1 );
+        computed.set( 0 );
+        cache.get( ScheduleCache.Key.of( "Gauteng", "Brakpan", 4, TODAY ), this::compute );
+        assertThat( computed ).hasValue( 0 );
+    }
+}
@@ -0,0 +1,182 @@
+package za.co.fourgrid.schedule;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import org.junit.jupiter.api.*;
+import za.co.fourgrid.common.transfer.ScheduleDO;
+import za.co.fourgrid.common.transfer.SlotDO;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class ScheduleEngineTest
+{
+    private static final LocalDate START = LocalDate.of( 2024, 3, 30 );
+
+    private final ScheduleEngine engine = new ScheduleEngine();
+
+    @Test
+    public void noSheddingAtStageZero(){
+        for( int block = 0; block < ScheduleEngine.BLOCKS; block++ ){
+            final ScheduleDO schedule = engine.scheduleFor( block, 0, START );
+            assertThat( schedule.numberOfDays() ).isEqualTo( ScheduleEngine.SCHEDULE_DAYS );
+            assertThat( schedule.getDays() ).allMatch( day -> day.numberOfSlots() == 0 );
+        }
+    }
+
+    @Test
+    public void eachStageShedsThatManyBlocksInEverySlot(){
+        for( int day = 1; day <= ScheduleEngine.DAYS_IN_CYCLE; day++ ){
+            final LocalDate date = LocalDate.of( 2024, 1, day );
+            for( int stage = 0; stage <= ScheduleEngine.MAX_STAGE; stage++ ){
+                for( int slot = 0; slot < ScheduleEngine.SLOTS_PER_DAY; slot++ ){
+                    int blocksShed = 0;
+                    for( int block = 0; block < ScheduleEngine.BLOCKS; block++ ){
+                        if( engine.isShed( block, stage, date.atTime( slot * ScheduleEngine.SLOT_HOURS, 30 ))) blocksShed++;
+                    }
+                    assertThat( blocksShed ).isEqualTo( stage );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void higherStagesIncludeLowerStages(){
+        for( int block = 0; block < ScheduleEngine.BLOCKS; block++ ){
+            for( int stage = 1; stage <= ScheduleEngine.MAX_STAGE; stage++ ){
+                final long lower = engine.shedSlots( block, stage - 1, START );
+                final long higher = engine.shedSlots( block, stage, START );
+                assertThat( higher & lower ).isEqualTo( lower );
+            }
+        }
+    }
+
+    @Test
+    public void shedStatusAgreesWithTheSchedule(){
+        final ScheduleDO schedule = engine.scheduleFor( 11, 3, START );
+        for( SlotDO slot : schedule.getDays().get( 1 ).getSlots() ){
+            assertThat( engine.isShed( 11, 3, START.plusDays( 1 ).atTime( slot.getStart() ))).isTrue();
+            if( ! slot.getStart().equals( LocalTime.MIDNIGHT )){
+                // Adjacent slots are joined, so the time just before a slot is never shed.
+                assertThat( engine.isShed( 11, 3, START.plusDays( 1 ).atTime( slot.getStart().minusMinutes( 1 )))).isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void scheduleCoversFourDaysFromTheStartDate(){
+        final ScheduleDO schedule = engine.scheduleFor( 3, 6, START );
+        assertThat( schedule.getStartDate() ).isEqualTo( START );
+        assertThat( schedule.getStage() ).isEqualTo( 6 );
+        for( int i = 0; i < ScheduleEngine.SCHEDULE_DAYS; i++ ){
+            final long mask = engine.shedSlots( 3, 6, START.plusDays( i ));
+            assertThat( schedule.getDays().get( i ).getSlots() )
+                .extracting( SlotDO::getStart, SlotDO::getEnd )
+                .isEqualTo( ScheduleEngine.slotsFor( mask ).stream()
+                    .map( slot -> tuple( slot.getStart(), slot.getEnd() )).toList() );
+        }
+    }
+
+    @Test
+    public void adjacentSlotsAreJoined(){
+        final List<SlotDO> slots = ScheduleEngine.slotsFor( 0b1100_0000_0111 );
+        assertThat( slots ).extracting( SlotDO::getStart, SlotDO::getEnd ).containsExactly(
+            tuple( LocalTime.of( 0, 0 ), LocalTime.of( 6, 0 )),
+            tuple( LocalTime.of( 20, 0 ), LocalTime.MIDNIGHT ));
+    }
+
+    @Test
+    public void outagesMatchTheShedSlots(){
+        for( int stage = 1; stage <= ScheduleEngine.MAX_STAGE; stage++ ){
+            final long[] masks = new long[ 10 ];
+            engine.nextOutages( 5, stage, START.atStartOfDay() )
+                .takeWhile( outage -> outage.start().isBefore( START.plusDays( masks.length ).atStartOfDay() ))
+                .forEach( outage -> {
+                    for( LocalDateTime t = outage.start(); t.isBefore( outage.end() ); t = t.plusHours( ScheduleEngine.SLOT_HOURS )){
+                        final int day = (int) ChronoUnit.DAYS.between( START, t.toLocalDate() );
+                        // The first outage may have started the day before
+                        if( day >= 0 && day < masks.length ) masks[ day ] |= 1L << ( t.getHour() / ScheduleEngine.SLOT_HOURS );
+                    }
+                });
+            for( int day = 0; day < masks.length; day++ ){
+                assertThat( masks[ day ] ).isEqualTo( engine.shedSlots( 5, stage, START.plusDays( day )));
+            }
+        }
+    }
+
+    @Test
+    public void outagesAreSeparateAndInOrder(){
+        final List<Outage> outages = engine.nextOutages( 9, 8, START.atStartOfDay() ).limit( 50 ).toList();
+        assertThat( outages ).hasSize( 50 );
+        for( int i = 1; i < outages.size(); i++ ){
+            assertThat( outages.get( i ).start() ).isAfter( outages.get( i - 1 ).end() );
+        }
+    }
+
+    @Test
+    public void outageInProgressIsReportedFromItsStart(){
+        final Outage first = engine.nextOutages( 2, 6, START.atTime( 12, 0 )).findFirst().orElseThrow();
+        final Outage during = engine.nextOutages( 2, 6, first.start().plusMinutes( 90 )).findFirst().orElseThrow();
+        assertThat( during ).isEqualTo( first );
+        assertThat( during.contains( first.start().plusMinutes( 90 ))).isTrue();
+    }
+
+    @Test
+    public void noOutagesAtStageZero(){
+        assertThat( engine.nextOutages( 0, 0, START.atStartOfDay() ).count() ).isZero();
+    }
+
+    @Test
+    public void badBlocksAndStagesAreRejected(){
+        assertThatThrownBy( () -> engine.scheduleFor( ScheduleEngine.BLOCKS, 2, START ))
+            .isInstanceOf( IllegalArgumentException.class );
+        assertThatThrownBy( () -> engine.scheduleFor( 0, 9, START ))
+            .isInstanceOf( IllegalArgumentException.class );
+    }
+
+    @Test
+    public void townsAlwaysGetTheSameBlock(){
+        final int block = ScheduleEngine.blockOf( "Western Cape", "Knysna" );
+        assertThat( block ).isBetween( 0, ScheduleEngine.BLOCKS - 1 );
+        assertThat( ScheduleEngine.blockOf( "western cape ", "KNYSNA" )).isEqualTo( block );
+    }
+
+    /**
+     * Not a rigorous benchmark, just a rough idea of the cost of a schedule at each stage.
+     * Schedules come from the rotation table, so a higher stage shouldn't cost much more.
+     */
+    @Test
+    @Tag( "benchmark" )
+    public void scheduleTimingForAllStages(){
+        final int rounds = 20_000;
+        long checksum = 0;
+        for( int stage = 0; stage <= ScheduleEngine.MAX_STAGE; stage++ ){
+            checksum += timeSchedules( stage, rounds );     // warm up
+        }
+        long fastest = Long.MAX_VALUE;
+        long slowest = 0;
+        for( int stage = 0; stage <= ScheduleEngine.MAX_STAGE; stage++ ){
+            final long t0 = System.nanoTime();
+            checksum += timeSchedules( stage, rounds );
+            final long nanos = System.nanoTime() - t0;
+            System.out.printf( "Stage %d: %.2f us/schedule%n", stage, nanos / 1000.0 / rounds );
+            fastest = Math.min( fastest, nanos );
+            slowest = Math.max( slowest, nanos );
+        }
+        assertThat( checksum ).isGreaterThan( 0 );
+        assertThat( slowest ).isLessThan( 10 * fastest );
+    }
+
+    private long timeSchedules( int stage, int rounds ){
+        long checksum = 0;
+        for( int i = 0; i < rounds; i++ ){
+            checksum += engine.scheduleFor( i % ScheduleEngine.BLOCKS, stage, START ).getDays().get( 0 ).numberOfSlots();
+        }
+        return checksum;
+    }
+}
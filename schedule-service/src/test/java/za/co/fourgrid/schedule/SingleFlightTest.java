@@ -0,0 +1,80 @@
+package za.co.fourgrid.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTest
+{
+    @Test
+    public void concurrentCallersShareOneComputation() throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch computing = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+
+        final ExecutorService callers = Executors.newFixedThreadPool( 9 );
+        try{
+            final Future<Integer> first = callers.submit( () -> flight.get( "Knysna", key -> {
+                computations.incrementAndGet();
+                computing.countDown();
+                await( release );
+                return 42;
+            }));
+            assertThat( computing.await( 10, TimeUnit.SECONDS )).isTrue();
+
+            final List<Future<Integer>> others = new ArrayList<>();
+            for( int i = 0; i < 8; i++ ){
+                others.add( callers.submit( () -> flight.get( "Knysna", key -> computations.incrementAndGet() )));
+            }
+            // Give the others time to join the computation before it finishes
+            Thread.sleep( 500 );
+            release.countDown();
+
+            assertThat( first.get( 10, TimeUnit.SECONDS )).isEqualTo( 42 );
+            for( Future<Integer> other : others ){
+                assertThat( other.get( 10, TimeUnit.SECONDS )).isEqualTo( 42 );
+            }
+            assertThat( computations ).hasValue( 1 );
+            assertThat( flight.inFlight() ).isZero();
+        }finally{
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void resultsAreNotKept(){
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final AtomicInteger computations = new AtomicInteger();
+        flight.get( "Knysna", key -> computations.incrementAndGet() );
+        flight.get( "Knysna", key -> computations.incrementAndGet() );
+        assertThat( computations ).hasValue( 2 );
+    }
+
+    @Test
+    public void failuresAreNotKept(){
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        assertThatThrownBy( () -> flight.get( "Knysna", key -> { throw new IllegalStateException( "boom" ); }))
+            .isInstanceOf( IllegalStateException.class );
+        assertThat( flight.get( "Knysna", key -> 1 )).isEqualTo( 1 );
+        assertThat( flight.inFlight() ).isZero();
+    }
+
+    private static void await( CountDownLatch latch ){
+        try{
+            latch.await();
+        }catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
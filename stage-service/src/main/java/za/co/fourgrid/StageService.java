@@ -7,9 +7,32 @@ import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import za.co.fourgrid.common.mq.MQ;
 import za.co.fourgrid.common.mq.MqTopicSender;
+import za.co.fourgrid.common.transfer.ScheduledStageDO;
 import za.co.fourgrid.common.transfer.StageDO;
+import za.co.fourgrid.stage.StageEventStream;
+import za.co.fourgrid.stage.StageLog;
+import za.co.fourgrid.stage.StagePublisher;
+import za.co.fourgrid.stage.StageRecord;
+import za.co.fourgrid.stage.StageScheduler;
+import za.co.fourgrid.stage.StageTransition;
+import za.co.fourgrid.stage.StageWaiters;
 
 import javax.jms.JMSException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -17,10 +40,31 @@ import javax.jms.JMSException;
  * <dl>
  * <dt>GET /stage
  * <dd>report the current stage of loadshedding as a JSON serialisation of a {@code StageDO} data/transfer object
+ * <dt>GET /stage?waitForVersion=N
+ * <dd>long-poll: report the stage as soon as its version is N or more. If that doesn't happen within
+ * {@code ?timeout=} seconds, the response is 304 Not Modified.
+ * <dt>GET /stage/events
+ * <dd>a Server-Sent Events stream of stage changes.
  * <dt>POST /stage
  * <dd>set a new loadshedding stage/level by POSTing a JSON-serialised {@code StageDO} instance as the body of the
- * request.
+ * request. If the request has an {@code If-Match} header, the stage is only changed if its current version (as
+ * given in the {@code ETag} of {@code GET /stage}) matches; otherwise the response is 412 Precondition Failed.
+ * <dt>POST /stage/schedule
+ * <dd>schedule a change of stage for some time in the future, by POSTing a JSON-serialised {@code ScheduledStageDO}
+ * (without an id). The change is made within milliseconds of its {@code effectiveAt} time.
+ * <dt>GET /stage/schedule
+ * <dd>the scheduled changes that haven't been made yet, earliest first.
+ * <dt>DELETE /stage/schedule/{id}
+ * <dd>cancel a scheduled change.
+ * <dt>GET /stage/history?since=version
+ * <dd>the stage changes after the given version (by default, all of them), oldest first, so that consumers can
+ * catch up on what they missed.
  * </ul>
+ * Every stage change is written to a {@link StageLog} before it is announced, and the stage is recovered from the
+ * log when I start up again.
+ * <p>
+ * The current stage and its version are changed together by compare-and-set, so concurrent changes can't be lost,
+ * and a {@link StagePublisher} writes and announces them strictly in version order.
  */
 public class StageService
 {
@@ -30,12 +74,29 @@ public class StageService
 
     public static final String MQ_TOPIC_NAME = "stage";
 
+    // A system property naming the directory that holds the stage log
+    public static final String LOG_DIR_PROPERTY = "fourgrid.stage.log.dir";
+
+    public static final String DEFAULT_LOG_DIR = "stage-log";
+
+    public static final String HEADER_ETAG = "ETag";
+
+    public static final String HEADER_IF_MATCH = "If-Match";
+
+    // The file, in the stage log directory, holding scheduled stage changes
+    public static final String SCHEDULE_FILE = "scheduled-stages.csv";
+
+    public static final long DEFAULT_WAIT_SECONDS = 30;
+
+    public static final long MAX_WAIT_SECONDS = 120;
+
     public static void main( String[] args ){
         final StageService svc = new StageService().initialise();
         svc.start();
     }
 
-    private int loadSheddingStage;
+    // The current stage, with the version of the change that set it
+    private final AtomicReference<StageRecord> current = new AtomicReference<>();
 
     private Javalin server;
 
@@ -43,15 +104,31 @@ public class StageService
 
     private MqTopicSender topicSender;
 
+    private StageLog stageLog;
+
+    private StagePublisher publisher;
+
+    private StageWaiters waiters;
+
+    private StageEventStream events;
+
+    private StageScheduler scheduler;
+
+    // Long-polls are answered on virtual threads, so waking thousands at once is cheap.
+    private final ExecutorService wakeUp = Executors.newVirtualThreadPerTaskExecutor();
+
     @VisibleForTesting
     public StageService initialise(){
         return initialise( DEFAULT_STAGE );
     }
 
+    /**
+     * @param initialStage the stage to start at if the stage log has no history.
+     */
     @VisibleForTesting
     public StageService initialise( int initialStage ){
-        loadSheddingStage = initialStage;
-        assert loadSheddingStage >= 0;
+        final Path logDirectory = Path.of( System.getProperty( LOG_DIR_PROPERTY, DEFAULT_LOG_DIR ));
+        openStageLog( logDirectory, initialStage );
 
         try {
             topicSender = new MqTopicSender().init(MQ.URL);
@@ -66,21 +143,63 @@ public class StageService
         }
 
         server = initHttpServer();
+        openScheduler( logDirectory );
         return this;
     }
 
+    /**
+     * Start with a new, empty stage log in a temporary directory.
+     */
     @VisibleForTesting
     public StageService initialise(int initialStage, MqTopicSender testTopicSender) {
-        loadSheddingStage = initialStage;
-        assert loadSheddingStage >= 0;
+        try{
+            return initialise( initialStage, testTopicSender, Files.createTempDirectory( "stage-log" ));
+        }catch( IOException e ){
+            throw new UncheckedIOException( "Unable to create a stage log directory", e );
+        }
+    }
+
+    @VisibleForTesting
+    public StageService initialise( int initialStage, MqTopicSender testTopicSender, Path logDirectory ){
+        openStageLog( logDirectory, initialStage );
 
         this.topicSender = testTopicSender;
 
         server = initHttpServer();
+        openScheduler( logDirectory );
         return this;
     }
 
 
+    private void openStageLog( Path logDirectory, int initialStage ){
+        try{
+            stageLog = StageLog.open( logDirectory );
+        }catch( IOException e ){
+            throw new UncheckedIOException( "Unable to open the stage log in " + logDirectory, e );
+        }
+        assert initialStage >= 0;
+        current.set( stageLog.latest().orElse( new StageRecord( 0, System.currentTimeMillis(), initialStage )));
+        waiters = new StageWaiters( current.get(), wakeUp );
+        events = new StageEventStream( stageLog::since );
+        publisher = new StagePublisher( stageLog, current, change -> {
+            waiters.publish( change );
+            events.publish( change );
+            broadcastStageChangeEvent( change );
+        });
+    }
+
+    /**
+     * Changes that fell due while we were stopped are made (and announced) straight away,
+     * so this comes last, once there is somewhere to announce them.
+     */
+    private void openScheduler( Path logDirectory ){
+        try{
+            scheduler = StageScheduler.open( logDirectory.resolve( SCHEDULE_FILE ), this::makeScheduledChange );
+        }catch( IOException e ){
+            throw new UncheckedIOException( "Unable to load the scheduled stage changes in " + logDirectory, e );
+        }
+    }
+
     public void start(){
         start( DEFAULT_PORT );
     }
@@ -93,9 +212,18 @@ public class StageService
 
     public void stop(){
         server.stop();
+        scheduler.close();
+        publisher.close();
+        events.close();
+        wakeUp.shutdownNow();
         if (topicSender != null) {
             topicSender.close();
         }
+        try{
+            stageLog.close();
+        }catch( IOException e ){
+            System.err.println( "Failed to close the stage log: " + e.getMessage() );
+        }
     }
 
     public void run(){
@@ -103,34 +231,162 @@ public class StageService
     }
 
     private Javalin initHttpServer(){
-        return Javalin.create()
+        return Javalin.create( config -> config.useVirtualThreads = true )
             .get( "/stage", this::getCurrentStage )
-            .post( "/stage", this::setNewStage );
+            .sse( "/stage/events", client -> events.connect( client, waiters::latest ))
+            .post( "/stage", this::setNewStage )
+            .get( "/stage/history", this::getStageHistory )
+            .get( "/stage/schedule", this::getScheduledChanges )
+            .post( "/stage/schedule", this::scheduleChange )
+            .delete( "/stage/schedule/{id}", this::cancelScheduledChange );
     }
 
-    private Context getCurrentStage( Context ctx ){
-        return ctx.json( new StageDO( loadSheddingStage ) );
+    private void getCurrentStage( Context ctx ){
+        if( ctx.queryParam( "waitForVersion" ) == null ){
+            sendStage( ctx, current.get() );
+            return;
+        }
+        final long version = ctx.queryParamAsClass( "waitForVersion", Long.class )
+            .check( v -> v >= 0, "waitForVersion must be a version, 0 or more" )
+            .get();
+        final long timeout = ctx.queryParamAsClass( "timeout", Long.class )
+            .check( t -> t > 0 && t <= MAX_WAIT_SECONDS, "timeout must be between 1 and " + MAX_WAIT_SECONDS + " seconds" )
+            .getOrDefault( DEFAULT_WAIT_SECONDS );
+        ctx.future( () -> waiters.awaitVersion( version, timeout, TimeUnit.SECONDS )
+            .handle( ( stage, e ) -> {
+                if( e == null ){
+                    sendStage( ctx, stage );
+                }else if( e instanceof TimeoutException ){
+                    ctx.status( HttpStatus.NOT_MODIFIED ).header( HEADER_ETAG, "\"" + waiters.latest().version() + "\"" );
+                }else{
+                    ctx.status( HttpStatus.INTERNAL_SERVER_ERROR );
+                }
+                return null;
+            }));
     }
 
     private Context setNewStage( Context ctx ){
         final StageDO stageData = ctx.bodyAsClass( StageDO.class );
         final int newStage = stageData.getStage();
-        if( newStage >= 0 ){
-            loadSheddingStage = newStage;
-            broadcastStageChangeEvent();
-            ctx.status( HttpStatus.OK );
-        }else{
-            ctx.status( HttpStatus.BAD_REQUEST );
+        if( newStage < 0 ){
+            return sendStage( ctx.status( HttpStatus.BAD_REQUEST ), current.get() );
+        }
+        final OptionalLong expectedVersion;
+        try{
+            expectedVersion = expectedVersion( ctx.header( HEADER_IF_MATCH ));
+        }catch( NumberFormatException e ){
+            return ctx.status( HttpStatus.BAD_REQUEST ).json( "If-Match must be a stage version" );
+        }
+
+        final CompletableFuture<StageRecord> written = changeStage( newStage, expectedVersion );
+        if( written == null ){
+            return sendStage( ctx.status( HttpStatus.PRECONDITION_FAILED ), current.get() );
+        }
+        try{
+            return sendStage( ctx.status( HttpStatus.OK ), written.get() );
+        }catch( ExecutionException e ){
+            // The change couldn't be recorded, so it has been undone.
+            System.err.println( "Failed to record stage change: " + e.getCause() );
+            return sendStage( ctx.status( HttpStatus.SERVICE_UNAVAILABLE ), current.get() );
+        }catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+            return sendStage( ctx.status( HttpStatus.SERVICE_UNAVAILABLE ), current.get() );
         }
-        return ctx.json( new StageDO( loadSheddingStage ) );
     }
 
-    private void broadcastStageChangeEvent(){
-        try {
-            String message = new StageDO(loadSheddingStage).asJson();
-            topicSender.send(message);
-        } catch (JMSException e) {
-            System.err.println("Failed to send stage change event: " + e.getMessage());
+    /**
+     * Change the stage, provided its version is still {@code expectedVersion} (if given),
+     * and submit the change to the publisher. If the publisher can't record it, it sets
+     * the stage back.
+     *
+     * @return a future that completes with the change once it has been recorded, or null if
+     *      the version has moved on.
+     */
+    private CompletableFuture<StageRecord> changeStage( int newStage, OptionalLong expectedVersion ){
+        StageRecord seen;
+        StageRecord changed;
+        do{
+            seen = current.get();
+            if( expectedVersion.isPresent() && expectedVersion.getAsLong() != seen.version() ){
+                return null;
+            }
+            changed = new StageRecord( seen.version() + 1, System.currentTimeMillis(), newStage );
+        }while( ! current.compareAndSet( seen, changed ));
+        return publisher.submit( seen, changed );
+    }
+
+    private void makeScheduledChange( StageTransition transition ) throws Exception {
+        changeStage( transition.stage(), OptionalLong.empty() ).get();
+    }
+
+    private Context getScheduledChanges( Context ctx ){
+        return ctx.json( scheduler.pending().stream().map( StageService::asScheduledStageDO ).toList() );
+    }
+
+    private Context scheduleChange( Context ctx ) throws IOException {
+        final ScheduledStageDO request = ctx.bodyAsClass( ScheduledStageDO.class );
+        if( request.getStage() < 0 ){
+            return ctx.status( HttpStatus.BAD_REQUEST ).json( "stage must be 0 or more" );
+        }
+        final Instant effectiveAt;
+        try{
+            effectiveAt = OffsetDateTime.parse( String.valueOf( request.getEffectiveAt() )).toInstant();
+        }catch( DateTimeParseException e ){
+            return ctx.status( HttpStatus.BAD_REQUEST ).json( "effectiveAt must be a date-time with an offset, like 2024-03-30T16:00:00+02:00" );
         }
+        if( ! effectiveAt.isAfter( Instant.now() )){
+            return ctx.status( HttpStatus.BAD_REQUEST ).json( "effectiveAt must be in the future; POST /stage to change the stage now" );
+        }
+        final StageTransition scheduled = scheduler.schedule( effectiveAt.toEpochMilli(), request.getStage() );
+        return ctx.status( HttpStatus.CREATED ).json( asScheduledStageDO( scheduled ));
+    }
+
+    private Context cancelScheduledChange( Context ctx ) throws IOException {
+        final long id = ctx.pathParamAsClass( "id", Long.class ).get();
+        return ctx.status( scheduler.cancel( id ) ? HttpStatus.NO_CONTENT : HttpStatus.NOT_FOUND );
+    }
+
+    private static ScheduledStageDO asScheduledStageDO( StageTransition transition ){
+        return new ScheduledStageDO( transition.id(), transition.stage(),
+            Instant.ofEpochMilli( transition.effectiveAt() ).toString() );
+    }
+
+    private static Context sendStage( Context ctx, StageRecord stage ){
+        return ctx.header( HEADER_ETAG, "\"" + stage.version() + "\"" )
+            .json( new StageDO( stage.stage(), stage.version() ));
+    }
+
+    /**
+     * @return the version in an {@code If-Match} header such as {@code "42"}, or empty if
+     *      there is no header or it matches any version.
+     */
+    private static OptionalLong expectedVersion( String ifMatch ){
+        if( ifMatch == null || ifMatch.isBlank() || ifMatch.trim().equals( "*" )){
+            return OptionalLong.empty();
+        }
+        String tag = ifMatch.trim();
+        if( tag.startsWith( "W/" )) tag = tag.substring( 2 );
+        if( tag.length() >= 2 && tag.startsWith( "\"" ) && tag.endsWith( "\"" )){
+            tag = tag.substring( 1, tag.length() - 1 );
+        }
+        return OptionalLong.of( Long.parseLong( tag ));
+    }
+
+    private Context getStageHistory( Context ctx ){
+        final long since = ctx.queryParamAsClass( "since", Long.class )
+            .check( v -> v >= 0, "since must be a version, 0 or more" )
+            .getOrDefault( 0L );
+        return ctx.json( stageLog.since( since ));
+    }
+
+    // Queued rather than sent here, so that neither the publisher nor the request making the
+    // change waits for the broker. Announcements stay in version order.
+    private void broadcastStageChangeEvent( StageRecord change ){
+        topicSender.sendAsync( new StageDO( change.stage(), change.version() ).asJson() ).whenComplete( ( sent, e ) -> {
+            if( e != null ){
+                // The change is durable, and consumers can catch up from the stage history.
+                System.err.println( "Failed to announce stage change " + change + ": " + e.getMessage() );
+            }
+        });
     }
 }
@@ -0,0 +1,115 @@
+package za.co.fourgrid.stage;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+import io.javalin.http.sse.SseClient;
+import za.co.fourgrid.common.transfer.StageDO;
+
+/**
+ * I send stage changes to Server-Sent Events clients, as {@code stage} events whose data is
+ * a {@code StageDO} and whose id is the change's version.
+ * <p>
+ * A client that reconnects with a {@code Last-Event-ID} header is first sent the changes
+ * it missed; a new client is sent the current stage. All the sending is done on one
+ * thread, in version order, and each client is only sent versions newer than the last
+ * one it got, so nobody sees a change twice or out of order, and a slow client can't hold
+ * up the stage publisher.
+ */
+public final class StageEventStream implements Closeable
+{
+    public static final String EVENT_NAME = "stage";
+
+    private static final String LAST_EVENT_ID = "Last-Event-ID";
+
+    // Only used on the sender thread: each client and the last version it was sent
+    private final Map<SseClient, Long> clients = new HashMap<>();
+
+    private final ExecutorService sender = Executors.newSingleThreadExecutor( r -> {
+        final Thread t = new Thread( r, "stage-events" );
+        t.setDaemon( true );
+        return t;
+    });
+
+    // The changes after a version
+    private final LongFunction<List<StageRecord>> history;
+
+    /**
+     * @param history gives the changes after a version, oldest first.
+     */
+    public StageEventStream( LongFunction<List<StageRecord>> history ){
+        this.history = history;
+    }
+
+    /**
+     * Start sending events to a new client.
+     *
+     * @param current gives the stage now, which is sent to clients that have nothing to catch
+     *      up on. It is asked once the client is registered, so that any change published
+     *      after that reaches the client, and none before it is missed.
+     */
+    public void connect( SseClient client, Supplier<StageRecord> current ){
+        client.keepAlive();
+        final long lastSeen = lastEventId( client );
+        client.onClose( () -> sender.execute( () -> clients.remove( client )));
+        sender.execute( () -> {
+            clients.put( client, -1L );
+            if( lastSeen < 0 ){
+                send( client, current.get() );
+            }else{
+                history.apply( lastSeen ).forEach( change -> send( client, change ));
+            }
+        });
+    }
+
+    /**
+     * Send a change to every client.
+     */
+    public void publish( StageRecord change ){
+        sender.execute( () -> List.copyOf( clients.keySet() ).forEach( client -> send( client, change )));
+    }
+
+    private void send( SseClient client, StageRecord change ){
+        final Long lastSent = clients.get( client );
+        if( lastSent == null || change.version() <= lastSent ) return;
+        if( client.terminated() ){
+            clients.remove( client );
+            return;
+        }
+        try{
+            client.sendEvent( EVENT_NAME, new StageDO( change.stage(), change.version() ), Long.toString( change.version() ));
+            clients.put( client, change.version() );
+        }catch( RuntimeException e ){
+            clients.remove( client );
+        }
+    }
+
+    private static long lastEventId( SseClient client ){
+        final String id = client.ctx().header( LAST_EVENT_ID );
+        if( id == null ) return -1;
+        try{
+            return Math.max( -1, Long.parseLong( id.trim() ));
+        }catch( NumberFormatException e ){
+            return -1;
+        }
+    }
+
+    public int clients(){
+        try{
+            return sender.submit( clients::size ).get();
+        }catch( Exception e ){
+            return 0;
+        }
+    }
+
+    @Override
+    public void close(){
+        sender.shutdownNow();
+    }
+}
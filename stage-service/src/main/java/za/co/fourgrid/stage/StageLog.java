@@ -0,0 +1,240 @@
+package za.co.fourgrid.stage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * I am a durable, append-only log of every change of loadshedding stage, so that the
+ * stage (and its history) survives a restart of the StageService.
+ * <p>
+ * The log is a directory of segment files, each of a fixed size and memory-mapped while
+ * it is being written. A segment is named after the version of its first record, and
+ * is laid out (all numbers big-endian) as:
+ * <pre>
+ *   header:   magic, format version
+ *   records:  version (long), timestamp (long), stage (int), CRC32C of the first 20 bytes (int)
+ * </pre>
+ * The unused tail of a segment is zero, which never has a valid checksum. When I open a
+ * log I read the segments in order and stop at the first record that is damaged or out of
+ * sequence, so a record that was only partly written when the service died is simply
+ * forgotten, and the next append overwrites it. Each append is forced to disk before it
+ * returns.
+ * <p>
+ * The history is also kept in memory (stage changes are rare) so that catching up from a
+ * given version doesn't touch the disk.
+ */
+public final class StageLog implements Closeable
+{
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+
+    static final int MAGIC = 0x53544C47;    // "STLG"
+    static final int FORMAT_VERSION = 1;
+
+    static final int HEADER_BYTES = 4 + 4;
+
+    static final int RECORD_BYTES = 8 + 8 + 4 + 4;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final List<StageRecord> history = new ArrayList<>();
+
+    private FileChannel segmentChannel;
+
+    private MappedByteBuffer segment;
+
+    private boolean closed;
+
+    private StageLog( Path directory, int segmentBytes ){
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Open the log in {@code directory}, creating it if necessary, and recover its history.
+     */
+    public static StageLog open( Path directory ) throws IOException {
+        return open( directory, DEFAULT_SEGMENT_BYTES );
+    }
+
+    public static StageLog open( Path directory, int segmentBytes ) throws IOException {
+        if( segmentBytes < HEADER_BYTES + RECORD_BYTES ){
+            throw new IllegalArgumentException( "A segment must have room for at least one record" );
+        }
+        Files.createDirectories( directory );
+        final StageLog log = new StageLog( directory, segmentBytes );
+        log.recover();
+        return log;
+    }
+
+    private void recover() throws IOException {
+        final List<Path> segments;
+        try( Stream<Path> files = Files.list( directory )){
+            segments = files
+                .filter( f -> f.getFileName().toString().endsWith( SEGMENT_SUFFIX ))
+                .sorted()
+                .toList();
+        }
+        int i = 0;
+        while( i < segments.size() ){
+            final boolean complete = recoverSegment( segments.get( i++ ));
+            if( ! complete ) break;
+        }
+        // Anything after a damaged record can't be trusted (and would be out of sequence
+        // once new records are appended), so it goes.
+        while( i < segments.size() ){
+            Files.delete( segments.get( i++ ));
+        }
+    }
+
+    /**
+     * Make {@code file} the current segment and read its records.
+     *
+     * @return true if the whole segment is valid and full, so that later segments should
+     *      be read too.
+     */
+    private boolean recoverSegment( Path file ) throws IOException {
+        closeSegment();
+        segmentChannel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        if( segmentChannel.size() < HEADER_BYTES + RECORD_BYTES || segmentChannel.size() > Integer.MAX_VALUE ){
+            // Not a segment we wrote: start afresh in its place.
+            segment = segmentChannel.map( FileChannel.MapMode.READ_WRITE, 0, segmentBytes );
+            writeHeader();
+            return false;
+        }
+        segment = segmentChannel.map( FileChannel.MapMode.READ_WRITE, 0, segmentChannel.size() );
+        if( segment.getInt( 0 ) != MAGIC || segment.getInt( 4 ) != FORMAT_VERSION ){
+            writeHeader();
+            return false;
+        }
+        segment.position( HEADER_BYTES );
+        return readRecords( segment );
+    }
+
+    /**
+     * Read the valid records in a segment into {@link #history}, leaving the segment
+     * positioned where the next record should go.
+     */
+    private boolean readRecords( MappedByteBuffer buf ){
+        while( buf.remaining() >= RECORD_BYTES ){
+            final int start = buf.position();
+            final long version = buf.getLong();
+            final long timestamp = buf.getLong();
+            final int stage = buf.getInt();
+            final int crc = buf.getInt();
+            if( crc != checksum( buf, start ) || version != latestVersion() + 1 ){
+                buf.position( start );
+                return false;
+            }
+            history.add( new StageRecord( version, timestamp, stage ));
+        }
+        return true;
+    }
+
+    private static int checksum( MappedByteBuffer buf, int recordStart ){
+        final CRC32C crc = new CRC32C();
+        crc.update( buf.slice( recordStart, RECORD_BYTES - 4 ));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Record a new stage.
+     *
+     * @return the record, with the next version number.
+     */
+    public synchronized StageRecord append( int stage, long timestamp ) throws IOException {
+        return append( new StageRecord( latestVersion() + 1, timestamp, stage ));
+    }
+
+    /**
+     * Record a stage change that has already been given its version, which must be the
+     * next one.
+     */
+    public synchronized StageRecord append( StageRecord aRecord ) throws IOException {
+        if( aRecord.version() != latestVersion() + 1 ){
+            throw new IllegalArgumentException( "Expected version " + ( latestVersion() + 1 ) + " but got " + aRecord );
+        }
+        if( closed ){
+            throw new IOException( "Stage log " + directory + " is closed" );
+        }
+        if( segment == null || segment.remaining() < RECORD_BYTES ){
+            startSegment( latestVersion() + 1 );
+        }
+        final int start = segment.position();
+        try{
+            segment.putLong( aRecord.version() ).putLong( aRecord.timestamp() ).putInt( aRecord.stage() );
+            segment.putInt( checksum( segment, start ));
+            segment.force( start, RECORD_BYTES );
+        }catch( RuntimeException e ){
+            // Not recorded: the next append (of the same version) goes in its place.
+            segment.position( start );
+            throw e;
+        }
+        history.add( aRecord );
+        return aRecord;
+    }
+
+    private void startSegment( long firstVersion ) throws IOException {
+        closeSegment();
+        final Path file = directory.resolve( String.format( "stage-%020d%s", firstVersion, SEGMENT_SUFFIX ));
+        segmentChannel = FileChannel.open( file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        segment = segmentChannel.map( FileChannel.MapMode.READ_WRITE, 0, segmentBytes );
+        writeHeader();
+    }
+
+    private void writeHeader(){
+        segment.position( 0 );
+        segment.putInt( MAGIC ).putInt( FORMAT_VERSION );
+        segment.force( 0, HEADER_BYTES );
+    }
+
+    /**
+     * @return the version of the latest record, or 0 if nothing has been recorded yet.
+     */
+    public synchronized long latestVersion(){
+        return history.isEmpty() ? 0 : history.get( history.size() - 1 ).version();
+    }
+
+    public synchronized Optional<StageRecord> latest(){
+        return history.isEmpty() ? Optional.empty() : Optional.of( history.get( history.size() - 1 ));
+    }
+
+    /**
+     * @return the records with versions greater than {@code version}, oldest first.
+     */
+    public synchronized List<StageRecord> since( long version ){
+        // Versions are consecutive from 1, so the record after version v is at index v.
+        if( version >= latestVersion() ) return Collections.emptyList();
+        final int from = (int) Math.max( 0, version );
+        return List.copyOf( history.subList( from, history.size() ));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        closeSegment();
+    }
+
+    private void closeSegment() throws IOException {
+        segment = null;
+        if( segmentChannel != null ){
+            segmentChannel.close();
+            segmentChannel = null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package za.co.fourgrid.stage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * I write stage changes to the {@link StageLog} and announce them, one at a time and
+ * strictly in order, on a single writer thread.
+ * <p>
+ * Changes are made by compare-and-set on the current stage, and each is submitted
+ * along with the change it replaced. They may reach me in any order: a change is held
+ * back until the change it replaced has been written and announced. Since every change
+ * is submitted exactly once, nothing waits for long. Listeners therefore never see an
+ * older stage announced after a newer one.
+ * <p>
+ * If a change can't be written, it fails, and so does every change made on top of it,
+ * however late it is submitted. Then the current stage is set back to the last change
+ * that was written, as long as nobody has moved it on in the meantime. The next
+ * change is made on top of that and gets the failed change's version, so one failed
+ * write doesn't stop later changes from being recorded. Once it has been written, nothing
+ * can be made on top of the failed changes any more, so I forget them.
+ */
+public final class StagePublisher implements Closeable
+{
+    /**
+     * Tells the world about a stage change that has been written to the log.
+     */
+    public interface Announcer
+    {
+        void announce( StageRecord change ) throws Exception;
+    }
+
+    /**
+     * Where I write changes: a StageLog, except in tests.
+     */
+    interface Appender
+    {
+        void append( StageRecord change ) throws IOException;
+    }
+
+    private record Change( StageRecord previous, StageRecord aRecord, CompletableFuture<StageRecord> written ){}
+
+    private static final long CLOSE_WAIT_MILLIS = 5000;
+
+    private final Appender log;
+
+    private final AtomicReference<StageRecord> current;
+
+    private final Announcer announcer;
+
+    private final LinkedBlockingQueue<Change> submitted = new LinkedBlockingQueue<>();
+
+    private final Thread writer;
+
+    // Only changed while holding my lock, so nothing is submitted once it is false.
+    private volatile boolean running = true;
+
+    // Only used on the writer thread
+    private StageRecord lastWritten;
+
+    /**
+     * @param current the current stage, which must be the latest change in the log (or
+     *      the initial stage, if the log is empty). I set it back if a change made on it
+     *      can't be written.
+     */
+    public StagePublisher( StageLog log, AtomicReference<StageRecord> current, Announcer announcer ){
+        this( log::append, current, announcer );
+    }
+
+    StagePublisher( Appender log, AtomicReference<StageRecord> current, Announcer announcer ){
+        this.log = log;
+        this.current = current;
+        this.announcer = announcer;
+        this.lastWritten = current.get();
+        writer = new Thread( this::writeChanges, "stage-publisher" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    /**
+     * Write and announce a stage change, once the change it replaced has been.
+     *
+     * @param previous the current stage that was replaced by {@code change}.
+     * @return a future that completes with the change once it is safely in the log (and
+     *      has been announced), or exceptionally if it couldn't be written.
+     */
+    public synchronized CompletableFuture<StageRecord> submit( StageRecord previous, StageRecord change ){
+        final Change aChange = new Change( previous, change, new CompletableFuture<>() );
+        if( ! running ){
+            aChange.written().completeExceptionally( new IOException( "Stage publisher is closed" ));
+            return aChange.written();
+        }
+        submitted.add( aChange );
+        return aChange.written();
+    }
+
+    private void writeChanges(){
+        // Changes waiting to be written, by the change they replaced (which is unique)
+        final Map<StageRecord, Change> heldBack = new IdentityHashMap<>();
+        // Changes that couldn't be written, so nothing made on top of them can be; only
+        // until a change of the same version has been written in their place
+        final Set<StageRecord> failed = Collections.newSetFromMap( new IdentityHashMap<>() );
+        while( running || ! submitted.isEmpty() ){
+            final Change aChange;
+            try{
+                aChange = submitted.poll( 100, TimeUnit.MILLISECONDS );
+            }catch( InterruptedException e ){
+                break;
+            }
+            if( aChange == null ) continue;
+            if( failed.contains( aChange.previous() )){
+                fail( aChange, notRecorded( aChange ), heldBack, failed );
+                continue;
+            }
+            heldBack.put( aChange.previous(), aChange );
+            Change next;
+            while(( next = heldBack.remove( lastWritten )) != null ){
+                final Exception e = write( next );
+                if( e != null ){
+                    fail( next, e, heldBack, failed );
+                    break;
+                }
+                lastWritten = next.aRecord();
+                // Whatever was made on top of the changes this replaced has been submitted,
+                // or the current stage wouldn't have been set back for this to be made.
+                final long written = lastWritten.version();
+                failed.removeIf( f -> f.version() <= written );
+            }
+        }
+        final IOException closed = new IOException( "Stage publisher closed before the change was written" );
+        heldBack.values().forEach( c -> c.written().completeExceptionally( closed ));
+        submitted.forEach( c -> c.written().completeExceptionally( closed ));
+    }
+
+    /**
+     * Fail a change, and any held back change that was made on top of it.
+     */
+    private void fail( Change aChange, Exception e, Map<StageRecord, Change> heldBack, Set<StageRecord> failed ){
+        for( Change f = aChange; f != null; f = heldBack.remove( f.aRecord() )){
+            failed.add( f.aRecord() );
+            current.compareAndSet( f.aRecord(), lastWritten );
+            f.written().completeExceptionally( f == aChange ? e : notRecorded( f ));
+        }
+    }
+
+    private static IOException notRecorded( Change aChange ){
+        return new IOException( "Stage change " + aChange.previous() + " was not recorded, so " + aChange.aRecord() + " can't be" );
+    }
+
+    /**
+     * @return null if the change was written, or why it wasn't.
+     */
+    private Exception write( Change aChange ){
+        try{
+            log.append( aChange.aRecord() );
+        }catch( IOException | RuntimeException e ){
+            return e;
+        }
+        try{
+            announcer.announce( aChange.aRecord() );
+        }catch( Exception e ){
+            // The change is durable, and consumers can catch up from the stage history.
+            System.err.println( "Failed to announce stage change " + aChange.aRecord() + ": " + e.getMessage() );
+        }
+        aChange.written().complete( aChange.aRecord() );
+        return null;
+    }
+
+    /**
+     * Stop accepting changes, and wait (for a while) for those already submitted to be
+     * written.
+     */
+    @Override
+    public void close(){
+        synchronized( this ){
+            running = false;
+        }
+        try{
+            writer.join( CLOSE_WAIT_MILLIS );
+        }catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package za.co.fourgrid.stage;
+
+/**
+ * One change of loadshedding stage, as recorded in the {@link StageLog}.
+ *
+ * @param version numbers the changes: 1 for the first change ever recorded, and one more
+ *      for each change after that.
+ * @param timestamp when the change was made, in milliseconds since the epoch.
+ * @param stage the new stage.
+ */
+public record StageRecord( long version, long timestamp, int stage )
+{
+}
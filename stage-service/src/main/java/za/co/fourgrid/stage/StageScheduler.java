@@ -0,0 +1,236 @@
+package za.co.fourgrid.stage;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * I hold stage changes that are to take effect in the future, and make each one when its
+ * time comes.
+ * <p>
+ * Pending changes wait in a {@link DelayQueue}, whose timer thread wakes up at the
+ * deadline of the earliest one, so a change is made within a few milliseconds of its time.
+ * Every pending change is also kept in a small text file (rewritten atomically whenever
+ * the changes are added to, cancelled or made), so they survive a restart; changes whose
+ * time passed while the service was down are made as soon as it starts again, in order.
+ * A change is only removed from the file after it has been made, so a crash at the wrong
+ * moment can make a change twice, but never lose it. A change that fails is tried again
+ * every {@link #RETRY_MILLIS}, and later changes wait for it, so they are still made in
+ * order; but after {@link #MAX_ATTEMPTS} tries it is given up and removed from the file,
+ * so that one change that can't be made doesn't hold up all the others for good.
+ */
+public final class StageScheduler implements Closeable
+{
+    /**
+     * Makes a scheduled change of stage.
+     */
+    public interface Firing
+    {
+        void fire( StageTransition transition ) throws Exception;
+    }
+
+    public static final long RETRY_MILLIS = 1000;
+
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static final String NEXT_ID = "next";
+
+    private static final Comparator<StageTransition> IN_ORDER =
+        Comparator.comparingLong( StageTransition::effectiveAt ).thenComparingLong( StageTransition::id );
+
+    private static final class Pending implements Delayed
+    {
+        final StageTransition transition;
+
+        // When to make the change: later than its effectiveAt if it has to be tried again
+        final long dueAt;
+
+        // How many times making the change has failed
+        final int failures;
+
+        Pending( StageTransition transition ){
+            this( transition, transition.effectiveAt(), 0 );
+        }
+
+        Pending( StageTransition transition, long dueAt, int failures ){
+            this.transition = transition;
+            this.dueAt = dueAt;
+            this.failures = failures;
+        }
+
+        @Override
+        public long getDelay( TimeUnit unit ){
+            return unit.convert( dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+        }
+
+        @Override
+        public int compareTo( Delayed other ){
+            return IN_ORDER.compare( transition, ((Pending) other).transition );
+        }
+    }
+
+    private final Path file;
+
+    private final Firing firing;
+
+    private final DelayQueue<Pending> due = new DelayQueue<>();
+
+    private final Map<Long, Pending> pending = new HashMap<>();
+
+    private final Thread timer;
+
+    private long nextId = 1;
+
+    private StageScheduler( Path file, Firing firing ){
+        this.file = file;
+        this.firing = firing;
+        timer = new Thread( this::fireWhenDue, "stage-scheduler" );
+        timer.setDaemon( true );
+    }
+
+    /**
+     * Load the pending changes saved in {@code file} (if it exists) and start waiting for them.
+     */
+    public static StageScheduler open( Path file, Firing firing ) throws IOException {
+        final StageScheduler scheduler = new StageScheduler( file, firing );
+        scheduler.load();
+        scheduler.timer.start();
+        return scheduler;
+    }
+
+    /**
+     * Schedule a change of stage.
+     *
+     * @param effectiveAt when the change is to be made, in milliseconds since the epoch.
+     * @return the scheduled change, with its id.
+     */
+    public synchronized StageTransition schedule( long effectiveAt, int stage ) throws IOException {
+        final StageTransition transition = new StageTransition( nextId++, effectiveAt, stage );
+        final Pending aPending = new Pending( transition );
+        pending.put( transition.id(), aPending );
+        save();
+        due.add( aPending );
+        return transition;
+    }
+
+    /**
+     * @return true if the change was pending (and now isn't).
+     */
+    public synchronized boolean cancel( long id ) throws IOException {
+        final Pending aPending = pending.remove( id );
+        if( aPending == null ) return false;
+        due.remove( aPending );
+        save();
+        return true;
+    }
+
+    /**
+     * @return the pending changes, earliest first.
+     */
+    public synchronized List<StageTransition> pending(){
+        return pending.values().stream().map( p -> p.transition ).sorted( IN_ORDER ).toList();
+    }
+
+    private void fireWhenDue(){
+        while( ! Thread.currentThread().isInterrupted() ){
+            final Pending next;
+            try{
+                next = due.take();
+            }catch( InterruptedException e ){
+                break;
+            }
+            synchronized( this ){
+                // It may have been cancelled just as it became due.
+                if( ! pending.remove( next.transition.id(), next )) continue;
+            }
+            try{
+                firing.fire( next.transition );
+            }catch( Exception e ){
+                if( next.failures + 1 < MAX_ATTEMPTS ){
+                    System.err.println( "Failed to make scheduled stage change " + next.transition
+                        + ", trying again in " + RETRY_MILLIS + "ms: " + e.getMessage() );
+                    final Pending retry = new Pending( next.transition, System.currentTimeMillis() + RETRY_MILLIS, next.failures + 1 );
+                    synchronized( this ){
+                        pending.put( retry.transition.id(), retry );
+                        due.add( retry );
+                    }
+                    continue;
+                }
+                System.err.println( "Giving up on scheduled stage change " + next.transition
+                    + " after " + MAX_ATTEMPTS + " attempts: " + e.getMessage() );
+            }
+            // Only now is the change (made or given up) gone from the file.
+            synchronized( this ){
+                try{
+                    save();
+                }catch( IOException e ){
+                    System.err.println( "Failed to save pending stage changes: " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    // Lines of id,effectiveAt,stage after a line giving the next id
+    private void load() throws IOException {
+        if( ! Files.isRegularFile( file )) return;
+        try( BufferedReader in = Files.newBufferedReader( file, StandardCharsets.UTF_8 )){
+            String line;
+            int lineNumber = 0;
+            while(( line = in.readLine() ) != null ){
+                lineNumber++;
+                if( line.isBlank() || line.startsWith( "#" )) continue;
+                final String[] fields = line.split( "," );
+                try{
+                    if( fields.length == 2 && fields[ 0 ].equals( NEXT_ID )){
+                        nextId = Math.max( nextId, Long.parseLong( fields[ 1 ] ));
+                    }else if( fields.length == 3 ){
+                        final StageTransition transition = new StageTransition(
+                            Long.parseLong( fields[ 0 ] ), Long.parseLong( fields[ 1 ] ), Integer.parseInt( fields[ 2 ] ));
+                        final Pending aPending = new Pending( transition );
+                        pending.put( transition.id(), aPending );
+                        due.add( aPending );
+                        nextId = Math.max( nextId, transition.id() + 1 );
+                    }else{
+                        throw new NumberFormatException();
+                    }
+                }catch( NumberFormatException e ){
+                    throw new IOException( file + " line " + lineNumber + ": expected id,effectiveAt,stage but got " + line );
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+        try( Writer out = Files.newBufferedWriter( tmp, StandardCharsets.UTF_8 )){
+            out.write( "# Pending stage changes: id,effectiveAt (ms since the epoch),stage\n" );
+            out.write( NEXT_ID + "," + nextId + "\n" );
+            for( StageTransition transition : pending() ){
+                out.write( transition.id() + "," + transition.effectiveAt() + "," + transition.stage() + "\n" );
+            }
+        }
+        Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    @Override
+    public void close(){
+        timer.interrupt();
+        try{
+            timer.join( 5000 );
+        }catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package za.co.fourgrid.stage;
+
+/**
+ * A change of loadshedding stage that is to be made at some time in the future.
+ *
+ * @param id identifies the change, so that it can be cancelled.
+ * @param effectiveAt when the change is to be made, in milliseconds since the epoch.
+ * @param stage the new stage.
+ */
+public record StageTransition( long id, long effectiveAt, int stage )
+{
+}
@@ -0,0 +1,74 @@
+package za.co.fourgrid.stage;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * I keep track of clients waiting for the stage to reach a given version (long-polling),
+ * and wake them up when it does.
+ * <p>
+ * A waiter is just a future, so waiting ties up no thread at all. When a change is
+ * published each waiter it satisfies is woken on its own task of {@code wakeUp}, so that
+ * many waiters can be answered at once without holding up the publisher. A waiter that
+ * times out forgets itself, so clients that poll for a long time between stage changes
+ * don't pile up.
+ */
+public final class StageWaiters
+{
+    private record Waiter( long version, CompletableFuture<StageRecord> changed ){}
+
+    private final Set<Waiter> waiting = ConcurrentHashMap.newKeySet();
+
+    private final Executor wakeUp;
+
+    private volatile StageRecord latest;
+
+    public StageWaiters( StageRecord initial, Executor wakeUp ){
+        this.latest = initial;
+        this.wakeUp = wakeUp;
+    }
+
+    /**
+     * @return a future that completes with the stage once its version is at least
+     *      {@code version} (straight away, if it already is), or completes exceptionally
+     *      with a {@code TimeoutException} if that takes longer than the timeout.
+     */
+    public CompletableFuture<StageRecord> awaitVersion( long version, long timeout, TimeUnit unit ){
+        final Waiter aWaiter = new Waiter( version, new CompletableFuture<>() );
+        aWaiter.changed().whenComplete( ( stage, e ) -> waiting.remove( aWaiter ));
+        waiting.add( aWaiter );
+        // Check after joining the waiters, so that a change published in between is seen
+        // either here or by publish().
+        final StageRecord now = latest;
+        if( now.version() >= version ){
+            aWaiter.changed().complete( now );
+        }
+        return aWaiter.changed().orTimeout( timeout, unit );
+    }
+
+    /**
+     * The stage has changed: wake everyone waiting for this version or an earlier one.
+     */
+    public void publish( StageRecord change ){
+        latest = change;
+        for( Waiter aWaiter : waiting ){
+            if( aWaiter.version() <= change.version() ){
+                wakeUp.execute( () -> aWaiter.changed().complete( change ));
+            }
+        }
+    }
+
+    public StageRecord latest(){
+        return latest;
+    }
+
+    /**
+     * @return how many clients are waiting.
+     */
+    public int waiting(){
+        return waiting.size();
+    }
+}
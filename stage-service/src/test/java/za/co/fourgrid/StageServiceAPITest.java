@@ -1,6 +1,8 @@
 package za.co.fourgrid;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import javax.jms.JMSException;
 
@@ -8,6 +10,7 @@ import kong.unirest.HttpResponse;
 import kong.unirest.HttpStatus;
 import kong.unirest.JsonNode;
 import kong.unirest.Unirest;
+import kong.unirest.json.JSONArray;
 import kong.unirest.json.JSONException;
 import org.junit.jupiter.api.*;
 import za.co.fourgrid.common.mq.MqTopicSender;
@@ -76,6 +79,125 @@ public class StageServiceAPITest
         assertEquals( oldStage, stage );
     }
 
+    @Test
+    public void setNewStage_ifMatch(){
+        final HttpResponse<JsonNode> current = Unirest.get( serverUrl() + "/stage" ).asJson();
+        final String etag = current.getHeaders().getFirst( "ETag" );
+        assertEquals( "\"" + current.getBody().getObject().getLong( "version" ) + "\"", etag );
+
+        final HttpResponse<JsonNode> changed = Unirest.post( serverUrl() + "/stage" )
+            .header( "Content-Type", "application/json" )
+            .header( "If-Match", etag )
+            .body( new StageDO( 2 ))
+            .asJson();
+        assertEquals( HttpStatus.OK, changed.getStatus() );
+        assertEquals( current.getBody().getObject().getLong( "version" ) + 1, changed.getBody().getObject().getLong( "version" ));
+
+        // The stage has moved on since etag
+        final HttpResponse<JsonNode> stale = Unirest.post( serverUrl() + "/stage" )
+            .header( "Content-Type", "application/json" )
+            .header( "If-Match", etag )
+            .body( new StageDO( 7 ))
+            .asJson();
+        assertEquals( HttpStatus.PRECONDITION_FAILED, stale.getStatus() );
+        assertEquals( 2, getStageFromResponse( stale ));
+        assertEquals( 2, getStageFromResponse( Unirest.get( serverUrl() + "/stage" ).asJson() ));
+
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.post( serverUrl() + "/stage" )
+            .header( "Content-Type", "application/json" )
+            .header( "If-Match", "\"latest\"" )
+            .body( new StageDO( 7 ))
+            .asJson().getStatus() );
+    }
+
+    @Test
+    public void getStageHistory(){
+        final JSONArray before = Unirest.get( serverUrl() + "/stage/history" ).asJson().getBody().getArray();
+        final long since = before.isEmpty() ? 0 : before.getJSONObject( before.length() - 1 ).getLong( "version" );
+
+        Unirest.post( serverUrl() + "/stage" ).header( "Content-Type", "application/json" ).body( new StageDO( 3 )).asJson();
+        Unirest.post( serverUrl() + "/stage" ).header( "Content-Type", "application/json" ).body( new StageDO( 5 )).asJson();
+
+        final HttpResponse<JsonNode> response = Unirest.get( serverUrl() + "/stage/history?since=" + since ).asJson();
+        assertEquals( HttpStatus.OK, response.getStatus() );
+        final JSONArray changes = response.getBody().getArray();
+        assertEquals( 2, changes.length() );
+        assertEquals( since + 1, changes.getJSONObject( 0 ).getLong( "version" ));
+        assertEquals( 3, changes.getJSONObject( 0 ).getInt( "stage" ));
+        assertEquals( 5, changes.getJSONObject( 1 ).getInt( "stage" ));
+
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.get( serverUrl() + "/stage/history?since=-1" ).asString().getStatus() );
+    }
+
+    @Test
+    public void stageIsRecoveredAfterARestart() throws Exception {
+        final Path logDir = Files.createTempDirectory( "stage-log" );
+        MqTopicSender sender = new MqTopicSender().init( "vm://localhost?broker.persistent=false" );
+        StageService first = new StageService().initialise( StageService.DEFAULT_STAGE, sender, logDir );
+        first.start( TEST_PORT + 1 );
+        try{
+            Unirest.post( "http://localhost:" + ( TEST_PORT + 1 ) + "/stage" )
+                .header( "Content-Type", "application/json" )
+                .body( new StageDO( 6 ))
+                .asJson();
+        }finally{
+            first.stop();
+        }
+
+        sender = new MqTopicSender().init( "vm://localhost?broker.persistent=false" );
+        StageService second = new StageService().initialise( StageService.DEFAULT_STAGE, sender, logDir );
+        second.start( TEST_PORT + 1 );
+        try{
+            assertEquals( 6, getStageFromResponse( Unirest.get( "http://localhost:" + ( TEST_PORT + 1 ) + "/stage" ).asJson() ));
+        }finally{
+            second.stop();
+        }
+    }
+
+    @Test
+    public void scheduleAStageChange() throws Exception {
+        final String soon = java.time.OffsetDateTime.now().plusNanos( 300_000_000 ).toString();
+        final HttpResponse<JsonNode> scheduled = Unirest.post( serverUrl() + "/stage/schedule" )
+            .header( "Content-Type", "application/json" )
+            .body( "{\"stage\":8,\"effectiveAt\":\"" + soon + "\"}" )
+            .asJson();
+        assertEquals( HttpStatus.CREATED, scheduled.getStatus() );
+        final long id = scheduled.getBody().getObject().getLong( "id" );
+
+        final JSONArray pending = Unirest.get( serverUrl() + "/stage/schedule" ).asJson().getBody().getArray();
+        assertEquals( id, pending.getJSONObject( 0 ).getLong( "id" ));
+
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while( getStageFromResponse( Unirest.get( serverUrl() + "/stage" ).asJson() ) != 8 && System.currentTimeMillis() < deadline ){
+            Thread.sleep( 50 );
+        }
+        assertEquals( 8, getStageFromResponse( Unirest.get( serverUrl() + "/stage" ).asJson() ));
+        assertEquals( 0, Unirest.get( serverUrl() + "/stage/schedule" ).asJson().getBody().getArray().length() );
+    }
+
+    @Test
+    public void cancelAScheduledStageChange(){
+        final String tomorrow = java.time.OffsetDateTime.now().plusDays( 1 ).toString();
+        final long id = Unirest.post( serverUrl() + "/stage/schedule" )
+            .header( "Content-Type", "application/json" )
+            .body( "{\"stage\":4,\"effectiveAt\":\"" + tomorrow + "\"}" )
+            .asJson().getBody().getObject().getLong( "id" );
+        assertEquals( HttpStatus.NO_CONTENT, Unirest.delete( serverUrl() + "/stage/schedule/" + id ).asString().getStatus() );
+        assertEquals( HttpStatus.NOT_FOUND, Unirest.delete( serverUrl() + "/stage/schedule/" + id ).asString().getStatus() );
+    }
+
+    @Test
+    public void scheduledChangesMustBeInTheFuture(){
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.post( serverUrl() + "/stage/schedule" )
+            .header( "Content-Type", "application/json" )
+            .body( "{\"stage\":4,\"effectiveAt\":\"2020-01-01T16:00:00+02:00\"}" )
+            .asString().getStatus() );
+        assertEquals( HttpStatus.BAD_REQUEST, Unirest.post( serverUrl() + "/stage/schedule" )
+            .header( "Content-Type", "application/json" )
+            .body( "{\"stage\":4,\"effectiveAt\":\"teatime\"}" )
+            .asString().getStatus() );
+    }
+
     private static int getStageFromResponse( HttpResponse<JsonNode> response ) throws JSONException{
         return response.getBody().getObject().getInt( "stage" );
     }
@@ -0,0 +1,186 @@
+package za.co.fourgrid;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import kong.unirest.HttpResponse;
+import kong.unirest.HttpStatus;
+import kong.unirest.JsonNode;
+import kong.unirest.Unirest;
+import org.junit.jupiter.api.*;
+import za.co.fourgrid.common.mq.MqTopicSender;
+import za.co.fourgrid.common.transfer.StageDO;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * I hammer the Stage Service with concurrent stage changes, and check that none of them
+ * are lost and that they are announced in order.
+ */
+@Tag( "expensive" )
+public class StageServiceConcurrencyTest
+{
+    public static final int TEST_PORT = 7779;
+
+    private static final int THREADS = 8;
+
+    private static final int CHANGES_PER_THREAD = 50;
+
+    /**
+     * Catches the announcements instead of sending them to a broker.
+     */
+    private static class RecordingSender extends MqTopicSender
+    {
+        final List<StageDO> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send( String message ){
+            try{
+                sent.add( new ObjectMapper().readValue( message, StageDO.class ));
+            }catch( Exception e ){
+                throw new IllegalStateException( e );
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> sendAsync( String message ){
+            send( message );
+            return CompletableFuture.completedFuture( null );
+        }
+
+        @Override
+        public void close(){
+        }
+    }
+
+    private static RecordingSender sender;
+
+    private static StageService server;
+
+    // The version of the stage when each test starts
+    private long baseVersion;
+
+    @BeforeAll
+    public static void startServer() throws Exception {
+        sender = new RecordingSender();
+        server = new StageService().initialise( StageService.DEFAULT_STAGE, sender, Files.createTempDirectory( "stage-log" ));
+        server.start( TEST_PORT );
+    }
+
+    @AfterAll
+    public static void stopServer(){
+        server.stop();
+    }
+
+    @BeforeEach
+    public void forgetEarlierAnnouncements(){
+        sender.sent.clear();
+        baseVersion = Unirest.get( serverUrl() + "/stage" ).asJson().getBody().getObject().getLong( "version" );
+    }
+
+    @Test
+    public void concurrentChangesAreNeitherLostNorReordered() throws Exception {
+        // Each thread sets stages t * 1000 + 0, 1, 2, ... so every change can be identified.
+        runConcurrently( t -> {
+            for( int i = 0; i < CHANGES_PER_THREAD; i++ ){
+                final HttpResponse<JsonNode> response = post( t * 1000 + i, null );
+                assertThat( response.getStatus() ).isEqualTo( HttpStatus.OK );
+            }
+        });
+
+        final int total = THREADS * CHANGES_PER_THREAD;
+        assertThat( sender.sent ).hasSize( total );
+        final int[] lastSeen = new int[ THREADS ];
+        Arrays.fill( lastSeen, -1 );
+        for( int v = 0; v < total; v++ ){
+            final StageDO announced = sender.sent.get( v );
+            assertThat( announced.getVersion() ).isEqualTo( baseVersion + v + 1 );
+            // Each thread's own changes are announced in the order it made them
+            final int thread = announced.getStage() / 1000;
+            assertThat( announced.getStage() % 1000 ).isEqualTo( lastSeen[ thread ] + 1 );
+            lastSeen[ thread ] = announced.getStage() % 1000;
+        }
+        assertThat( lastSeen ).containsOnly( CHANGES_PER_THREAD - 1 );
+
+        final JsonNode history = Unirest.get( serverUrl() + "/stage/history?since=" + baseVersion ).asJson().getBody();
+        assertThat( history.getArray().length() ).isEqualTo( total );
+        for( int v = 0; v < total; v++ ){
+            assertThat( history.getArray().getJSONObject( v ).getInt( "stage" )).isEqualTo( sender.sent.get( v ).getStage() );
+        }
+        final StageDO last = sender.sent.get( total - 1 );
+        final JsonNode now = Unirest.get( serverUrl() + "/stage" ).asJson().getBody();
+        assertThat( now.getObject().getInt( "stage" )).isEqualTo( last.getStage() );
+        assertThat( now.getObject().getLong( "version" )).isEqualTo( baseVersion + total );
+    }
+
+    @Test
+    public void conditionalChangesNeverOverwriteEachOther() throws Exception {
+        final int startStage = Unirest.get( serverUrl() + "/stage" ).asJson().getBody().getObject().getInt( "stage" );
+        // Each thread reads the stage and adds one to it, retrying when it loses the race.
+        runConcurrently( t -> {
+            int done = 0;
+            while( done < CHANGES_PER_THREAD / 5 ){
+                final HttpResponse<JsonNode> current = Unirest.get( serverUrl() + "/stage" ).asJson();
+                final int stage = current.getBody().getObject().getInt( "stage" );
+                final HttpResponse<JsonNode> response = post( stage + 1, current.getHeaders().getFirst( "ETag" ));
+                if( response.getStatus() == HttpStatus.OK ){
+                    done++;
+                }else{
+                    assertThat( response.getStatus() ).isEqualTo( HttpStatus.PRECONDITION_FAILED );
+                }
+            }
+        });
+
+        final int total = THREADS * ( CHANGES_PER_THREAD / 5 );
+        assertThat( sender.sent ).extracting( StageDO::getStage )
+            .containsExactlyElementsOf( IntStream.rangeClosed( startStage + 1, startStage + total ).boxed().toList() );
+    }
+
+    private interface Worker
+    {
+        void run( int thread ) throws Exception;
+    }
+
+    private void runConcurrently( Worker worker ) throws Exception {
+        final ExecutorService threads = Executors.newFixedThreadPool( THREADS );
+        try{
+            final CountDownLatch go = new CountDownLatch( 1 );
+            final List<Future<?>> results = new ArrayList<>();
+            for( int t = 0; t < THREADS; t++ ){
+                final int thread = t;
+                results.add( threads.submit( () -> {
+                    go.await();
+                    worker.run( thread );
+                    return null;
+                }));
+            }
+            go.countDown();
+            for( Future<?> result : results ){
+                result.get( 2, TimeUnit.MINUTES );
+            }
+        }finally{
+            threads.shutdownNow();
+        }
+    }
+
+    private HttpResponse<JsonNode> post( int stage, String ifMatch ){
+        var request = Unirest.post( serverUrl() + "/stage" ).header( "Content-Type", "application/json" );
+        if( ifMatch != null ) request = request.header( "If-Match", ifMatch );
+        return request.body( new StageDO( stage )).asJson();
+    }
+
+    private static String serverUrl(){
+        return "http://localhost:" + TEST_PORT;
+    }
+}
@@ -0,0 +1,155 @@
+package za.co.fourgrid;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import kong.unirest.HttpStatus;
+import kong.unirest.JsonNode;
+import kong.unirest.Unirest;
+import org.junit.jupiter.api.*;
+import za.co.fourgrid.common.mq.MqTopicSender;
+import za.co.fourgrid.common.transfer.StageDO;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * I test watching the Stage Service for changes, by long-polling and by Server-Sent Events.
+ */
+@Tag( "expensive" )
+public class StageServiceWatchTest
+{
+    public static final int TEST_PORT = 7780;
+
+    private static final int LONG_POLLS = 1000;
+
+    private static StageService server;
+
+    private static HttpClient http;
+
+    @BeforeAll
+    public static void startServer() throws Exception {
+        final MqTopicSender sender = new MqTopicSender().init( "vm://localhost?broker.persistent=false" );
+        server = new StageService().initialise( StageService.DEFAULT_STAGE, sender, Files.createTempDirectory( "stage-log" ));
+        server.start( TEST_PORT );
+        http = HttpClient.newHttpClient();
+    }
+
+    @AfterAll
+    public static void stopServer(){
+        server.stop();
+    }
+
+    @Test
+    public void longPollsReturnWhenTheStageChanges() throws Exception {
+        final long version = currentVersion();
+        final List<CompletableFuture<HttpResponse<String>>> polls = new ArrayList<>();
+        for( int i = 0; i < LONG_POLLS; i++ ){
+            polls.add( http.sendAsync(
+                HttpRequest.newBuilder( URI.create( serverUrl() + "/stage?waitForVersion=" + ( version + 1 ))).build(),
+                HttpResponse.BodyHandlers.ofString() ));
+        }
+        Thread.sleep( 500 );
+        assertThat( polls ).noneMatch( CompletableFuture::isDone );
+
+        setStage( 7 );
+        CompletableFuture.allOf( polls.toArray( new CompletableFuture<?>[ 0 ] )).get( 1, TimeUnit.MINUTES );
+        for( CompletableFuture<HttpResponse<String>> poll : polls ){
+            assertThat( poll.get().statusCode() ).isEqualTo( HttpStatus.OK );
+            assertThat( new JsonNode( poll.get().body() ).getObject().getInt( "stage" )).isEqualTo( 7 );
+            assertThat( new JsonNode( poll.get().body() ).getObject().getLong( "version" )).isEqualTo( version + 1 );
+        }
+    }
+
+    @Test
+    public void longPollsForAPastVersionReturnStraightAway(){
+        final var response = Unirest.get( serverUrl() + "/stage?waitForVersion=0" ).asJson();
+        assertThat( response.getStatus() ).isEqualTo( HttpStatus.OK );
+        assertThat( response.getBody().getObject().getLong( "version" )).isEqualTo( currentVersion() );
+    }
+
+    @Test
+    public void longPollsTimeOut(){
+        final long version = currentVersion();
+        final var response = Unirest.get( serverUrl() + "/stage?waitForVersion=" + ( version + 1 ) + "&timeout=1" ).asString();
+        assertThat( response.getStatus() ).isEqualTo( HttpStatus.NOT_MODIFIED );
+        assertThat( response.getHeaders().getFirst( "ETag" )).isEqualTo( "\"" + version + "\"" );
+
+        assertThat( Unirest.get( serverUrl() + "/stage?waitForVersion=-1" ).asString().getStatus() ).isEqualTo( HttpStatus.BAD_REQUEST );
+        assertThat( Unirest.get( serverUrl() + "/stage?waitForVersion=1&timeout=0" ).asString().getStatus() ).isEqualTo( HttpStatus.BAD_REQUEST );
+    }
+
+    @Test
+    public void eventsAreStreamed() throws Exception {
+        final long version = currentVersion();
+        final HttpResponse<InputStream> stream = http.send(
+            HttpRequest.newBuilder( URI.create( serverUrl() + "/stage/events" ))
+                .header( "Accept", "text/event-stream" )
+                .header( "Last-Event-ID", Long.toString( version ))
+                .build(),
+            HttpResponse.BodyHandlers.ofInputStream() );
+        try( BufferedReader events = new BufferedReader( new InputStreamReader( stream.body(), StandardCharsets.UTF_8 ))){
+            setStage( 3 );
+            setStage( 5 );
+            assertThat( nextEvent( events )).contains( "id: " + ( version + 1 )).contains( "\"stage\":3" );
+            assertThat( nextEvent( events )).contains( "id: " + ( version + 2 )).contains( "\"stage\":5" );
+        }
+    }
+
+    @Test
+    public void reconnectingClientsCatchUp() throws Exception {
+        setStage( 1 );
+        final long version = currentVersion();
+        setStage( 2 );
+        final HttpResponse<InputStream> stream = http.send(
+            HttpRequest.newBuilder( URI.create( serverUrl() + "/stage/events" ))
+                .header( "Accept", "text/event-stream" )
+                .header( "Last-Event-ID", Long.toString( version - 1 ))
+                .build(),
+            HttpResponse.BodyHandlers.ofInputStream() );
+        try( BufferedReader events = new BufferedReader( new InputStreamReader( stream.body(), StandardCharsets.UTF_8 ))){
+            assertThat( nextEvent( events )).contains( "id: " + version ).contains( "\"stage\":1" );
+            assertThat( nextEvent( events )).contains( "id: " + ( version + 1 )).contains( "\"stage\":2" );
+        }
+    }
+
+    // Events are separated by blank lines
+    private static String nextEvent( BufferedReader events ) throws Exception {
+        final StringBuilder event = new StringBuilder();
+        String line;
+        while(( line = events.readLine() ) != null ){
+            if( line.isEmpty() ){
+                if( event.length() > 0 ) break;
+                continue;
+            }
+            event.append( line ).append( '\n' );
+        }
+        return event.toString();
+    }
+
+    private static void setStage( int stage ){
+        assertThat( Unirest.post( serverUrl() + "/stage" )
+            .header( "Content-Type", "application/json" )
+            .body( new StageDO( stage ))
+            .asJson()
+            .getStatus() ).isEqualTo( HttpStatus.OK );
+    }
+
+    private static long currentVersion(){
+        return Unirest.get( serverUrl() + "/stage" ).asJson().getBody().getObject().getLong( "version" );
+    }
+
+    private static String serverUrl(){
+        return "http://localhost:" + TEST_PORT;
+    }
+}
@@ -0,0 +1,163 @@
+package za.co.fourgrid.stage;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.javalin.http.Context;
+import io.javalin.http.sse.SseClient;
+import io.javalin.json.JavalinJackson;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StageEventStreamTest
+{
+    private static final int CHANGES = 5_000;
+
+    private static final int CLIENTS = 200;
+
+    @Test
+    public void clientsConnectingWhileChangesArePublishedMissNothing() throws Exception {
+        final AtomicReference<StageRecord> latest = new AtomicReference<>( new StageRecord( 0, 0, 0 ));
+        try( StageEventStream events = new StageEventStream( after -> List.of() )){
+            final Thread publisher = Thread.ofPlatform().start( () -> {
+                for( long version = 1; version <= CHANGES; version++ ){
+                    final StageRecord change = new StageRecord( version, version, (int) ( version % 8 ));
+                    // As the StageService does: the latest stage is updated, then the change is published.
+                    latest.set( change );
+                    events.publish( change );
+                }
+            });
+            final List<Client> clients = new ArrayList<>();
+            while( publisher.isAlive() && clients.size() < CLIENTS ){
+                final Client client = new Client( null );
+                events.connect( client.sse, latest::get );
+                clients.add( client );
+            }
+            publisher.join();
+            events.clients();   // waits for the sender to catch up
+
+            // Each client gets the stage as it was when it connected, then every change after
+            // that, with no gaps, up to the last one.
+            for( Client client : clients ){
+                final List<Long> ids = client.eventIds();
+                assertThat( ids ).isNotEmpty();
+                for( int i = 1; i < ids.size(); i++ ){
+                    assertThat( ids.get( i )).isEqualTo( ids.get( i - 1 ) + 1 );
+                }
+                assertThat( ids.get( ids.size() - 1 )).isEqualTo( CHANGES );
+            }
+        }
+    }
+
+    @Test
+    public void aNewClientIsSentTheStageAsItIsOnceItIsRegistered() throws Exception {
+        final AtomicReference<StageRecord> latest = new AtomicReference<>( new StageRecord( 3, 0, 2 ));
+        final CountDownLatch caughtUp = new CountDownLatch( 1 );
+        try( StageEventStream events = new StageEventStream( after -> {
+            try{
+                caughtUp.await();
+            }catch( InterruptedException e ){
+                Thread.currentThread().interrupt();
+            }
+            return List.of();
+        })){
+            // A client catching up holds up the sender while the next one connects.
+            events.connect( new Client( "1" ).sse, latest::get );
+            final Client client = new Client( null );
+            events.connect( client.sse, latest::get );
+            latest.set( new StageRecord( 4, 0, 6 ));
+            events.publish( latest.get() );
+            caughtUp.countDown();
+            events.clients();
+            // The new stage, once; not the stage when it connected and then the change.
+            assertThat( client.eventIds() ).containsExactly( 4L );
+        }
+    }
+
+    /**
+     * An SSE client whose events are written to memory.
+     */
+    private static final class Client
+    {
+        private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        final SseClient sse;
+
+        /**
+         * @param lastEventId the Last-Event-ID header it connects with, if any.
+         */
+        Client( String lastEventId ){
+            sse = new SseClient( fake( Context.class, ( name, args ) -> switch( name ){
+                case "res" -> fake( HttpServletResponse.class, ( n, a ) -> n.equals( "getOutputStream" ) ? new Output() : null );
+                case "header" -> "Last-Event-ID".equals( args[ 0 ] ) ? lastEventId : null;
+                case "jsonMapper" -> new JavalinJackson();
+                default -> null;
+            }));
+        }
+
+        List<Long> eventIds(){
+            final List<Long> ids = new ArrayList<>();
+            final String events;
+            synchronized( sent ){
+                events = sent.toString( StandardCharsets.UTF_8 );
+            }
+            for( String line : events.split( "\n" )){
+                if( line.startsWith( "id:" )) ids.add( Long.parseLong( line.substring( 3 ).trim() ));
+            }
+            return ids;
+        }
+
+        private final class Output extends ServletOutputStream
+        {
+            @Override
+            public void write( int b ){
+                synchronized( sent ){
+                    sent.write( b );
+                }
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len ){
+                synchronized( sent ){
+                    sent.write( b, off, len );
+                }
+            }
+
+            @Override
+            public boolean isReady(){
+                return true;
+            }
+
+            @Override
+            public void setWriteListener( WriteListener listener ){
+            }
+        }
+    }
+
+    private interface Answer
+    {
+        Object answer( String method, Object[] args );
+    }
+
+    // An implementation of an interface that answers some methods, and otherwise does nothing.
+    @SuppressWarnings( "unchecked" )
+    private static <T> T fake( Class<T> type, Answer answer ){
+        return (T) Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[]{ type }, ( proxy, method, args ) -> {
+            if( method.getName().equals( "hashCode" )) return System.identityHashCode( proxy );
+            if( method.getName().equals( "equals" )) return proxy == args[ 0 ];
+            final Object result = answer.answer( method.getName(), args );
+            if( result != null || ! method.getReturnType().isPrimitive() ) return result;
+            if( method.getReturnType() == boolean.class ) return false;
+            return method.getReturnType() == long.class ? 0L : 0;
+        });
+    }
+}
@@ -0,0 +1,125 @@
+package za.co.fourgrid.stage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StageLogTest
+{
+    @TempDir
+    Path logDir;
+
+    @Test
+    public void newLogIsEmpty() throws IOException {
+        try( StageLog log = StageLog.open( logDir )){
+            assertThat( log.latestVersion() ).isZero();
+            assertThat( log.latest() ).isEmpty();
+            assertThat( log.since( 0 )).isEmpty();
+        }
+    }
+
+    @Test
+    public void historyIsRecoveredOnOpening() throws IOException {
+        try( StageLog log = StageLog.open( logDir )){
+            assertThat( log.append( 2, 1000 )).isEqualTo( new StageRecord( 1, 1000, 2 ));
+            log.append( 4, 2000 );
+            log.append( 0, 3000 );
+        }
+        try( StageLog log = StageLog.open( logDir )){
+            assertThat( log.latestVersion() ).isEqualTo( 3 );
+            assertThat( log.latest() ).contains( new StageRecord( 3, 3000, 0 ));
+            assertThat( log.append( 6, 4000 ).version() ).isEqualTo( 4 );
+        }
+        try( StageLog log = StageLog.open( logDir )){
+            assertThat( log.since( 0 )).extracting( StageRecord::stage ).containsExactly( 2, 4, 0, 6 );
+        }
+    }
+
+    @Test
+    public void catchUpFromAVersion() throws IOException {
+        try( StageLog log = StageLog.open( logDir )){
+            for( int i = 0; i < 10; i++ ) log.append( i % 9, i );
+            assertThat( log.since( 7 )).extracting( StageRecord::version ).containsExactly( 8L, 9L, 10L );
+            assertThat( log.since( 10 )).isEmpty();
+            assertThat( log.since( 99 )).isEmpty();
+        }
+    }
+
+    @Test
+    public void fullSegmentsRollOver() throws IOException {
+        final int segmentBytes = StageLog.HEADER_BYTES + 3 * StageLog.RECORD_BYTES;
+        try( StageLog log = StageLog.open( logDir, segmentBytes )){
+            for( int i = 0; i < 10; i++ ) log.append( i % 9, i );
+        }
+        assertThat( segments() ).hasSize( 4 );
+        try( StageLog log = StageLog.open( logDir, segmentBytes )){
+            assertThat( log.latestVersion() ).isEqualTo( 10 );
+            assertThat( log.since( 0 )).extracting( StageRecord::stage ).containsExactly( 0, 1, 2, 3, 4, 5, 6, 7, 8, 0 );
+            log.append( 1, 10 );
+            log.append( 2, 11 );
+        }
+        try( StageLog log = StageLog.open( logDir, segmentBytes )){
+            assertThat( log.latestVersion() ).isEqualTo( 12 );
+        }
+        assertThat( segments() ).hasSize( 4 );
+    }
+
+    @Test
+    public void aTornRecordIsForgotten() throws IOException {
+        try( StageLog log = StageLog.open( logDir )){
+            log.append( 2, 1000 );
+            log.append( 4, 2000 );
+        }
+        // Damage the stage of the second record, as if it had only partly been written
+        try( FileChannel segment = FileChannel.open( segments().get( 0 ), StandardOpenOption.WRITE )){
+            segment.write( ByteBuffer.allocate( 4 ).putInt( 0, 7 ),
+                StageLog.HEADER_BYTES + StageLog.RECORD_BYTES + 16 );
+        }
+        try( StageLog log = StageLog.open( logDir )){
+            assertThat( log.latest() ).contains( new StageRecord( 1, 1000, 2 ));
+            assertThat( log.append( 6, 3000 ).version() ).isEqualTo( 2 );
+        }
+        try( StageLog log = StageLog.open( logDir )){
+            assertThat( log.since( 0 )).extracting( StageRecord::stage ).containsExactly( 2, 6 );
+        }
+    }
+
+    @Test
+    public void segmentsAfterDamageAreDiscarded() throws IOException {
+        final int segmentBytes = StageLog.HEADER_BYTES + 2 * StageLog.RECORD_BYTES;
+        try( StageLog log = StageLog.open( logDir, segmentBytes )){
+            for( int i = 0; i < 6; i++ ) log.append( i, i );
+        }
+        try( FileChannel segment = FileChannel.open( segments().get( 0 ), StandardOpenOption.WRITE )){
+            segment.write( ByteBuffer.allocate( 8 ), StageLog.HEADER_BYTES + StageLog.RECORD_BYTES );
+        }
+        try( StageLog log = StageLog.open( logDir, segmentBytes )){
+            assertThat( log.latestVersion() ).isEqualTo( 1 );
+        }
+        assertThat( segments() ).hasSize( 1 );
+    }
+
+    @Test
+    public void closedLogsCantBeWritten() throws IOException {
+        final StageLog log = StageLog.open( logDir );
+        log.close();
+        assertThatThrownBy( () -> log.append( 1, 0 )).isInstanceOf( IOException.class );
+    }
+
+    private List<Path> segments() throws IOException {
+        try( Stream<Path> files = Files.list( logDir )){
+            return files.sorted().toList();
+        }
+    }
+}
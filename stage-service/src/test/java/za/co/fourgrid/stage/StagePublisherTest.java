@@ -0,0 +1,153 @@
+package za.co.fourgrid.stage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StagePublisherTest
+{
+    private static final StageRecord INITIAL = new StageRecord( 0, 0, 0 );
+
+    @TempDir
+    Path logDir;
+
+    private final List<StageRecord> announced = new CopyOnWriteArrayList<>();
+
+    private final AtomicReference<StageRecord> current = new AtomicReference<>( INITIAL );
+
+    @Test
+    public void changesArePublishedInOrder() throws Exception {
+        try( StageLog log = StageLog.open( logDir ); StagePublisher publisher = new StagePublisher( log, current, announced::add )){
+            final StageRecord first = new StageRecord( 1, 10, 2 );
+            final StageRecord second = new StageRecord( 2, 20, 4 );
+            final CompletableFuture<StageRecord> third = publisher.submit( second, new StageRecord( 3, 30, 6 ));
+            final CompletableFuture<StageRecord> secondWritten = publisher.submit( first, second );
+            Thread.sleep( 200 );
+            assertThat( third ).isNotDone();
+            assertThat( announced ).isEmpty();
+
+            publisher.submit( INITIAL, first ).get( 10, TimeUnit.SECONDS );
+            assertThat( third.get( 10, TimeUnit.SECONDS ).version() ).isEqualTo( 3 );
+            assertThat( secondWritten ).isDone();
+            assertThat( announced ).extracting( StageRecord::version ).containsExactly( 1L, 2L, 3L );
+            assertThat( log.since( 0 )).containsExactlyElementsOf( announced );
+        }
+    }
+
+    @Test
+    public void failedAnnouncementsAreStillRecorded() throws Exception {
+        try( StageLog log = StageLog.open( logDir );
+             StagePublisher publisher = new StagePublisher( log, current, change -> { throw new IOException( "no broker" ); })){
+            assertThat( publisher.submit( INITIAL, new StageRecord( 1, 10, 2 )).get( 10, TimeUnit.SECONDS ).stage() ).isEqualTo( 2 );
+            assertThat( log.latestVersion() ).isEqualTo( 1 );
+        }
+    }
+
+    @Test
+    public void aFailedWriteIsUndoneAndTheNextChangeTakesItsVersion() throws Exception {
+        try( StageLog log = StageLog.open( logDir )){
+            final AtomicBoolean diskFull = new AtomicBoolean( true );
+            final StagePublisher.Appender failOnce = change -> {
+                if( diskFull.getAndSet( false )) throw new IOException( "disk full" );
+                log.append( change );
+            };
+            try( StagePublisher publisher = new StagePublisher( failOnce, current, announced::add )){
+                final StageRecord lost = new StageRecord( 1, 10, 2 );
+                current.set( lost );
+                assertThatThrownBy( () -> publisher.submit( INITIAL, lost ).get( 10, TimeUnit.SECONDS ))
+                    .isInstanceOf( ExecutionException.class )
+                    .hasRootCauseMessage( "disk full" );
+                assertThat( current.get() ).isSameAs( INITIAL );
+
+                final StageRecord retried = new StageRecord( 1, 20, 4 );
+                current.set( retried );
+                assertThat( publisher.submit( INITIAL, retried ).get( 10, TimeUnit.SECONDS )).isEqualTo( retried );
+                assertThat( current.get() ).isSameAs( retried );
+                assertThat( log.since( 0 )).containsExactly( retried );
+                assertThat( announced ).containsExactly( retried );
+            }
+        }
+    }
+
+    @Test
+    public void changesMadeOnAFailedChangeFailToo() throws Exception {
+        try( StageLog log = StageLog.open( logDir )){
+            final StagePublisher.Appender failVersionOne = change -> {
+                if( change.version() == 1 && change.stage() == 2 ) throw new IOException( "disk full" );
+                log.append( change );
+            };
+            try( StagePublisher publisher = new StagePublisher( failVersionOne, current, announced::add )){
+                final StageRecord failed = new StageRecord( 1, 10, 2 );
+                final StageRecord onTop = new StageRecord( 2, 20, 4 );
+                final StageRecord onTopOfThat = new StageRecord( 3, 30, 6 );
+                current.set( onTop );
+                // One is held back when its predecessor fails, the other turns up afterwards.
+                final CompletableFuture<StageRecord> heldBack = publisher.submit( failed, onTop );
+                assertThatThrownBy( () -> publisher.submit( INITIAL, failed ).get( 10, TimeUnit.SECONDS ))
+                    .isInstanceOf( ExecutionException.class );
+                assertThatThrownBy( () -> heldBack.get( 10, TimeUnit.SECONDS )).isInstanceOf( ExecutionException.class );
+                assertThat( current.get() ).isSameAs( INITIAL );
+
+                current.set( onTopOfThat );
+                assertThatThrownBy( () -> publisher.submit( onTop, onTopOfThat ).get( 10, TimeUnit.SECONDS ))
+                    .isInstanceOf( ExecutionException.class );
+                assertThat( current.get() ).isSameAs( INITIAL );
+
+                final StageRecord next = new StageRecord( 1, 40, 8 );
+                assertThat( publisher.submit( INITIAL, next ).get( 10, TimeUnit.SECONDS )).isEqualTo( next );
+                assertThat( log.since( 0 )).containsExactly( next );
+                assertThat( announced ).containsExactly( next );
+            }
+        }
+    }
+
+    @Test
+    public void failedChangesAreForgottenOnceReplaced() throws Exception {
+        try( StageLog log = StageLog.open( logDir )){
+            final AtomicBoolean diskFull = new AtomicBoolean( true );
+            final StagePublisher.Appender failOnce = change -> {
+                if( diskFull.getAndSet( false )) throw new IOException( "disk full" );
+                log.append( change );
+            };
+            final CompletableFuture<StageRecord> onLost;
+            try( StagePublisher publisher = new StagePublisher( failOnce, current, announced::add )){
+                final StageRecord lost = new StageRecord( 1, 10, 2 );
+                assertThatThrownBy( () -> publisher.submit( INITIAL, lost ).get( 10, TimeUnit.SECONDS ))
+                    .isInstanceOf( ExecutionException.class );
+                final StageRecord replacement = new StageRecord( 1, 20, 4 );
+                publisher.submit( INITIAL, replacement ).get( 10, TimeUnit.SECONDS );
+
+                // The lost change is no longer remembered as failed: a change on top of it
+                // (which can't really be made any more) would just be held back.
+                onLost = publisher.submit( lost, new StageRecord( 2, 30, 6 ));
+                Thread.sleep( 200 );
+                assertThat( onLost ).isNotDone();
+            }
+            assertThatThrownBy( () -> onLost.get( 10, TimeUnit.SECONDS ))
+                .isInstanceOf( ExecutionException.class )
+                .hasRootCauseMessage( "Stage publisher closed before the change was written" );
+        }
+    }
+
+    @Test
+    public void nothingIsAcceptedOnceClosed() throws IOException {
+        try( StageLog log = StageLog.open( logDir )){
+            final StagePublisher publisher = new StagePublisher( log, current, announced::add );
+            publisher.close();
+            assertThatThrownBy( () -> publisher.submit( INITIAL, new StageRecord( 1, 10, 2 )).get( 10, TimeUnit.SECONDS ))
+                .isInstanceOf( ExecutionException.class );
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package za.co.fourgrid.stage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StageSchedulerTest
+{
+    @TempDir
+    Path dir;
+
+    private final LinkedBlockingQueue<StageTransition> fired = new LinkedBlockingQueue<>();
+
+    private final List<Long> firedAt = new CopyOnWriteArrayList<>();
+
+    private void fire( StageTransition transition ){
+        firedAt.add( System.currentTimeMillis() );
+        fired.add( transition );
+    }
+
+    private Path file(){
+        return dir.resolve( "scheduled.csv" );
+    }
+
+    @Test
+    public void changesAreMadeOnTimeAndInOrder() throws Exception {
+        try( StageScheduler scheduler = StageScheduler.open( file(), this::fire )){
+            final long now = System.currentTimeMillis();
+            scheduler.schedule( now + 400, 6 );
+            scheduler.schedule( now + 200, 4 );
+            assertThat( scheduler.pending() ).extracting( StageTransition::stage ).containsExactly( 4, 6 );
+
+            final StageTransition first = fired.poll( 10, TimeUnit.SECONDS );
+            final StageTransition second = fired.poll( 10, TimeUnit.SECONDS );
+            assertThat( first.stage() ).isEqualTo( 4 );
+            assertThat( second.stage() ).isEqualTo( 6 );
+            assertThat( firedAt.get( 0 )).isGreaterThanOrEqualTo( first.effectiveAt() );
+            assertThat( firedAt.get( 1 )).isGreaterThanOrEqualTo( second.effectiveAt() );
+            assertThat( scheduler.pending() ).isEmpty();
+        }
+    }
+
+    @Test
+    public void cancelledChangesAreNotMade() throws Exception {
+        try( StageScheduler scheduler = StageScheduler.open( file(), this::fire )){
+            final long now = System.currentTimeMillis();
+            final StageTransition cancelled = scheduler.schedule( now + 200, 8 );
+            scheduler.schedule( now + 300, 2 );
+            assertThat( scheduler.cancel( cancelled.id() )).isTrue();
+            assertThat( scheduler.cancel( cancelled.id() )).isFalse();
+
+            assertThat( fired.poll( 10, TimeUnit.SECONDS ).stage() ).isEqualTo( 2 );
+            assertThat( fired.poll( 300, TimeUnit.MILLISECONDS )).isNull();
+        }
+    }
+
+    @Test
+    public void failedChangesAreTriedAgainBeforeLaterOnes() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean( true );
+        try( StageScheduler scheduler = StageScheduler.open( file(), transition -> {
+                if( transition.stage() == 4 && failing.getAndSet( false )) throw new IOException( "no stage log" );
+                fire( transition );
+            })){
+            final long now = System.currentTimeMillis();
+            scheduler.schedule( now + 100, 4 );
+            scheduler.schedule( now + 200, 6 );
+
+            final StageTransition first = fired.poll( 10, TimeUnit.SECONDS );
+            assertThat( first.stage() ).isEqualTo( 4 );
+            assertThat( firedAt.get( 0 )).isGreaterThanOrEqualTo( now + 100 + StageScheduler.RETRY_MILLIS );
+            assertThat( fired.poll( 10, TimeUnit.SECONDS ).stage() ).isEqualTo( 6 );
+            assertThat( scheduler.pending() ).isEmpty();
+        }
+    }
+
+    @Test
+    public void changesThatKeepFailingAreGivenUp() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        try( StageScheduler scheduler = StageScheduler.open( file(), transition -> {
+                if( transition.stage() == 4 ){
+                    attempts.incrementAndGet();
+                    throw new IOException( "no stage log" );
+                }
+                fire( transition );
+            })){
+            final long now = System.currentTimeMillis();
+            scheduler.schedule( now + 100, 4 );
+            scheduler.schedule( now + 200, 6 );
+
+            final long timeout = StageScheduler.RETRY_MILLIS * StageScheduler.MAX_ATTEMPTS + 10_000;
+            assertThat( fired.poll( timeout, TimeUnit.MILLISECONDS ).stage() ).isEqualTo( 6 );
+            assertThat( attempts ).hasValue( StageScheduler.MAX_ATTEMPTS );
+            assertThat( scheduler.pending() ).isEmpty();
+        }
+        // Given up for good, not tried again after a restart
+        try( StageScheduler scheduler = StageScheduler.open( file(), this::fire )){
+            assertThat( scheduler.pending() ).isEmpty();
+        }
+    }
+
+    @Test
+    public void pendingChangesSurviveARestart() throws IOException, InterruptedException {
+        final long later = System.currentTimeMillis() + TimeUnit.HOURS.toMillis( 1 );
+        final StageTransition scheduled;
+        try( StageScheduler scheduler = StageScheduler.open( file(), this::fire )){
+            scheduled = scheduler.schedule( later, 5 );
+            scheduler.schedule( later + 1000, 3 );
+        }
+        try( StageScheduler scheduler = StageScheduler.open( file(), this::fire )){
+            assertThat( scheduler.pending() ).hasSize( 2 );
+            assertThat( scheduler.pending().get( 0 )).isEqualTo( scheduled );
+            // Ids aren't reused
+            assertThat( scheduler.schedule( later, 1 ).id() ).isEqualTo( scheduled.id() + 2 );
+        }
+        assertThat( fired ).isEmpty();
+    }
+
+    @Test
+    public void changesThatFellDueWhileStoppedAreMadeOnStarting() throws Exception {
+        final long soon = System.currentTimeMillis() + 100;
+        try( StageScheduler scheduler = StageScheduler.open( file(), transition -> {} )){
+            scheduler.schedule( soon + 10, 7 );
+            scheduler.schedule( soon, 6 );
+        }
+        Thread.sleep( 200 );
+        try( StageScheduler scheduler = StageScheduler.open( file(), this::fire )){
+            assertThat( fired.poll( 10, TimeUnit.SECONDS ).stage() ).isEqualTo( 6 );
+            assertThat( fired.poll( 10, TimeUnit.SECONDS ).stage() ).isEqualTo( 7 );
+        }
+        try( StageScheduler scheduler = StageScheduler.open( file(), this::fire )){
+            assertThat( scheduler.pending() ).isEmpty();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package za.co.fourgrid.stage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StageWaitersTest
+{
+    private static final StageRecord START = new StageRecord( 4, 0, 2 );
+
+    private final ExecutorService wakeUp = Executors.newVirtualThreadPerTaskExecutor();
+
+    @AfterEach
+    public void stopWakingUp(){
+        wakeUp.shutdownNow();
+    }
+
+    @Test
+    public void tenThousandWaitersAreAllWoken() throws Exception {
+        final StageWaiters waiters = new StageWaiters( START, wakeUp );
+        final List<CompletableFuture<StageRecord>> waiting = new ArrayList<>();
+        for( int i = 0; i < 10_000; i++ ){
+            waiting.add( waiters.awaitVersion( 5, 1, TimeUnit.MINUTES ));
+        }
+        assertThat( waiters.waiting() ).isEqualTo( 10_000 );
+        assertThat( waiting ).noneMatch( CompletableFuture::isDone );
+
+        final StageRecord change = new StageRecord( 5, 1000, 6 );
+        waiters.publish( change );
+        CompletableFuture.allOf( waiting.toArray( new CompletableFuture<?>[ 0 ] )).get( 1, TimeUnit.MINUTES );
+        for( CompletableFuture<StageRecord> aWaiter : waiting ){
+            assertThat( aWaiter.get() ).isEqualTo( change );
+        }
+        assertThat( waiters.waiting() ).isZero();
+    }
+
+    @Test
+    public void aVersionAlreadyReachedIsReturnedStraightAway() throws Exception {
+        final StageWaiters waiters = new StageWaiters( START, wakeUp );
+        assertThat( waiters.awaitVersion( 3, 1, TimeUnit.MINUTES ).getNow( null )).isEqualTo( START );
+        assertThat( waiters.awaitVersion( 4, 1, TimeUnit.MINUTES ).getNow( null )).isEqualTo( START );
+        assertThat( waiters.waiting() ).isZero();
+    }
+
+    @Test
+    public void waitersOnlyWakeForTheirVersion() throws Exception {
+        final StageWaiters waiters = new StageWaiters( START, wakeUp );
+        final CompletableFuture<StageRecord> next = waiters.awaitVersion( 5, 1, TimeUnit.MINUTES );
+        final CompletableFuture<StageRecord> later = waiters.awaitVersion( 6, 1, TimeUnit.MINUTES );
+
+        waiters.publish( new StageRecord( 5, 1000, 6 ));
+        assertThat( next.get( 10, TimeUnit.SECONDS ).version() ).isEqualTo( 5 );
+        assertThat( later ).isNotDone();
+
+        waiters.publish( new StageRecord( 6, 2000, 1 ));
+        assertThat( later.get( 10, TimeUnit.SECONDS ).stage() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void waitersThatTimeOutAreForgotten(){
+        final StageWaiters waiters = new StageWaiters( START, wakeUp );
+        final CompletableFuture<StageRecord> aWaiter = waiters.awaitVersion( 5, 50, TimeUnit.MILLISECONDS );
+        assertThatThrownBy( () -> aWaiter.get( 10, TimeUnit.SECONDS ))
+            .isInstanceOf( ExecutionException.class )
+            .hasCauseInstanceOf( TimeoutException.class );
+        assertThat( waiters.waiting() ).isZero();
+    }
+}
@@ -8,9 +8,11 @@ import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.sse.SseClient;
 import io.javalin.http.staticfiles.Location;
 
+import kong.unirest.GetRequest;
 import kong.unirest.HttpResponse;
 import kong.unirest.JsonNode;
 import kong.unirest.Unirest;
@@ -19,14 +21,15 @@ import kong.unirest.UnirestInstance;
 import za.co.fourgrid.common.mq.MQ;
 import za.co.fourgrid.common.mq.MqTopicReceiver;
 import za.co.fourgrid.common.transfer.StageDO;
-import za.co.fourgrid.model.Town;
-import za.co.fourgrid.common.mq.ActiveMqSender;
+import za.co.fourgrid.web.AlertPublisher;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.TextMessage;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
@@ -40,6 +43,8 @@ public class WebService implements MessageListener {
     public static final int DEFAULT_PORT = 7010;
 
     private static final String PLACES_URL = "http://localhost:7000";
+    private static final List<String> TOWNS_QUERY_PARAMS = List.of("after", "limit", "format");
+    private static final String TOWNS_NEXT_AFTER = "X-Next-After";
     private static final String SCHEDULE_URL = "http://localhost:7002";
     private static final String STAGE_URL = "http://localhost:7001/stage";
 
@@ -53,6 +58,8 @@ public class WebService implements MessageListener {
     private volatile boolean stageAvailable = false;
 
     private MqTopicReceiver topicReceiver;
+    // Alerts go out over one long-lived connection, so failing requests don't each open one.
+    private AlertPublisher alerts;
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final List<SseClient> sseClients = new CopyOnWriteArrayList<>();
 
@@ -89,6 +96,7 @@ public class WebService implements MessageListener {
         }
 
         server = configureHttpServer();
+        alerts = new AlertPublisher(MQ.URL);
         try {
             topicReceiver = new MqTopicReceiver().init(MQ.URL, this);
             LOG.info("Connected to message broker at " + MQ.URL + " and registered as MessageListener");
@@ -117,6 +125,9 @@ public class WebService implements MessageListener {
         if (topicReceiver != null) {
             topicReceiver.close();
         }
+        if (alerts != null) {
+            alerts.close();
+        }
         // stop health checks
         if (healthCheckScheduler != null) {
             healthCheckScheduler.shutdownNow();
@@ -192,18 +203,7 @@ public class WebService implements MessageListener {
         } catch (Exception e) {
             // Log and send an alert to the alert queue so operators are notified
             LOG.log(Level.WARNING, "Error fetching provinces from Place-Name service", e);
-            try (ActiveMqSender sender = ActiveMqSender.openOn(MQ.ALERT_QUEUE)) {
-                try {
-                    sender.init(MQ.URL);
-                    String msg = String.format("WebService: Unable to contact Place-Name service at %s: %s", PLACES_URL, e.getMessage());
-                    sender.send(msg);
-                } catch (JMSException jmse) {
-                    LOG.log(Level.SEVERE, "Failed to initialize ActiveMqSender for alerting", jmse);
-                }
-            } catch (Exception ignore) {
-                // If alerting fails, log at a severe level but keep handling the original error
-                LOG.log(Level.SEVERE, "Failed to send alert to alert queue", ignore);
-            }
+            alerts.publish(String.format("WebService: Unable to contact Place-Name service at %s: %s", PLACES_URL, e.getMessage()));
             ctx.status(500).json("Error fetching provinces");
         }
     }
@@ -211,24 +211,41 @@ public class WebService implements MessageListener {
     private void getTowns(Context ctx) {
         String province = ctx.pathParam("province");
         try {
-            HttpResponse<Town[]> r = client.get(PLACES_URL + "/towns/" + province).asObject(Town[].class);
-            if (r.getStatus() == 200 && r.getBody() != null)
-                ctx.json(r.getBody());
-            else ctx.status(404).json("Towns not found");
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, "Error fetching towns from Place-Name service", e);
-            try (ActiveMqSender sender = ActiveMqSender.openOn(MQ.ALERT_QUEUE)) {
+            // Stream the towns straight through rather than decoding and re-encoding them:
+            // a province can have a lot of towns, and the client may be paging or reading NDJSON.
+            GetRequest request = client.get(PLACES_URL + "/towns/" + province);
+            for (String param : TOWNS_QUERY_PARAMS) {
+                String value = ctx.queryParam(param);
+                if (value != null) request = request.queryString(param, value);
+            }
+            for (String header : List.of(Header.ACCEPT, Header.IF_NONE_MATCH)) {
+                String value = ctx.header(header);
+                if (value != null) request = request.header(header, value);
+            }
+            request.thenConsume(raw -> {
+                int status = raw.getStatus();
+                if (status >= 500) {
+                    LOG.log(Level.WARNING, "Place-Name service answered {0} for the towns in {1}", new Object[]{status, province});
+                    ctx.status(502).json("Error fetching towns");
+                    return;
+                }
+                // Anything else, including a client error such as an unknown province, is the
+                // Place-Name service's answer to the client's own request, so it goes back as it is.
+                ctx.status(status);
+                for (String header : List.of(Header.CONTENT_TYPE, Header.ETAG, TOWNS_NEXT_AFTER)) {
+                    String value = raw.getHeaders().getFirst(header);
+                    if (value != null && !value.isEmpty()) ctx.header(header, value);
+                }
                 try {
-                    sender.init(MQ.URL);
-                    String msg = String.format("WebService: Unable to contact Place-Name service at %s for province %s: %s", PLACES_URL, province, e.getMessage());
-                    sender.send(msg);
-                } catch (JMSException jmse) {
-                    LOG.log(Level.SEVERE, "Failed to initialize ActiveMqSender for alerting", jmse);
+                    raw.getContent().transferTo(ctx.outputStream());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            } catch (Exception ignore) {
-                LOG.log(Level.SEVERE, "Failed to send alert to alert queue", ignore);
-            }
-            ctx.status(500).json("Error fetching towns");
+            });
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error fetching towns from Place-Name service", e);
+            alerts.publish(String.format("WebService: Unable to contact Place-Name service at %s for province %s: %s", PLACES_URL, province, e.getMessage()));
+            ctx.status(502).json("Error fetching towns");
         }
     }
 
@@ -237,21 +254,11 @@ public class WebService implements MessageListener {
         String town = ctx.pathParam("town");
 
         try {
-            String r = client.get(SCHEDULE_URL + "/" + province.replace("-", "") + "/" + town + "/" + loadSheddingStage).asString().getBody();
+            String r = client.get(SCHEDULE_URL + "/" + province + "/" + town + "/" + loadSheddingStage).asString().getBody();
             ctx.result(r).contentType("application/json");
         } catch (Exception e) {
             LOG.log(Level.WARNING, "Error fetching schedule from Schedule service", e);
-            try (ActiveMqSender sender = ActiveMqSender.openOn(MQ.ALERT_QUEUE)) {
-                try {
-                    sender.init(MQ.URL);
-                    String msg = String.format("WebService: Unable to contact Schedule service at %s for %s/%s (stage=%d): %s", SCHEDULE_URL, province, town, loadSheddingStage, e.getMessage());
-                    sender.send(msg);
-                } catch (JMSException jmse) {
-                    LOG.log(Level.SEVERE, "Failed to initialize ActiveMqSender for alerting", jmse);
-                }
-            } catch (Exception ignore) {
-                LOG.log(Level.SEVERE, "Failed to send alert to alert queue", ignore);
-            }
+            alerts.publish(String.format("WebService: Unable to contact Schedule service at %s for %s/%s (stage=%d): %s", SCHEDULE_URL, province, town, loadSheddingStage, e.getMessage()));
             ctx.status(500).json("Error fetching schedule");
         }
     }
@@ -379,17 +386,8 @@ public class WebService implements MessageListener {
     }
 
     private void sendAlert(String message, Throwable t) {
-        // Log the event and attempt to publish an alert to the alert queue
+        // Log the event and queue an alert for the alert queue
         LOG.log(Level.WARNING, message, t);
-        try (ActiveMqSender sender = ActiveMqSender.openOn(MQ.ALERT_QUEUE)) {
-            try {
-                sender.init(MQ.URL);
-                sender.send(message);
-            } catch (JMSException jmse) {
-                LOG.log(Level.SEVERE, "Failed to initialize ActiveMqSender for alerting", jmse);
-            }
-        } catch (Exception ex) {
-            LOG.log(Level.SEVERE, "Failed to send alert to alert queue", ex);
-        }
+        alerts.publish(message);
     }
 }
@@ -0,0 +1,134 @@
+package za.co.fourgrid.web;
+
+import za.co.fourgrid.common.mq.MQ;
+import za.co.fourgrid.common.mq.MqConnectionPool;
+
+import javax.jms.JMSException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I send alerts to the alert queue for the WebService, without holding up the request
+ * that raised them.
+ * <p>
+ * Alerts are raised when a downstream service fails, which is exactly when requests pile
+ * up, so opening a connection per alert makes a bad situation worse. Instead, alerts go
+ * into a bounded queue and are sent by a single thread through the shared
+ * {@link MqConnectionPool}, over its long-lived connection and a cached producer. If
+ * the queue is full the alert is dropped and counted rather than blocking the
+ * caller. If the broker can't be reached, the connection is dropped and the alert is
+ * tried again after {@link #RETRY_MILLIS}, while later alerts wait in the queue.
+ */
+public class AlertPublisher implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public static final long RETRY_MILLIS = 1000;
+
+    private static final long CLOSE_WAIT_MILLIS = 2000;
+
+    private static final Logger LOG = Logger.getLogger("loadshed.web");
+
+    public record Metrics(long published, long dropped, long failed, int queued) {
+    }
+
+    private final MqConnectionPool pool;
+    private final String queueName;
+    private final BlockingQueue<String> alerts;
+    private final Thread sender;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    // Only used on the sender thread
+    private boolean failing;
+
+    public AlertPublisher(String brokerUrl) {
+        this(brokerUrl, MQ.ALERT_QUEUE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param brokerUrl the broker to send to; "TEST" means the in-VM broker.
+     */
+    public AlertPublisher(String brokerUrl, String queueName, int capacity) {
+        this.pool = MqConnectionPool.forBroker(brokerUrl);
+        this.queueName = queueName;
+        this.alerts = new ArrayBlockingQueue<>(capacity);
+        sender = new Thread(this::sendAlerts, "web-alert-publisher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queue an alert to be sent. Never blocks.
+     *
+     * @return false if the alert was dropped because too many are waiting to be sent.
+     */
+    public boolean publish(String message) {
+        if (running && alerts.offer(message)) return true;
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public Metrics metrics() {
+        return new Metrics(published.get(), dropped.get(), failed.get(), alerts.size());
+    }
+
+    private void sendAlerts() {
+        String message = null;
+        while (running || message != null || !alerts.isEmpty()) {
+            try {
+                if (message == null) message = alerts.poll(100, TimeUnit.MILLISECONDS);
+                if (message == null) continue;
+                if (send(message)) {
+                    message = null;
+                } else if (running) {
+                    // Keep the alert and try again once the broker has had a moment.
+                    Thread.sleep(RETRY_MILLIS);
+                } else {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        final long unsent = (message == null ? 0 : 1) + alerts.size();
+        if (unsent > 0) LOG.log(Level.WARNING, "{0} alerts were never sent", unsent);
+    }
+
+    private boolean send(String message) {
+        try {
+            pool.send(queueName, MQ.DestinationType.QUEUE, message);
+            published.incrementAndGet();
+            if (failing) LOG.info("Sending alerts to the alert queue again");
+            failing = false;
+            return true;
+        } catch (JMSException e) {
+            failed.incrementAndGet();
+            // Once is enough: we'll be retrying every second until the broker is back.
+            if (!failing) LOG.log(Level.SEVERE, "Failed to send alert to alert queue", e);
+            failing = true;
+            return false;
+        }
+    }
+
+    /**
+     * Stop taking alerts, and wait (for a while) for those already queued to be sent.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            sender.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sender.isAlive()) sender.interrupt();
+    }
+}
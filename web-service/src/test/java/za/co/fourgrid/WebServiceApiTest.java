@@ -95,6 +95,79 @@ public class WebServiceApiTest {
         assertEquals("application/json", response.getHeaders().getFirst("Content-Type"));
     }
 
+    @Test
+    public void getTowns_streamsPagesFromPlacesService() throws Exception {
+        placesStub = Javalin.create().get("/towns/{province}", ctx -> {
+            ctx.header("X-Next-After", "Knysna");
+            ctx.result(ctx.queryParam("after") + "," + ctx.queryParam("limit") + "," + ctx.queryParam("format"));
+        }).start(7000);
+
+        webService = new WebService();
+        webService.initialise();
+        java.lang.reflect.Field f = WebService.class.getDeclaredField("server");
+        f.setAccessible(true);
+        Javalin web = (Javalin) f.get(webService);
+        web.start(WEB_PORT);
+
+        HttpResponse<String> response = Unirest.get("http://localhost:" + WEB_PORT + "/api/towns/Western%20Cape?after=George&limit=2").asString();
+        assertEquals(HttpStatus.OK, response.getStatus());
+        assertEquals("George,2,null", response.getBody());
+        assertEquals("Knysna", response.getHeaders().getFirst("X-Next-After"));
+    }
+
+    @Test
+    public void getTowns_returnsBadGateway_whenPlacesServiceErrors() throws Exception {
+        placesStub = Javalin.create().get("/towns/{province}", ctx -> ctx.status(500).result("oops")).start(7000);
+
+        webService = new WebService();
+        webService.initialise();
+        java.lang.reflect.Field f = WebService.class.getDeclaredField("server");
+        f.setAccessible(true);
+        Javalin web = (Javalin) f.get(webService);
+        web.start(WEB_PORT);
+
+        HttpResponse<String> response = Unirest.get("http://localhost:" + WEB_PORT + "/api/towns/Mars").asString();
+        assertEquals(HttpStatus.BAD_GATEWAY, response.getStatus());
+        assertTrue(response.getBody().contains("Error fetching towns"));
+    }
+
+    @Test
+    public void getTowns_returnsBadGateway_whenPlacesServiceIsUnreachable() throws Exception {
+        // places service is not started
+        webService = new WebService();
+        webService.initialise();
+        java.lang.reflect.Field f = WebService.class.getDeclaredField("server");
+        f.setAccessible(true);
+        Javalin web = (Javalin) f.get(webService);
+        web.start(WEB_PORT);
+
+        HttpResponse<String> response = Unirest.get("http://localhost:" + WEB_PORT + "/api/towns/Gauteng").asString();
+        assertEquals(HttpStatus.BAD_GATEWAY, response.getStatus());
+    }
+
+    @Test
+    public void getTowns_passesClientErrorsThrough() throws Exception {
+        placesStub = Javalin.create().get("/towns/{province}", ctx -> {
+            if (ctx.queryParam("limit") != null) ctx.status(400).result("limit must be positive");
+            else ctx.status(404).result("No such province: " + ctx.pathParam("province"));
+        }).start(7000);
+
+        webService = new WebService();
+        webService.initialise();
+        java.lang.reflect.Field f = WebService.class.getDeclaredField("server");
+        f.setAccessible(true);
+        Javalin web = (Javalin) f.get(webService);
+        web.start(WEB_PORT);
+
+        HttpResponse<String> response = Unirest.get("http://localhost:" + WEB_PORT + "/api/towns/Mars").asString();
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatus());
+        assertEquals("No such province: Mars", response.getBody());
+
+        response = Unirest.get("http://localhost:" + WEB_PORT + "/api/towns/Gauteng?limit=-1").asString();
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatus());
+        assertEquals("limit must be positive", response.getBody());
+    }
+
     @Test
     public void getSchedule_usesStageZero_whenStageServiceUnavailable_thenForwardsSchedule() throws Exception {
         // stage service is not started (unavailable) -> web should use stage 0
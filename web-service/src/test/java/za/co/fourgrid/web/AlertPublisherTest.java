@@ -0,0 +1,135 @@
+package za.co.fourgrid.web;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import za.co.fourgrid.common.mq.MQ;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AlertPublisherTest {
+    private static final String QUEUE = "alert-publisher-test";
+
+    // Holds the in-VM broker open for the test, and reads what was sent.
+    private Connection connection;
+    private MessageConsumer consumer;
+
+    @BeforeEach
+    public void connect() throws Exception {
+        connection = new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false").createConnection(MQ.USER, MQ.PASSWD);
+        connection.start();
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        consumer = session.createConsumer(session.createQueue(QUEUE));
+    }
+
+    @AfterEach
+    public void disconnect() throws Exception {
+        connection.close();
+    }
+
+    @Test
+    public void sendsAlertsInOrder() throws Exception {
+        try (AlertPublisher alerts = new AlertPublisher("TEST", QUEUE, 100)) {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(alerts.publish("alert " + i));
+            }
+            for (int i = 0; i < 100; i++) {
+                TextMessage received = (TextMessage) consumer.receive(5000);
+                assertNotNull(received);
+                assertEquals("alert " + i, received.getText());
+            }
+            assertEquals(100, alerts.metrics().published());
+            assertEquals(0, alerts.metrics().failed());
+        }
+    }
+
+    // An outage at 5k req/s: every failing request raises an alert.
+    @Test
+    @Tag("benchmark")
+    public void errorPathKeepsUpWithAnOutage() throws Exception {
+        final int threads = 8;
+        final int alertsPerThread = 625;
+        final long pauseNanos = TimeUnit.SECONDS.toNanos(1) / alertsPerThread;
+        try (AlertPublisher alerts = new AlertPublisher("TEST", QUEUE, AlertPublisher.DEFAULT_CAPACITY)) {
+            final CountDownLatch go = new CountDownLatch(1);
+            final List<Thread> requests = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                requests.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < alertsPerThread; i++) {
+                        LockSupport.parkNanos(pauseNanos);
+                        alerts.publish("WebService: Unable to contact Schedule service (" + thread + "/" + i + ")");
+                    }
+                }));
+            }
+            final long start = System.nanoTime();
+            go.countDown();
+            for (Thread request : requests) request.join();
+            final long raisedNanos = System.nanoTime() - start;
+
+            final int total = threads * alertsPerThread;
+            waitFor(() -> alerts.metrics().published() + alerts.metrics().dropped() == total);
+            final long sentNanos = System.nanoTime() - start;
+            final AlertPublisher.Metrics metrics = alerts.metrics();
+            System.out.printf("Raised %d alerts in %.1fms (%.0f/s); sent %d (%.0f/s), dropped %d%n",
+                    total, raisedNanos / 1e6, total * 1e9 / raisedNanos,
+                    metrics.published(), metrics.published() * 1e9 / sentNanos, metrics.dropped());
+
+            // Raising an alert only queues it, so the requests are never held up by the broker.
+            assertTrue(raisedNanos < TimeUnit.SECONDS.toNanos(5), "raising alerts took " + raisedNanos / 1_000_000 + "ms");
+            assertTrue(metrics.published() >= AlertPublisher.DEFAULT_CAPACITY);
+            assertEquals(0, metrics.failed());
+        }
+    }
+
+    @Test
+    public void dropsAlertsRatherThanBlockWhenTheBrokerIsDown() {
+        try (AlertPublisher alerts = new AlertPublisher("tcp://localhost:1", QUEUE, 10)) {
+            final long start = System.nanoTime();
+            int accepted = 0;
+            for (int i = 0; i < 100; i++) {
+                if (alerts.publish("alert " + i)) accepted++;
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            assertTrue(accepted <= 11, "accepted " + accepted);
+            assertEquals(100 - accepted, alerts.metrics().dropped());
+        }
+    }
+
+    @Test
+    public void takesNoAlertsOnceClosed() {
+        AlertPublisher alerts = new AlertPublisher("TEST", QUEUE, 10);
+        alerts.close();
+        assertFalse(alerts.publish("too late"));
+        assertEquals(1, alerts.metrics().dropped());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 30_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}